@@ -34,9 +34,15 @@ import com.felhr.usbserial.SerialInputStream;
 import com.felhr.usbserial.SerialOutputStream;
 import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
+import com.felhr.utils.DelimiterFramer;
+import com.felhr.utils.FrameDecoder;
+import com.felhr.utils.HexData;
 
 import io.socket.client.Socket;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -61,6 +67,10 @@ public class UsbService extends Service {
     public static final int SYNC_READ = 3;
     public static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
     private static final int BAUD_RATE = 115200; // BaudRate. Change this value if you need
+    private static final int MAX_COMMAND_RATE = 50; // Real time commands per second written to the port
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 512; // Commands written close together share a transfer
+    private static final int WRITE_LINGER = 2; // ms a command waits for others
     public static boolean SERVICE_CONNECTED = false;
 
     private final IBinder binder = new UsbBinder();
@@ -119,6 +129,8 @@ public class UsbService extends Service {
                 Intent intent = new Intent(ACTION_USB_DISCONNECTED);
                 arg0.sendBroadcast(intent);
                 if (serialPortConnected) {
+                    flushOutput();
+                    stopReadAhead();
                     serialPort.syncClose();
                     readThread.setKeep(false);
                 }
@@ -150,25 +162,53 @@ public class UsbService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        flushOutput();
+        stopReadAhead();
         serialPort.close();
         unregisterReceiver(usbReceiver);
         UsbService.SERVICE_CONNECTED = false;
     }
 
+    // Printable bytes as they are, the rest as _xx_
     public static String byteArrayToHex(byte[] a) {
-        StringBuilder sb = new StringBuilder(a.length * 2);
-        for(byte b: a)
-            if(b<127)
-                sb.append((char)b);
-            else
-                sb.append(String.format("_%02x_", b));
-        return sb.toString();
+        return HexData.hexToString(a, HexData.ESCAPED);
     }
 
     public void write(byte[] data) {
+        mHandler.obtainMessage(SYNC_READ, "\nCMD: "+byteArrayToHex(data)).sendToTarget();
+        if (serialOutputStream != null) {
+            try {
+                serialOutputStream.write(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Write failed", e);
+            }
+        }
+    }
+
+    private void stopReadAhead() {
+        if (serialInputStream != null)
+            serialInputStream.stopReadAhead();
+    }
+
+    // Writes still lingering in the output stream are sent before the port is closed
+    private void flushOutput() {
+        if (serialOutputStream == null)
+            return;
+        try {
+            serialOutputStream.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Flush failed", e);
+        }
+    }
+
+    /*
+     * Real time control commands. A command not written yet is replaced by a newer one with the
+     * same key, so the robot never drives on stale commands after a network burst.
+     */
+    public void sendCommand(String key, byte[] data) {
         mHandler.obtainMessage(SYNC_READ, "\nCMD: "+byteArrayToHex(data)).sendToTarget();
         if (serialOutputStream != null)
-            serialOutputStream.write(data);
+            serialPort.getCommandChannel().send(key, data);
     }
 
     public void changeBaudRate(int baudRate){
@@ -271,7 +311,11 @@ public class UsbService extends Service {
                     serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
 
                     serialInputStream = serialPort.getInputStream();
+                    serialInputStream.startReadAhead(); // Keeps reading while lines are dispatched
                     serialOutputStream = serialPort.getOutputStream();
+                    serialOutputStream.setBufferSize(WRITE_BUFFER_SIZE);
+                    serialOutputStream.setLinger(WRITE_LINGER);
+                    serialPort.getCommandChannel().setMaxRate(MAX_COMMAND_RATE);
 
                     readThread = new ReadThread();
                     readThread.start();
@@ -315,34 +359,49 @@ public class UsbService extends Service {
         return builder.toString();
     }
 
+    /*
+     * Reads the port in bulk and splits the data into lines. All the lines completed by a read are
+     * dispatched together, as one message to the handler and one to the WebSocket.
+     */
     private class ReadThread extends Thread {
         private final AtomicBoolean keep = new AtomicBoolean(true);
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private final DelimiterFramer lineFramer = new DelimiterFramer(new byte[]{'\n'});
+        private byte[] batch = new byte[READ_BUFFER_SIZE];
+        private int batchLength = 0;
+        private final FrameDecoder.FrameHandler lineHandler = (data, offset, length) -> {
+            if (batchLength + length > batch.length)
+                batch = Arrays.copyOf(batch, Math.max(2 * batch.length, batchLength + length));
+            System.arraycopy(data, offset, batch, batchLength, length);
+            batchLength += length;
+        };
+
         @Override
         public void run() {
-            StringBuffer sb = new StringBuffer();
             while(keep.get()){
                 if(serialInputStream == null)
                     return;
-                int value = serialInputStream.read();
-                if(value != -1) {
-                    char str = (char)value;
-                    sb.append(str);
-                    if(str=='\n')
-                    {
-                        String data = sb.toString();
-                        mHandler.obtainMessage(SYNC_READ,data).sendToTarget();
-                        if(currentConn!=null)
-                            currentConn.send(data);
-                        sb = new StringBuffer();
-                    }
+                int length = serialInputStream.read(buffer, 0, buffer.length);
+                if(length > 0) {
+                    lineFramer.append(buffer, 0, length, lineHandler);
+                    dispatch();
                 }
             }
-            if(sb.length()>0) {
-                String data = sb.toString();
-                mHandler.obtainMessage(SYNC_READ,data ).sendToTarget();
-                if(currentConn!=null)
-                    currentConn.send(data);
-            }
+            // Unfinished line
+            lineFramer.flush(lineHandler);
+            dispatch();
+        }
+
+        private void dispatch() {
+            if(batchLength == 0)
+                return;
+            // One char per byte, as the lines were read before
+            String data = new String(batch, 0, batchLength, StandardCharsets.ISO_8859_1);
+            batchLength = 0;
+            if(mHandler != null)
+                mHandler.obtainMessage(SYNC_READ, data).sendToTarget();
+            if(currentConn != null)
+                currentConn.send(data);
         }
 
         public void setKeep(boolean keep){
@@ -94,6 +94,7 @@ public class RaceOSSDCActivity extends AppCompatActivity {
     public static int FPS = 30;
 
     private static final int RC_CALL = 111;
+    private static final String DRIVE_COMMAND = "drive"; // stick and setmotor replace each other
 
     private Socket socket;
     private boolean isInitiator;
@@ -547,7 +548,7 @@ public class RaceOSSDCActivity extends AppCompatActivity {
                                     data = convertStickCommand(stick);
                                     Log.d(TAG, "USB-Send: "+data);
                                     if(data!=null)
-                                        usbService.write(data.getBytes());//send raw
+                                        usbService.sendCommand(DRIVE_COMMAND, data.getBytes());//latest wins
                                 }
                             } catch (JSONException e1) {
                                 e1.printStackTrace();
@@ -594,7 +595,7 @@ public class RaceOSSDCActivity extends AppCompatActivity {
 
                                     Log.d(TAG, "USB-Send: "+data);
                                     if(data!=null)
-                                        usbService.write(data.getBytes());//send raw
+                                        usbService.sendCommand(DRIVE_COMMAND, data.getBytes());//latest wins
                                 }
                             } catch (JSONException e1) {
                                 e1.printStackTrace();
@@ -0,0 +1,60 @@
+package com.felhr.deviceids;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Device id lookups in the order UsbSerialDevice.createUsbSerialDevice tries the tables, for ids
+ * found in each of them and for an unknown one that misses all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceLookupBenchmark
+{
+    private static final int[][] IDS = {
+            {0x0403, 0x6001}, // FTDI
+            {0x10C4, 0xEA60}, // CP210x
+            {0x067B, 0x2303}, // PL2303
+            {0x1A86, 0x7523}, // CH34x
+            {0x1234, 0x5678}  // Unknown
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(5)
+    public int lookup()
+    {
+        int found = 0;
+        for(int[] id : IDS)
+        {
+            if(FTDISioIds.isDeviceIdSupported(id[0], id[1]))
+                found += 1;
+            else if(CP210xIds.isDeviceSupported(id[0], id[1]))
+                found += 2;
+            else if(PL2303Ids.isDeviceSupported(id[0], id[1]))
+                found += 3;
+            else if(CH34xIds.isDeviceSupported(id[0], id[1]))
+                found += 4;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public boolean exists()
+    {
+        return FTDISioIds.isDeviceIdSupported(0x0403, 0x6001);
+    }
+}
@@ -0,0 +1,74 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Short motor commands written through SerialOutputStream, one write per command, to a simulated
+ * port. The transfers counter is the rate of USB transfers: one per write without coalescing
+ * (bufferSize 0), one per full buffer with it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoalescingWriteBenchmark
+{
+    @Param({"0", "512"})
+    public int bufferSize;
+
+    private SerialOutputStream outputStream;
+    private final byte[] command = "setmotor 10 10 50\n".getBytes();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfers
+    {
+        public long transfers;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            transfers = 0;
+        }
+    }
+
+    @Setup
+    public void setUp()
+    {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        fake.setDiscardReceived(true);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false;
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        outputStream = new SerialOutputStream(device);
+        outputStream.setBufferSize(bufferSize);
+    }
+
+    @Benchmark
+    public void writeCommand(Transfers counters) throws IOException
+    {
+        long transfers = outputStream.getTransferCount();
+        outputStream.write(command);
+        counters.transfers += outputStream.getTransferCount() - transfers;
+    }
+}
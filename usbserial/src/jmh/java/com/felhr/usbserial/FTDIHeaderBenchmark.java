@@ -0,0 +1,116 @@
+package com.felhr.usbserial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * FTDI header removal of a bulk IN transfer as the read thread does it. The legacy variants are the
+ * previous implementation: a copy of the transfer and a new array without headers for every packet.
+ * Run with -prof gc to see the allocation rate of each one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FTDIHeaderBenchmark
+{
+    @Param({"64", "512", "16384"})
+    public int length;
+
+    private byte[] transfer;
+    private byte[] readBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setUp()
+    {
+        transfer = new byte[length];
+        new Random(1).nextBytes(transfer);
+        readBuffer = new byte[length];
+        directBuffer = ByteBuffer.allocateDirect(length);
+    }
+
+    @Benchmark
+    public byte[] legacyCopy()
+    {
+        byte[] dataReceived = Arrays.copyOfRange(transfer, 0, length);
+        return legacyAdaptArray(dataReceived);
+    }
+
+    @Benchmark
+    public byte[] inPlaceCopy()
+    {
+        System.arraycopy(transfer, 0, readBuffer, 0, length);
+        int adapted = FTDISerialDevice.adaptArray(readBuffer, 0, length);
+        return Arrays.copyOfRange(readBuffer, 0, adapted);
+    }
+
+    @Benchmark
+    public int inPlace()
+    {
+        System.arraycopy(transfer, 0, readBuffer, 0, length);
+        return FTDISerialDevice.adaptArray(readBuffer, 0, length);
+    }
+
+    @Benchmark
+    public int inPlaceDirect()
+    {
+        directBuffer.clear();
+        directBuffer.put(transfer);
+        return FTDISerialDevice.adaptBuffer(directBuffer, length);
+    }
+
+    private static byte[] legacyAdaptArray(byte[] ftdiData)
+    {
+        int length = ftdiData.length;
+        if(length > 64)
+        {
+            int n = 1;
+            int p = 64;
+            while(p < length)
+            {
+                n++;
+                p = n*64;
+            }
+            int realLength = length - n*2;
+            byte[] data = new byte[realLength];
+            legacyCopyData(ftdiData, data);
+            return data;
+        }else
+        {
+            return Arrays.copyOfRange(ftdiData, 2, length);
+        }
+    }
+
+    private static void legacyCopyData(byte[] src, byte[] dst)
+    {
+        int srcPos = 2, dstPos = 0;
+        while(srcPos - 2 <= src.length - 64)
+        {
+            System.arraycopy(src, srcPos, dst, dstPos, 62);
+            srcPos += 64;
+            dstPos += 62;
+        }
+        int remaining = src.length - srcPos + 2;
+        if (remaining > 0)
+        {
+            System.arraycopy(src, srcPos, dst, dstPos, remaining - 2);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import com.felhr.utils.DelimiterFramer;
+import com.felhr.utils.FrameDecoder;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lines read through SerialInputStream from a loopback device, the way a receive thread does it.
+ * byteAtATime is the previous UsbService read thread: read() and a new StringBuffer per line.
+ * bulkFramed reads in bulk, splits with a DelimiterFramer and builds one string per read.
+ * transfersOnly is the cost of the simulated transfers alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineReadBenchmark
+{
+    private static final int LINES = 1000;
+
+    private FakeUsbDeviceConnection fake;
+    private UsbSerialDevice device;
+    private SerialInputStream inputStream;
+    private byte[] lines;
+
+    private final byte[] buffer = new byte[16 * 1024];
+    private final DelimiterFramer lineFramer = new DelimiterFramer(new byte[]{'\n'});
+    private byte[] batch = new byte[16 * 1024];
+    private int batchLength;
+    private int batchLines;
+    private final FrameDecoder.FrameHandler lineHandler = (data, offset, length) ->
+    {
+        if(batchLength + length > batch.length)
+            batch = Arrays.copyOf(batch, Math.max(2 * batch.length, batchLength + length));
+        System.arraycopy(data, offset, batch, batchLength, length);
+        batchLength += length;
+        batchLines++;
+    };
+
+    @Setup
+    public void setUp()
+    {
+        fake = new FakeUsbDeviceConnection(16 * 1024); // A bulk transfer fills the whole buffer
+        fake.setLoopback(true);
+        device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false;
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        inputStream = new SerialInputStream(device);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for(int i=0;i<=LINES-1;i++)
+        {
+            byte[] line = ("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9," + i + ",M\r\n").getBytes();
+            stream.write(line, 0, line.length);
+        }
+        lines = stream.toByteArray();
+    }
+
+    @Benchmark
+    public int byteAtATime()
+    {
+        device.syncWrite(lines, 0);
+        int count = 0;
+        int length = 0;
+        StringBuffer sb = new StringBuffer();
+        while(count < LINES)
+        {
+            int value = inputStream.read();
+            if(value != -1)
+            {
+                char str = (char) value;
+                sb.append(str);
+                if(str == '\n')
+                {
+                    length += sb.toString().length();
+                    sb = new StringBuffer();
+                    count++;
+                }
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int bulkFramed()
+    {
+        device.syncWrite(lines, 0);
+        int length = 0;
+        batchLines = 0;
+        while(batchLines < LINES)
+        {
+            int read = inputStream.read(buffer, 0, buffer.length);
+            if(read > 0)
+            {
+                lineFramer.append(buffer, 0, read, lineHandler);
+                length += new String(batch, 0, batchLength, StandardCharsets.ISO_8859_1).length();
+                batchLength = 0;
+            }
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int transfersOnly()
+    {
+        device.syncWrite(lines, 0);
+        int total = 0;
+        while(total < lines.length)
+        {
+            int read = inputStream.read(buffer, 0, buffer.length);
+            if(read > 0)
+                total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,72 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Data read from a simulated port through the ring of IN requests of WorkerThread, completions
+ * dispatched to a buffer callback. Every operation reads 256 KB in packets of 512 bytes, the
+ * score is bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadRequestBenchmark
+{
+    private static final int PAYLOAD_BYTES = 256 * 1024;
+
+    @Param({"1", "4", "8"})
+    public int requests;
+
+    private FakeUsbDeviceConnection fake;
+    private UsbSerialDevice.WorkerThread workerThread;
+    private byte[] data;
+    private int received;
+
+    @Setup
+    public void setUp()
+    {
+        fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setReadRequestCount(requests);
+        workerThread = device.new WorkerThread(device);
+        workerThread.setUsbRequests(fake.createInRequests(requests));
+        workerThread.setBufferCallback(buffer -> received += buffer.remaining());
+        workerThread.queueRequests(); // Requeued as they complete, they stay queued between operations
+
+        data = new byte[PAYLOAD_BYTES];
+        new Random(1).nextBytes(data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_BYTES)
+    public int read()
+    {
+        received = 0;
+        fake.setDeviceData(data);
+        while(fake.hasPendingData())
+        {
+            workerThread.doRun();
+        }
+        return received;
+    }
+}
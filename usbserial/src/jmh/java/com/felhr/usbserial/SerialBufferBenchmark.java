@@ -0,0 +1,82 @@
+package com.felhr.usbserial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write path of the async API without the USB transfer: writes put in the SerialBuffer and taken
+ * out coalesced, as the write thread does, into an array or the direct buffer of an OUT request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialBufferBenchmark
+{
+    @Param({"16", "512", "4096"})
+    public int writeSize;
+
+    @Param({"1", "8"})
+    public int writes; // Put before every get
+
+    private SerialBuffer serialBuffer;
+    private byte[] data;
+    private byte[] dst;
+    private ByteBuffer directDst;
+
+    @Setup
+    public void setUp()
+    {
+        serialBuffer = new SerialBuffer(true);
+        data = new byte[writeSize];
+        new Random(1).nextBytes(data);
+        dst = new byte[SerialBuffer.MAX_BULK_BUFFER];
+        directDst = ByteBuffer.allocateDirect(SerialBuffer.MAX_BULK_BUFFER);
+    }
+
+    @Benchmark
+    public int putGet()
+    {
+        for(int i=0;i<=writes-1;i++)
+            serialBuffer.putWriteBuffer(data);
+        int length = 0;
+        while(!serialBuffer.isWriteBufferEmpty())
+        {
+            int n = serialBuffer.pollWriteBuffer(dst);
+            serialBuffer.onWriteTransferred(n, true);
+            length += n;
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int putGetDirect()
+    {
+        for(int i=0;i<=writes-1;i++)
+            serialBuffer.putWriteBuffer(data);
+        int length = 0;
+        while(!serialBuffer.isWriteBufferEmpty())
+        {
+            directDst.clear();
+            int n = serialBuffer.pollWriteBuffer(directDst);
+            serialBuffer.onWriteTransferred(n, true);
+            length += n;
+        }
+        return length;
+    }
+}
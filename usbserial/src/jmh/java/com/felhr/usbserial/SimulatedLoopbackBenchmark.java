@@ -0,0 +1,81 @@
+package com.felhr.usbserial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A message written to a simulated chip in loopback and read back with the sync API of its driver,
+ * FTDI headers stripped. Latency is per transfer, 0 measures the drivers alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatedLoopbackBenchmark
+{
+    @Param({"0", "1", "2", "3", "4"}) // CDC, FTDI, CP210x, CH34x, PL2303
+    public int chip;
+
+    @Param({"0", "125"})
+    public int latencyMicros;
+
+    @Param({"1024"})
+    public int messageSize;
+
+    private UsbSerialDevice device;
+    private byte[] message;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp()
+    {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+        simulator.setLoopback(true);
+        simulator.setDiscardReceived(true);
+        simulator.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        device = simulator.createSerialDevice();
+        if(!device.syncOpen())
+            throw new IllegalStateException("Chip " + chip + " not opened");
+        device.setBaudRate(115200);
+
+        message = new byte[messageSize];
+        new Random(1).nextBytes(message);
+        buffer = new byte[messageSize];
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        device.syncClose();
+    }
+
+    @Benchmark
+    public int roundTrip()
+    {
+        device.syncWrite(message, 0);
+        int received = 0;
+        while(received < messageSize)
+        {
+            int n = device.syncRead(buffer, received, messageSize - received, 100);
+            if(n < 0)
+                throw new IllegalStateException("Timed out");
+            received += n;
+        }
+        return received;
+    }
+}
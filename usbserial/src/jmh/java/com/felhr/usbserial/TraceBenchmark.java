@@ -0,0 +1,62 @@
+package com.felhr.usbserial;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of a write put and taken from the SerialBuffer with debug string logs and with a binary trace.
+ * Log calls are stubs on the JVM, the debug numbers leave out the cost of logcat itself.
+ * Run with -prof gc to see the allocation rate of each one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark
+{
+    @Param({"none", "debug", "trace"})
+    public String mode;
+
+    @Param({"64", "1024"})
+    public int writeSize;
+
+    private SerialBuffer serialBuffer;
+    private byte[] data;
+    private byte[] dst;
+
+    @Setup
+    public void setUp()
+    {
+        serialBuffer = new SerialBuffer(true);
+        if(mode.equals("debug"))
+            serialBuffer.debug(true);
+        else if(mode.equals("trace"))
+            serialBuffer.setTraceRecorder(new SerialTraceRecorder());
+        data = new byte[writeSize];
+        new Random(1).nextBytes(data);
+        dst = new byte[SerialBuffer.MAX_BULK_BUFFER];
+    }
+
+    @Benchmark
+    public int putGet()
+    {
+        serialBuffer.putWriteBuffer(data);
+        int length = serialBuffer.pollWriteBuffer(dst);
+        serialBuffer.onWriteTransferred(length, true);
+        return length;
+    }
+}
@@ -0,0 +1,83 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Data written to a simulated port with writeAsync, by blocking bulk transfers (0 requests) or
+ * queued OUT requests. Every operation writes 1 MB in chunks of 4 KB and waits for the last one
+ * to complete, the score is bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteRequestBenchmark
+{
+    private static final int PAYLOAD_BYTES = 1024 * 1024;
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({"0", "1", "4", "8"})
+    public int requests;
+
+    private UsbSerialDevice device;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp()
+    {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        fake.setDiscardReceived(true);
+        device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.workerThread = device.new WorkerThread(device);
+        device.writeThread = device.new WriteThread();
+        device.writeThread.setUsbEndpoint(fake.getOutEndpoint());
+        if(requests > 0)
+            device.writeThread.setUsbRequests(fake.createOutRequests(requests));
+        device.workerThread.start();
+        device.writeThread.start();
+
+        chunk = new byte[CHUNK_SIZE];
+        new Random(1).nextBytes(chunk);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        device.workerThread.stopThread();
+        device.writeThread.stopThread();
+        device.workerThread.join(2000);
+        device.writeThread.join(2000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_BYTES)
+    public int writeAsync() throws Exception
+    {
+        WriteFuture last = null;
+        for(int i=0;i<=PAYLOAD_BYTES/CHUNK_SIZE-1;i++)
+        {
+            last = device.writeAsync(chunk);
+        }
+        return last.get(10, TimeUnit.SECONDS);
+    }
+}
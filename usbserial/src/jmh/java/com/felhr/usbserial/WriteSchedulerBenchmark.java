@@ -0,0 +1,79 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write thread per port against a shared SerialIoScheduler, with many simulated ports.
+ * Every operation writes a small command to each port and waits until all of them are transferred.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteSchedulerBenchmark
+{
+    @Param({"1", "4", "16"})
+    public int ports;
+
+    @Param({"threads", "scheduler"})
+    public String mode;
+
+    private UsbSerialDevice[] devices;
+    private SerialIoScheduler scheduler;
+    private final byte[] command = "setmotor 10 10 50\n".getBytes();
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        if("scheduler".equals(mode))
+            scheduler = new SerialIoScheduler(1);
+
+        devices = new UsbSerialDevice[ports];
+        for(int i=0;i<=ports-1;i++)
+        {
+            FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+            UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+            device.setIoScheduler(scheduler);
+            device.restartWriteThread();
+            device.writeThread.setUsbEndpoint(fake.getOutEndpoint());
+            devices[i] = device;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for(UsbSerialDevice device : devices)
+            device.killWriteThread();
+        if(scheduler != null)
+            scheduler.shutdown();
+    }
+
+    @Benchmark
+    public void writeToEveryPort() throws InterruptedException
+    {
+        for(UsbSerialDevice device : devices)
+            device.write(command);
+        for(UsbSerialDevice device : devices)
+            device.flush(1000);
+    }
+}
@@ -0,0 +1,105 @@
+package com.felhr.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decoding throughput of every frame decoder. Every operation decodes 64 KB of payload appended
+ * in reads of 512 bytes, the score is payload bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark
+{
+    private static final int PAYLOAD_BYTES = 64 * 1024;
+    private static final int READ_SIZE = 512;
+
+    @Param({"delimiter", "lengthPrefix", "cobs", "slip"})
+    public String decoder;
+
+    @Param({"16", "256"})
+    public int frameSize;
+
+    private FrameDecoder frameDecoder;
+    private byte[] stream;
+    private FrameDecoder.FrameHandler handler;
+
+    @Setup
+    public void setUp(Blackhole blackhole)
+    {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i=0;i<PAYLOAD_BYTES/frameSize;i++)
+        {
+            byte[] payload = new byte[frameSize];
+            random.nextBytes(payload);
+            byte[] encoded;
+            switch(decoder)
+            {
+                case "delimiter":
+                    // Text line, the delimiter counts as payload
+                    for(int j=0;j<frameSize;j++)
+                        payload[j] = (byte) ('a' + (payload[j] & 0x0F));
+                    payload[frameSize - 1] = '\n';
+                    encoded = payload;
+                    break;
+                case "lengthPrefix":
+                    encoded = FrameEncoders.lengthPrefix(payload, 2, ByteOrder.BIG_ENDIAN);
+                    break;
+                case "cobs":
+                    encoded = FrameEncoders.cobs(payload);
+                    break;
+                default:
+                    encoded = FrameEncoders.slip(payload);
+                    break;
+            }
+            out.write(encoded, 0, encoded.length);
+        }
+        stream = out.toByteArray();
+
+        switch(decoder)
+        {
+            case "delimiter":
+                frameDecoder = new DelimiterFramer(new byte[]{'\n'});
+                break;
+            case "lengthPrefix":
+                frameDecoder = new LengthPrefixDecoder(2, ByteOrder.BIG_ENDIAN, 1024);
+                break;
+            case "cobs":
+                frameDecoder = new CobsDecoder();
+                break;
+            default:
+                frameDecoder = new SlipDecoder();
+                break;
+        }
+        handler = (buffer, offset, length) -> blackhole.consume(buffer[offset]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_BYTES)
+    public void decode()
+    {
+        for(int offset=0;offset<stream.length;offset+=READ_SIZE)
+            frameDecoder.append(stream, offset, Math.min(READ_SIZE, stream.length - offset), handler);
+    }
+}
@@ -0,0 +1,173 @@
+package com.felhr.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hex dump of a transfer as the debug logs print it, and parsing it back. The legacy variants are
+ * the previous implementations: a charAt lookup and string appends per byte to encode, regexes and
+ * Integer.parseInt per byte to decode, String.format per non printable byte for the escaped format.
+ * Run with -prof gc to see the allocation rate of each one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexDataBenchmark
+{
+    private static final String HEXES = "0123456789ABCDEF";
+
+    @Param({"16", "512"})
+    public int length;
+
+    private byte[] data;
+    private String hex;
+    private String escaped;
+    private char[] chars;
+    private StringBuilder builder;
+    private ByteBuffer directBuffer;
+    private byte[] decoded;
+
+    @Setup
+    public void setUp()
+    {
+        // Mostly text, as the commands written by the application
+        data = new byte[length];
+        Random random = new Random(1);
+        for(int i=0;i<=length-1;i++)
+            data[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt(256) : ' ' + random.nextInt(95));
+        hex = HexData.hexToString(data);
+        escaped = HexData.hexToString(data, HexData.ESCAPED);
+        chars = new char[5 * length];
+        builder = new StringBuilder(5 * length);
+        directBuffer = ByteBuffer.allocateDirect(5 * length);
+        decoded = new byte[length];
+    }
+
+    @Benchmark
+    public String legacyHexToString()
+    {
+        return legacyHexToString(data);
+    }
+
+    @Benchmark
+    public String hexToString()
+    {
+        return HexData.hexToString(data);
+    }
+
+    @Benchmark
+    public int encodeChars()
+    {
+        return HexData.encode(data, 0, length, chars, 0, HexData.PREFIXED);
+    }
+
+    @Benchmark
+    public int encodeAppendable() throws IOException
+    {
+        builder.setLength(0);
+        HexData.encode(data, 0, length, builder, HexData.PREFIXED);
+        return builder.length();
+    }
+
+    @Benchmark
+    public int encodeDirectBuffer()
+    {
+        directBuffer.clear();
+        return HexData.encode(data, 0, length, directBuffer, HexData.PREFIXED);
+    }
+
+    @Benchmark
+    public byte[] legacyStringTobytes()
+    {
+        return legacyStringTobytes(hex);
+    }
+
+    @Benchmark
+    public byte[] stringTobytes()
+    {
+        return HexData.stringTobytes(hex);
+    }
+
+    @Benchmark
+    public int decode()
+    {
+        return HexData.decode(hex, 0, hex.length(), decoded, 0, HexData.PREFIXED);
+    }
+
+    @Benchmark
+    public String legacyEscaped()
+    {
+        return legacyByteArrayToHex(data);
+    }
+
+    @Benchmark
+    public int encodeEscaped()
+    {
+        return HexData.encode(data, 0, length, chars, 0, HexData.ESCAPED);
+    }
+
+    @Benchmark
+    public int decodeEscaped()
+    {
+        return HexData.decode(escaped, 0, escaped.length(), decoded, 0, HexData.ESCAPED);
+    }
+
+    private static String legacyHexToString(byte[] data)
+    {
+        StringBuilder hex = new StringBuilder(2*data.length);
+        for(int i=0;i<=data.length-1;i++)
+        {
+            byte dataAtIndex = data[i];
+            hex.append("0x");
+            hex.append(HEXES.charAt((dataAtIndex & 0xF0) >> 4))
+                    .append(HEXES.charAt((dataAtIndex & 0x0F)));
+            hex.append(" ");
+        }
+        return hex.toString();
+    }
+
+    private static byte[] legacyStringTobytes(String hexString)
+    {
+        String stringProcessed = hexString.trim().replaceAll("0x", "");
+        stringProcessed = stringProcessed.replaceAll("\\s+","");
+        byte[] data = new byte[stringProcessed.length()/2];
+        int i = 0;
+        int j = 0;
+        while(i <= stringProcessed.length()-1)
+        {
+            byte character = (byte) Integer.parseInt(stringProcessed.substring(i, i+2), 16);
+            data[j] = character;
+            j++;
+            i += 2;
+        }
+        return data;
+    }
+
+    private static String legacyByteArrayToHex(byte[] a)
+    {
+        StringBuilder sb = new StringBuilder(a.length * 2);
+        for(byte b : a)
+            if(b < 127)
+                sb.append((char) b);
+            else
+                sb.append(String.format("_%02x_", b));
+        return sb.toString();
+    }
+}
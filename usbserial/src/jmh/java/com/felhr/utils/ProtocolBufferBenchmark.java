@@ -0,0 +1,88 @@
+package com.felhr.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * ProtocolBuffer.appendData with \r\n delimited commands, queued and drained as an application
+ * polling the buffer would. Every operation appends 64 KB in reads of 512 bytes, the score is
+ * bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBufferBenchmark
+{
+    private static final int PAYLOAD_BYTES = 64 * 1024;
+    private static final int READ_SIZE = 512;
+
+    @Param({ProtocolBuffer.TEXT, ProtocolBuffer.BINARY})
+    public String mode;
+
+    @Param({"16", "256"})
+    public int commandSize;
+
+    private ProtocolBuffer protocolBuffer;
+    private byte[] stream;
+    private final List<String> textCommands = new ArrayList<>();
+    private final List<byte[]> binaryCommands = new ArrayList<>();
+
+    @Setup
+    public void setUp()
+    {
+        // NMEA like lines, the delimiter included in the command size
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while(out.size() < PAYLOAD_BYTES)
+        {
+            for(int i=0;i<commandSize-2;i++)
+                out.write('A' + random.nextInt(26));
+            out.write('\r');
+            out.write('\n');
+        }
+        stream = out.toByteArray();
+
+        protocolBuffer = new ProtocolBuffer(mode);
+        protocolBuffer.setDelimiter("\r\n");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYLOAD_BYTES)
+    public int appendData()
+    {
+        int commands = 0;
+        for(int offset=0;offset<stream.length;offset+=READ_SIZE)
+        {
+            protocolBuffer.appendData(stream, offset, Math.min(READ_SIZE, stream.length - offset));
+            if(mode.equals(ProtocolBuffer.TEXT))
+            {
+                commands += protocolBuffer.drainTextCommands(textCommands, Integer.MAX_VALUE);
+                textCommands.clear();
+            }else
+            {
+                commands += protocolBuffer.drainBinaryCommands(binaryCommands, Integer.MAX_VALUE);
+                binaryCommands.clear();
+            }
+        }
+        return commands;
+    }
+}
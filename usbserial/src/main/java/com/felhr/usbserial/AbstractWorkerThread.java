@@ -1,26 +1,106 @@
 package com.felhr.usbserial;
 
-abstract class AbstractWorkerThread extends Thread {
-    boolean firstTime = true;
-    private volatile boolean keep = true;
-    private volatile Thread workingThread;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/*
+ * Loop calling doRun() on its own thread until stopped. It can be started again after being
+ * stopped, every start runs on a new thread so the same worker is reused across close/open cycles.
+ */
+abstract class AbstractWorkerThread {
+    private final Object lock = new Object();
+    private volatile Run current; // null while stopped
+    private Run last; // Most recently started run, guarded by lock
+
+    /*
+     * Start the loop if it is not running. It returns once the new thread is running.
+     */
+    public void start() {
+        Run run;
+        synchronized (this.lock) {
+            if (this.current != null) {
+                return;
+            }
+            run = new Run();
+            run.thread = new Thread(() -> loop(run), getClass().getSimpleName());
+            this.current = run;
+            this.last = run;
+            run.thread.start();
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                run.started.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Ask the loop to finish, it does after the current doRun() returns
+     */
     void stopThread() {
-        keep = false;
-        if (this.workingThread != null) {
-            this.workingThread.interrupt();
+        synchronized (this.lock) {
+            Run run = this.current;
+            this.current = null;
+            if (run != null) {
+                run.thread.interrupt();
+            }
+        }
+    }
+
+    /*
+     * Same as stopThread() waiting at most timeout milliseconds for the loop to finish.
+     * Returns true if it did.
+     */
+    boolean stopThread(long timeout) {
+        stopThread();
+        try {
+            return join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
-    public final void run() {
-        if (!this.keep) {
-            return;
+    /*
+     * Wait for the last started loop to finish. Returns true if it did, or it was never started.
+     */
+    public boolean join(long timeout) throws InterruptedException {
+        Run run;
+        synchronized (this.lock) {
+            run = this.last;
         }
-        this.workingThread = Thread.currentThread();
-        while (this.keep && (!this.workingThread.isInterrupted())) {
-            doRun();
+        return run == null || run.stopped.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Started and not stopped yet
+    public boolean isAlive() {
+        return this.current != null;
+    }
+
+    private void loop(Run run) {
+        run.started.countDown();
+        try {
+            while (this.current == run && !run.thread.isInterrupted()) {
+                doRun();
+            }
+        } finally {
+            run.stopped.countDown();
         }
     }
 
     abstract void doRun();
+
+    private static class Run {
+        Thread thread;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+    }
 }
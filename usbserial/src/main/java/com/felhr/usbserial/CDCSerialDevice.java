@@ -141,6 +141,7 @@ public class CDCSerialDevice extends UsbSerialDevice
     public void syncClose()
     {
         setControlCommand(CDC_SET_CONTROL_LINE_STATE, CDC_CONTROL_LINE_OFF, null);
+        killWriteThread(); // Only running if a command channel was used
         connection.releaseInterface(mInterface);
         connection.close();
         isOpen = false;
@@ -90,7 +90,7 @@ public class CH34xSerialDevice extends UsbSerialDevice
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
 
-    private FlowControlThread flowControlThread;
+    private volatile ModemStatusPoller modemStatusPoller;
     private UsbCTSCallback ctsCallback;
     private UsbDSRCallback dsrCallback;
     private boolean rtsCtsEnabled;
@@ -183,6 +183,7 @@ public class CH34xSerialDevice extends UsbSerialDevice
     public void syncClose()
     {
         stopFlowControlThread();
+        killWriteThread(); // Only running if a command channel was used
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -361,12 +362,14 @@ public class CH34xSerialDevice extends UsbSerialDevice
     public void getCTS(UsbCTSCallback ctsCallback)
     {
         this.ctsCallback = ctsCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
     public void getDSR(UsbDSRCallback dsrCallback)
     {
         this.dsrCallback = dsrCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
@@ -393,6 +396,24 @@ public class CH34xSerialDevice extends UsbSerialDevice
         //TODO
     }
 
+    /**
+     * @return control transfers issued to poll the modem lines since the port was opened
+     */
+    public long getModemPollTransferCount()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        return poller != null ? poller.getControlTransfers() : 0;
+    }
+
+    /**
+     * @return control transfers per second issued to poll the modem lines lately
+     */
+    public double getModemPollTransferRate()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        return poller != null ? poller.getControlTransferRate() : 0;
+    }
+
     private boolean openCH34X()
     {
         if(connection.claimInterface(mInterface, true))
@@ -602,40 +623,70 @@ public class CH34xSerialDevice extends UsbSerialDevice
 
     private void createFlowControlThread()
     {
-        flowControlThread = new FlowControlThread();
+        modemStatusPoller = new ModemStatusPoller(new ModemLines());
     }
 
+    // A running poller may be suspended since flow control was turned off, it is woken up too
     private void startFlowControlThread()
     {
-        if(!flowControlThread.isAlive())
-            flowControlThread.start();
+        modemStatusPoller.start(getIoScheduler()); // No effect if already running
+        modemStatusPoller.wakeUp();
     }
 
     private void stopFlowControlThread()
     {
-        if(flowControlThread != null)
+        if(modemStatusPoller != null)
         {
-            flowControlThread.stopThread();
-            flowControlThread = null;
+            modemStatusPoller.stop();
+            modemStatusPoller = null;
         }
     }
 
-    private class FlowControlThread extends AbstractWorkerThread
+    // A new callback is reported right away and polled fast for a while
+    private void wakeUpFlowControlThread()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        if(poller != null)
+            poller.wakeUp();
+    }
+
+    private void countControlTransfers(int count)
     {
-        private final long time = 100; // 100ms
+        ModemStatusPoller poller = modemStatusPoller;
+        if(poller != null)
+            poller.countControlTransfers(count);
+    }
+
+    /*
+        CTS and DSR checks, polled by a ModemStatusPoller. CH34x devices have no interrupt endpoint
+        for them.
+    */
+    private class ModemLines implements ModemStatusPoller.Lines
+    {
+        private boolean firstTime = true;
 
         @Override
-        public void doRun()
+        public boolean isPollNeeded()
+        {
+            return (rtsCtsEnabled && ctsCallback != null) || (dtrDsrEnabled && dsrCallback != null);
+        }
+
+        @Override
+        public boolean pollLines()
         {
             if(!firstTime)
             {
+                boolean changed = false;
+
                 // Check CTS status
                 if(rtsCtsEnabled)
                 {
-                    boolean cts = pollForCTS();
+                    boolean cts = checkCTS();
+                    countControlTransfers(1);
                     if(ctsState != cts)
                     {
                         ctsState = !ctsState;
+                        changed = true;
                         if (ctsCallback != null)
                             ctsCallback.onCTSChanged(ctsState);
                     }
@@ -644,14 +695,17 @@ public class CH34xSerialDevice extends UsbSerialDevice
                 // Check DSR status
                 if(dtrDsrEnabled)
                 {
-                    boolean dsr = pollForDSR();
+                    boolean dsr = checkDSR();
+                    countControlTransfers(1);
                     if(dsrState != dsr)
                     {
                         dsrState = !dsrState;
+                        changed = true;
                         if (dsrCallback != null)
                             dsrCallback.onDSRChanged(dsrState);
                     }
                 }
+                return changed;
             }else
             {
                 if(rtsCtsEnabled && ctsCallback != null)
@@ -661,39 +715,8 @@ public class CH34xSerialDevice extends UsbSerialDevice
                     dsrCallback.onDSRChanged(dsrState);
 
                 firstTime = false;
+                return true;
             }
         }
-
-        public boolean pollForCTS()
-        {
-            synchronized(this)
-            {
-                try
-                {
-                    wait(time);
-                } catch(InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-
-            return checkCTS();
-        }
-
-        public boolean pollForDSR()
-        {
-            synchronized(this)
-            {
-                try
-                {
-                    wait(time);
-                } catch(InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-
-            return checkDSR();
-        }
     }
 }
@@ -76,7 +76,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
 
-    private FlowControlThread flowControlThread;
+    private volatile ModemStatusPoller modemStatusPoller;
 
     // COMM_STATUS callbacks
     private UsbSerialInterface.UsbParityCallback parityCallback;
@@ -173,6 +173,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
         setControlCommand(CP210x_PURGE, CP210x_PURGE_ALL, null);
         setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
         stopFlowControlThread();
+        killWriteThread(); // Only running if a command channel was used
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -368,30 +369,35 @@ public class CP2102SerialDevice extends UsbSerialDevice
     public void getCTS(UsbCTSCallback ctsCallback)
     {
         this.ctsCallback = ctsCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
     public void getDSR(UsbDSRCallback dsrCallback)
     {
         this.dsrCallback = dsrCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
     public void getBreak(UsbBreakCallback breakCallback)
     {
         this.breakCallback = breakCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
     public void getFrame(UsbFrameCallback frameCallback)
     {
         this.frameCallback = frameCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
     public void getOverrun(UsbOverrunCallback overrunCallback)
     {
         this.overrunCallback = overrunCallback;
+        wakeUpFlowControlThread();
     }
 
     @Override
@@ -401,20 +407,49 @@ public class CP2102SerialDevice extends UsbSerialDevice
         startFlowControlThread();
     }
 
+    /**
+     * @return control transfers issued to poll the modem lines since the port was opened
+     */
+    public long getModemPollTransferCount()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        return poller != null ? poller.getControlTransfers() : 0;
+    }
+
+    /**
+     * @return control transfers per second issued to poll the modem lines lately
+     */
+    public double getModemPollTransferRate()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        return poller != null ? poller.getControlTransferRate() : 0;
+    }
+
     /*
-        Thread to check every X time if flow signals CTS or DSR have been raised
+        Modem and line status checks, polled by a ModemStatusPoller. CP210x devices have no interrupt
+        endpoint for them.
     */
-    private class FlowControlThread extends AbstractWorkerThread
+    private class ModemLines implements ModemStatusPoller.Lines
     {
-        private final long time = 40; // 40ms
+        private boolean firstTime = true;
+
+        @Override
+        public boolean isPollNeeded()
+        {
+            return (rtsCtsEnabled && ctsCallback != null) || (dtrDsrEnabled && dsrCallback != null)
+                    || parityCallback != null || frameCallback != null || breakCallback != null
+                    || overrunCallback != null;
+        }
 
         @Override
-        public void doRun()
+        public boolean pollLines()
         {
             if(!firstTime) // Only execute the callback when the status change
             {
-                byte[] modemState = pollLines();
+                byte[] modemState = getModemState();
                 byte[] commStatus = getCommStatus();
+                countControlTransfers(2);
+                boolean changed = false;
 
                 // Check CTS status
                 if(rtsCtsEnabled)
@@ -422,6 +457,7 @@ public class CP2102SerialDevice extends UsbSerialDevice
                     if(ctsState != ((modemState[0] & 0x10) == 0x10))
                     {
                         ctsState = !ctsState;
+                        changed = true;
                         if (ctsCallback != null)
                             ctsCallback.onCTSChanged(ctsState);
                     }
@@ -433,25 +469,30 @@ public class CP2102SerialDevice extends UsbSerialDevice
                     if(dsrState != ((modemState[0] & 0x20) == 0x20))
                     {
                         dsrState = !dsrState;
+                        changed = true;
                         if (dsrCallback != null)
                             dsrCallback.onDSRChanged(dsrState);
                     }
                 }
 
                 //Check Parity Errors
-                if(parityCallback != null)
+                if((commStatus[0] & 0x10) == 0x10)
                 {
-                    if((commStatus[0] & 0x10) == 0x10)
+                    getMetrics().onParityError();
+                    if(parityCallback != null)
                     {
+                        changed = true;
                         parityCallback.onParityError();
                     }
                 }
 
                 // Check frame error
-                if(frameCallback != null)
+                if((commStatus[0] & 0x02) == 0x02)
                 {
-                    if((commStatus[0] & 0x02) == 0x02)
+                    getMetrics().onFramingError();
+                    if(frameCallback != null)
                     {
+                        changed = true;
                         frameCallback.onFramingError();
                     }
                 }
@@ -461,21 +502,23 @@ public class CP2102SerialDevice extends UsbSerialDevice
                 {
                     if((commStatus[0] & 0x01) == 0x01)
                     {
+                        changed = true;
                         breakCallback.onBreakInterrupt();
                     }
                 }
 
                 // Check Overrun error
-
-                if(overrunCallback != null)
+                if((commStatus[0] & 0x04) == 0x04
+                    || (commStatus[0] & 0x8) == 0x08)
                 {
-                    if((commStatus[0] & 0x04) == 0x04
-                        || (commStatus[0] & 0x8) == 0x08)
+                    getMetrics().onOverrunError();
+                    if(overrunCallback != null)
                     {
+                        changed = true;
                         overrunCallback.onOverrunError();
                     }
-
                 }
+                return changed;
             }else // Execute the callback always the first time
             {
                 if(rtsCtsEnabled && ctsCallback != null)
@@ -485,24 +528,9 @@ public class CP2102SerialDevice extends UsbSerialDevice
                     dsrCallback.onDSRChanged(dsrState);
 
                 firstTime = false;
+                return true;
             }
         }
-
-        private byte[] pollLines()
-        {
-            synchronized(this)
-            {
-                try
-                {
-                    wait(time);
-                } catch(InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-
-            return getModemState();
-        }
     }
 
     private boolean openCP2102()
@@ -544,24 +572,40 @@ public class CP2102SerialDevice extends UsbSerialDevice
 
     private void createFlowControlThread()
     {
-        flowControlThread = new FlowControlThread();
+        modemStatusPoller = new ModemStatusPoller(new ModemLines());
     }
 
+    // A running poller may be suspended since flow control was turned off, it is woken up too
     private void startFlowControlThread()
     {
-        if(!flowControlThread.isAlive())
-            flowControlThread.start();
+        modemStatusPoller.start(getIoScheduler()); // No effect if already running
+        modemStatusPoller.wakeUp();
     }
 
     private void stopFlowControlThread()
     {
-        if(flowControlThread != null)
+        if(modemStatusPoller != null)
         {
-            flowControlThread.stopThread();
-            flowControlThread = null;
+            modemStatusPoller.stop();
+            modemStatusPoller = null;
         }
     }
 
+    // A new callback is reported right away and polled fast for a while
+    private void wakeUpFlowControlThread()
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        if(poller != null)
+            poller.wakeUp();
+    }
+
+    private void countControlTransfers(int count)
+    {
+        ModemStatusPoller poller = modemStatusPoller;
+        if(poller != null)
+            poller.countControlTransfers(count);
+    }
+
     private int setControlCommand(int request, int value, byte[] data)
     {
         int dataLength = 0;
@@ -0,0 +1,129 @@
+package com.felhr.usbserial;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest value wins command channel for real time control. Every command is sent with a key and
+ * a newer command replaces a still unsent one with the same key, keeping its turn. Stale commands
+ * are never written when the producer is faster than the port.
+ * <p>
+ * The device writer, its write thread or a shared {@link SerialIoScheduler}, drains the channel, at
+ * most {@link #setMaxRate(int)} commands per second. Commands taken from the channel go through the regular write buffer, so they keep their
+ * order with the rest of the writes.
+ */
+public class CommandChannel
+{
+    private final Runnable onSend; // Wakes up whoever drains the channel
+
+    // Unsent command per key, in the order the keys were first sent
+    private final LinkedHashMap<Object, byte[]> pending = new LinkedHashMap<>();
+
+    private long minIntervalNanos;
+    private long lastSent;
+    private boolean sentBefore;
+
+    private long submittedCommands;
+    private long conflatedCommands;
+    private long sentCommands;
+
+    CommandChannel(Runnable onSend)
+    {
+        this.onSend = onSend;
+    }
+
+    /**
+     * Queue a command, replacing the unsent one with the same key if any.
+     *
+     * @return true if an older command was replaced
+     */
+    public boolean send(Object key, byte[] command)
+    {
+        if(key == null || command == null)
+            throw new NullPointerException("key and command must not be null");
+
+        boolean conflated;
+        synchronized(this)
+        {
+            conflated = pending.put(key, command) != null;
+            submittedCommands++;
+            if(conflated)
+                conflatedCommands++;
+        }
+        onSend.run();
+        return conflated;
+    }
+
+    /**
+     * Limit how many commands per second are handed to the write buffer.
+     *
+     * @param commandsPerSecond maximum rate, 0 (default) for no limit
+     */
+    public synchronized void setMaxRate(int commandsPerSecond)
+    {
+        if(commandsPerSecond < 0)
+            throw new IllegalArgumentException("Rate must not be negative");
+        minIntervalNanos = commandsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / commandsPerSecond;
+    }
+
+    /**
+     * Drop every unsent command
+     */
+    public synchronized void clear()
+    {
+        pending.clear();
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    public synchronized long getSubmittedCount()
+    {
+        return submittedCommands;
+    }
+
+    // Commands replaced by a newer one before being sent
+    public synchronized long getConflatedCount()
+    {
+        return conflatedCommands;
+    }
+
+    public synchronized long getSentCount()
+    {
+        return sentCommands;
+    }
+
+    /*
+     * Next command if the rate allows sending one at now, null otherwise
+     */
+    synchronized byte[] poll(long now)
+    {
+        if(pending.isEmpty() || (sentBefore && now - lastSent < minIntervalNanos))
+            return null;
+
+        Iterator<Map.Entry<Object, byte[]>> iterator = pending.entrySet().iterator();
+        byte[] command = iterator.next().getValue();
+        iterator.remove();
+
+        lastSent = now;
+        sentBefore = true;
+        sentCommands++;
+        return command;
+    }
+
+    /*
+     * Nanoseconds until the next pending command can be sent, 0 if there is nothing pending
+     */
+    synchronized long getDelay(long now)
+    {
+        if(pending.isEmpty())
+            return 0;
+        if(!sentBefore)
+            return 1;
+        return Math.max(1, lastSent + minIntervalNanos - now);
+    }
+}
@@ -1,6 +1,7 @@
 package com.felhr.usbserial;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.annotation.SuppressLint;
 import android.hardware.usb.UsbConstants;
@@ -74,6 +75,10 @@ public class FTDISerialDevice extends UsbSerialDevice
     private static final int FTDI_SET_FLOW_CTRL_DEFAULT = 0x0000;
     private static final byte[] EMPTY_BYTE_ARRAY = {};
 
+    // Every IN packet starts with a modem status and a line status byte
+    private static final int FTDI_PACKET_SIZE = 64;
+    private static final int FTDI_HEADER_SIZE = 2;
+
     private int currentSioSetData = 0x0000;
 
     /**
@@ -95,6 +100,9 @@ public class FTDISerialDevice extends UsbSerialDevice
 
     public FTDIUtilities ftdiUtilities;
 
+    // Transfer buffer of the last syncRead, concurrent reads get one of their own
+    private final AtomicReference<byte[]> syncReadPool = new AtomicReference<>();
+
     private UsbSerialInterface.UsbParityCallback parityCallback;
     private UsbSerialInterface.UsbFrameCallback frameCallback;
     private UsbSerialInterface.UsbOverrunCallback overrunCallback;
@@ -187,6 +195,7 @@ public class FTDISerialDevice extends UsbSerialDevice
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT3, 0);
         setControlCommand(FTDI_SIO_MODEM_CTRL, FTDI_SET_MODEM_CTRL_DEFAULT4, 0);
         currentSioSetData = 0x0000;
+        killWriteThread(); // Only running if a command channel was used
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -493,46 +502,97 @@ public class FTDISerialDevice extends UsbSerialDevice
     static byte[] adaptArray(byte[] ftdiData)
     {
         int length = ftdiData.length;
-        if(length > 64)
-        {
-            int n = 1;
-            int p = 64;
-            // Precalculate length without FTDI headers
-            while(p < length)
-            {
-                n++;
-                p = n*64;
-            }
-            int realLength = length - n*2;
-            byte[] data = new byte[realLength];
-            copyData(ftdiData, data);
-            return data;
-        }
-        else if (length == 2) // special case optimization that returns the same instance.
+        if (length == 2) // special case optimization that returns the same instance.
         {
             return EMPTY_BYTE_ARRAY;
         }
-        else
+
+        byte[] data = new byte[getPayloadLength(length)];
+        copyPayload(ftdiData, 0, length, data, 0, null);
+        return data;
+    }
+
+    // Remove FTDI headers in place. Payload is compacted to offset and its length returned
+    static int adaptArray(byte[] ftdiData, int offset, int length)
+    {
+        return copyPayload(ftdiData, offset, length, ftdiData, offset, null);
+    }
+
+    // Remove FTDI headers in place. Payload is compacted to the start of the buffer and its length returned
+    static int adaptBuffer(ByteBuffer buffer, int length)
+    {
+        return copyPayload(buffer, length, null);
+    }
+
+    // Length of the data carried by length bytes of IN packets
+    static int getPayloadLength(int length)
+    {
+        return (length / FTDI_PACKET_SIZE) * (FTDI_PACKET_SIZE - FTDI_HEADER_SIZE)
+                + Math.max(0, length % FTDI_PACKET_SIZE - FTDI_HEADER_SIZE);
+    }
+
+    /*
+     * Copy the data of length bytes of IN packets without their headers, dst may be src itself.
+     * Every packet starts with a modem status and a line status byte, when utilities is given they are
+     * checked in the same pass: latest modem status and line errors of any packet.
+     */
+    private static int copyPayload(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset,
+                                   FTDIUtilities utilities)
+    {
+        int dstPos = dstOffset;
+        byte modemStatus = 0;
+        byte lineStatus = 0;
+        for(int packet=0;packet<length;packet+=FTDI_PACKET_SIZE)
         {
-            return Arrays.copyOfRange(ftdiData, 2, length);
+            int srcPos = srcOffset + packet;
+            int end = srcOffset + Math.min(packet + FTDI_PACKET_SIZE, length);
+            modemStatus = src[srcPos];
+            if(srcPos + 1 < end)
+                lineStatus |= src[srcPos + 1];
+
+            int payload = end - srcPos - FTDI_HEADER_SIZE;
+            if(payload > 0)
+            {
+                System.arraycopy(src, srcPos + FTDI_HEADER_SIZE, dst, dstPos, payload);
+                dstPos += payload;
+            }
         }
+
+        if(utilities != null && length > 0)
+            utilities.checkModemStatus(modemStatus, lineStatus);
+        return dstPos - dstOffset;
     }
 
-    // Copy data without FTDI headers
-    private static void copyData(byte[] src, byte[] dst)
+    private static int copyPayload(ByteBuffer buffer, int length, FTDIUtilities utilities)
     {
-        int srcPos = 2, dstPos = 0;
-        while(srcPos - 2 <= src.length - 64)
+        if(buffer.hasArray())
         {
-            System.arraycopy(src, srcPos, dst, dstPos, 62);
-            srcPos += 64;
-            dstPos += 62;
-        }
-        int remaining = src.length - srcPos + 2;
-        if (remaining > 0)
+            byte[] array = buffer.array();
+            return copyPayload(array, buffer.arrayOffset(), length, array, buffer.arrayOffset(), utilities);
+        }
+
+        // Direct buffers are compacted with bulk copies, one per packet
+        ByteBuffer src = buffer.duplicate();
+        ByteBuffer dst = buffer.duplicate();
+        src.clear();
+        dst.clear();
+        byte modemStatus = 0;
+        byte lineStatus = 0;
+        for(int srcPos=0;srcPos<length;srcPos+=FTDI_PACKET_SIZE)
         {
-            System.arraycopy(src, srcPos, dst, dstPos, remaining - 2);
+            int end = Math.min(srcPos + FTDI_PACKET_SIZE, length);
+            modemStatus = buffer.get(srcPos);
+            if(srcPos + 1 < end)
+                lineStatus |= buffer.get(srcPos + 1);
+
+            src.limit(end);
+            src.position(Math.min(srcPos + FTDI_HEADER_SIZE, end));
+            dst.put(src);
         }
+
+        if(utilities != null && length > 0)
+            utilities.checkModemStatus(modemStatus, lineStatus);
+        return dst.position();
     }
 
     public class FTDIUtilities
@@ -540,25 +600,26 @@ public class FTDISerialDevice extends UsbSerialDevice
         // Special treatment needed to FTDI devices
         public byte[] adaptArray(byte[] ftdiData)
         {
-            int length = ftdiData.length;
-            if(length > 64)
-            {
-                int n = 1;
-                int p = 64;
-                // Precalculate length without FTDI headers
-                while(p < length)
-                {
-                    n++;
-                    p = n*64;
-                }
-                int realLength = length - n*2;
-                byte[] data = new byte[realLength];
-                copyData(ftdiData, data);
-                return data;
-            }else
-            {
-                return Arrays.copyOfRange(ftdiData, 2, length);
-            }
+            return FTDISerialDevice.adaptArray(ftdiData);
+        }
+
+        /**
+         * Remove the headers of length bytes of IN packets in place and check the modem status
+         * in the same pass.
+         *
+         * @return length of the data, compacted at offset
+         */
+        public int stripHeaders(byte[] data, int offset, int length)
+        {
+            return copyPayload(data, offset, length, data, offset, this);
+        }
+
+        /**
+         * Same as {@link #stripHeaders(byte[], int, int)} for length bytes at the start of buffer
+         */
+        public int stripHeaders(ByteBuffer buffer, int length)
+        {
+            return copyPayload(buffer, length, this);
         }
 
         public void checkModemStatus(byte[] data)
@@ -566,8 +627,21 @@ public class FTDISerialDevice extends UsbSerialDevice
             if(data.length == 0) // Safeguard for zero length arrays
                 return;
 
-            boolean cts = (data[0] & 0x10) == 0x10;
-            boolean dsr = (data[0] & 0x20) == 0x20;
+            checkModemStatus(data[0], data.length > 1 ? data[1] : 0);
+        }
+
+        public void checkModemStatus(ByteBuffer data)
+        {
+            if(data.limit() == 0) // Safeguard for zero length buffers
+                return;
+
+            checkModemStatus(data.get(0), data.limit() > 1 ? data.get(1) : 0);
+        }
+
+        private void checkModemStatus(byte modemStatus, byte lineStatus)
+        {
+            boolean cts = (modemStatus & 0x10) == 0x10;
+            boolean dsr = (modemStatus & 0x20) == 0x20;
 
             if(firstTime) // First modem status received
             {
@@ -598,33 +672,30 @@ public class FTDISerialDevice extends UsbSerialDevice
                 dsrCallback.onDSRChanged(dsrState);
             }
 
-            if(parityCallback != null) // Parity error checking
+            if((lineStatus & 0x04) == 0x04) // Parity error checking
             {
-                if((data[1] & 0x04) == 0x04)
-                {
+                getMetrics().onParityError();
+                if(parityCallback != null)
                     parityCallback.onParityError();
-                }
             }
 
-            if(frameCallback != null) // Frame error checking
+            if((lineStatus & 0x08) == 0x08) // Frame error checking
             {
-                if((data[1] & 0x08) == 0x08)
-                {
+                getMetrics().onFramingError();
+                if(frameCallback != null)
                     frameCallback.onFramingError();
-                }
             }
 
-            if(overrunCallback != null) // Overrun error checking
+            if((lineStatus & 0x02) == 0x02) // Overrun error checking
             {
-                if((data[1] & 0x02) == 0x02)
-                {
+                getMetrics().onOverrunError();
+                if(overrunCallback != null)
                     overrunCallback.onOverrunError();
-                }
             }
 
             if(breakCallback != null) // Break interrupt checking
             {
-                if((data[1] & 0x10) == 0x10)
+                if((lineStatus & 0x10) == 0x10)
                 {
                     breakCallback.onBreakInterrupt();
                 }
@@ -635,9 +706,16 @@ public class FTDISerialDevice extends UsbSerialDevice
     @Override
     public int syncRead(byte[] buffer, int timeout)
     {
-        long beginTime = System.currentTimeMillis();
-        long stopTime = beginTime + timeout;
+        if(buffer == null)
+        {
+            return asyncMode ? -1 : 0;
+        }
 
+        return syncRead(buffer, 0, buffer.length, timeout);
+    }
+
+    @Override
+    public int syncRead(byte[] buffer, int offset, int length, int timeout) {
         if(asyncMode)
         {
             return -1;
@@ -648,13 +726,41 @@ public class FTDISerialDevice extends UsbSerialDevice
             return 0;
         }
 
-        int n = buffer.length / 62;
-        if(buffer.length % 62 != 0)
+        byte[] tempBuffer = takeSyncReadBuffer(length);
+        int readen = readPayload(tempBuffer, length, timeout);
+        System.arraycopy(tempBuffer, 0, buffer, offset, readen);
+        syncReadPool.set(tempBuffer);
+        return readen;
+    }
+
+    /**
+     * Direct buffers get the data without the headers straight from the transfer buffer
+     */
+    @Override
+    public int syncRead(ByteBuffer buffer, int timeout)
+    {
+        if(asyncMode || buffer == null || buffer.hasArray() || !buffer.hasRemaining())
         {
-            n++;
+            return super.syncRead(buffer, timeout);
         }
 
-        byte[] tempBuffer = new byte[buffer.length + n * 2];
+        int length = buffer.remaining();
+        byte[] tempBuffer = takeSyncReadBuffer(length);
+        int readen = readPayload(tempBuffer, length, timeout);
+        buffer.put(tempBuffer, 0, readen);
+        syncReadPool.set(tempBuffer);
+        return readen;
+    }
+
+    /*
+     * Read up to length bytes of data, without headers, to the start of tempBuffer.
+     * Returns its length, 0 if none arrived in time.
+     */
+    private int readPayload(byte[] tempBuffer, int length, int timeout)
+    {
+        long beginTime = System.currentTimeMillis();
+        long stopTime = beginTime + timeout;
+        int transferLength = transferLength(length);
 
         int readen = 0;
 
@@ -670,80 +776,41 @@ public class FTDISerialDevice extends UsbSerialDevice
                 }
             }
 
-            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, tempBuffer.length, timeLeft);
+            long start = System.nanoTime();
+            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, transferLength, timeLeft);
+            long latency = System.nanoTime() - start;
+            if(numberBytes < 0 && !isOpen)
+                break; // Closed, the transfer would keep failing until the deadline
 
             if(numberBytes > 2) // Data received
             {
-                byte[] newBuffer = this.ftdiUtilities.adaptArray(tempBuffer);
-                System.arraycopy(newBuffer, 0, buffer, 0, buffer.length);
-
-                int p = numberBytes / 64;
-                if(numberBytes % 64 != 0)
-                {
-                    p++;
-                }
-                readen = numberBytes - p * 2;
+                readen = Math.min(ftdiUtilities.stripHeaders(tempBuffer, 0, numberBytes), length);
             }
+            getMetrics().onRead(fullReadLength(inEndpoint, length), numberBytes < 0 ? numberBytes : readen, latency);
         }while(readen <= 0);
 
         return readen;
     }
 
-    @Override
-    public int syncRead(byte[] buffer, int offset, int length, int timeout) {
-
-        long beginTime = System.currentTimeMillis();
-        long stopTime = beginTime + timeout;
-
-        if(asyncMode)
-        {
-            return -1;
-        }
-
-        if(buffer == null)
-        {
-            return 0;
-        }
-
+    // Room for length bytes of data and their headers
+    private static int transferLength(int length)
+    {
         int n = length / 62;
         if(length % 62 != 0)
         {
             n++;
         }
+        return length + n * 2;
+    }
 
-        byte[] tempBuffer = new byte[length + n * 2];
-
-        int readen = 0;
-
-        do
-        {
-            int timeLeft = 0;
-            if(timeout > 0)
-            {
-                timeLeft = (int) (stopTime - System.currentTimeMillis());
-                if (timeLeft <= 0)
-                {
-                    break;
-                }
-            }
-
-            int numberBytes = connection.bulkTransfer(inEndpoint, tempBuffer, tempBuffer.length, timeLeft);
-
-            if(numberBytes > 2) // Data received
-            {
-                byte[] newBuffer = this.ftdiUtilities.adaptArray(tempBuffer);
-                System.arraycopy(newBuffer, 0, buffer, offset, length);
-
-                int p = numberBytes / 64;
-                if(numberBytes % 64 != 0)
-                {
-                    p++;
-                }
-                readen = numberBytes - p * 2;
-            }
-        }while(readen <= 0);
-
-        return readen;
+    // Reused by the next syncRead call once returned to the pool, grown when a longer read is requested
+    private byte[] takeSyncReadBuffer(int length)
+    {
+        int transferLength = transferLength(length);
+        byte[] tempBuffer = syncReadPool.getAndSet(null);
+        if(tempBuffer == null || tempBuffer.length < transferLength)
+            tempBuffer = new byte[transferLength];
+        return tempBuffer;
     }
 
     private static final byte[] skip = new byte[2];
@@ -0,0 +1,244 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Adaptive polling of the modem and line status of devices that only report it through control
+ * transfers (CP210x, CH34x). It polls fast while lines are changing, doubles the interval on every
+ * poll without changes up to a maximum and stops polling while nobody listens.
+ * It runs on its own thread or, if the device has one, on a shared SerialIoScheduler.
+ */
+class ModemStatusPoller
+{
+    static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+    static final long MAX_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    /*
+     * Lines of a device
+     */
+    interface Lines
+    {
+        // False while there is no callback to report changes to
+        boolean isPollNeeded();
+
+        // Poll the lines once and run the callbacks, true if something changed
+        boolean pollLines();
+    }
+
+    private final Lines lines;
+    private final long minInterval;
+    private final long maxInterval;
+
+    private final PollThread thread = new PollThread();
+
+    private long interval; // Guarded by this
+    private SerialIoScheduler scheduler; // Guarded by this, null when running on its own thread
+    private ScheduledFuture<?> nextPoll; // Guarded by this
+    private int generation; // Guarded by this, only the last scheduled poll keeps polling
+    private boolean running; // Guarded by this
+    private int wakeUps; // Guarded by this, a poll does not back off past a wake up made meanwhile
+
+    private final AtomicLong controlTransfers = new AtomicLong();
+    private boolean windowStarted; // Guarded by this
+    private long windowStart; // Guarded by this
+    private long windowTransfers; // Guarded by this
+    private double transferRate; // Guarded by this
+
+    ModemStatusPoller(Lines lines)
+    {
+        this(lines, MIN_INTERVAL, MAX_INTERVAL);
+    }
+
+    ModemStatusPoller(Lines lines, long minInterval, long maxInterval)
+    {
+        this.lines = lines;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.interval = minInterval;
+    }
+
+    /*
+     * Start polling. It has no effect if already started.
+     */
+    void start(SerialIoScheduler scheduler)
+    {
+        synchronized(this)
+        {
+            if(running)
+                return;
+            running = true;
+            interval = minInterval;
+            this.scheduler = scheduler;
+            if(scheduler != null)
+            {
+                schedule(0);
+                return;
+            }
+        }
+        thread.start();
+    }
+
+    void stop()
+    {
+        synchronized(this)
+        {
+            running = false;
+            if(nextPoll != null)
+                nextPoll.cancel(false);
+            nextPoll = null;
+            notifyAll();
+        }
+        thread.stopThread();
+    }
+
+    /*
+     * A callback was registered or the lines are expected to change, poll now and fast again
+     */
+    synchronized void wakeUp()
+    {
+        interval = minInterval;
+        wakeUps++;
+        if(!running)
+            return;
+
+        if(scheduler != null)
+        {
+            if(nextPoll != null)
+                nextPoll.cancel(false);
+            schedule(0);
+        }else
+        {
+            notifyAll();
+        }
+    }
+
+    /*
+     * Lines report here every control transfer issued to poll them
+     */
+    void countControlTransfers(int count)
+    {
+        controlTransfers.addAndGet(count);
+        long now = System.nanoTime();
+        synchronized(this)
+        {
+            // A new window after being idle, the old one says nothing about the current rate
+            if(!windowStarted || now - windowStart >= 2 * RATE_WINDOW)
+            {
+                windowStarted = true;
+                windowStart = now;
+                windowTransfers = 0;
+            }
+
+            windowTransfers += count;
+            long elapsed = now - windowStart;
+            if(elapsed >= RATE_WINDOW)
+            {
+                transferRate = windowTransfers * (double) RATE_WINDOW / elapsed;
+                windowStart = now;
+                windowTransfers = 0;
+            }
+        }
+    }
+
+    long getControlTransfers()
+    {
+        return controlTransfers.get();
+    }
+
+    /*
+     * Control transfers per second over the last second with polls, 0 if it has been idle since
+     */
+    synchronized double getControlTransferRate()
+    {
+        if(!windowStarted || System.nanoTime() - windowStart >= 2 * RATE_WINDOW)
+            return 0;
+        return transferRate;
+    }
+
+    synchronized long getInterval()
+    {
+        return interval;
+    }
+
+    private void waitAndPoll()
+    {
+        synchronized(this)
+        {
+            try
+            {
+                if(!lines.isPollNeeded())
+                    wait(); // Until a callback is registered
+                else
+                    TimeUnit.NANOSECONDS.timedWait(this, interval);
+            } catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(!running)
+                return;
+        }
+        pollOnce();
+    }
+
+    private void pollScheduled(int scheduled)
+    {
+        synchronized(this)
+        {
+            // Replaced by a later schedule() call
+            if(!running || scheduled != generation)
+                return;
+        }
+
+        // Suspended until wakeUp()
+        if(!lines.isPollNeeded())
+            return;
+
+        pollOnce();
+        synchronized(this)
+        {
+            if(running && scheduled == generation)
+                schedule(interval);
+        }
+    }
+
+    private void pollOnce()
+    {
+        if(!lines.isPollNeeded())
+            return;
+
+        int seen;
+        synchronized(this)
+        {
+            seen = wakeUps;
+        }
+        boolean changed = lines.pollLines();
+        synchronized(this)
+        {
+            // The interval reset by a wake up during the poll is kept
+            if(changed || wakeUps != seen)
+                interval = minInterval;
+            else
+                interval = Math.min(interval * 2, maxInterval);
+        }
+    }
+
+    private void schedule(long delay)
+    {
+        int scheduled = ++generation;
+        nextPoll = scheduler.schedule(() -> pollScheduled(scheduled), delay);
+    }
+
+    private class PollThread extends AbstractWorkerThread
+    {
+        @Override
+        void doRun()
+        {
+            waitAndPoll();
+        }
+    }
+}
@@ -118,6 +118,7 @@ public class PL2303SerialDevice extends UsbSerialDevice
     @Override
     public void syncClose()
     {
+        killWriteThread(); // Only running if a command channel was used
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -0,0 +1,663 @@
+package com.felhr.usbserial;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Write buffer shared by any number of writers and a single consumer (the write thread).
+ * Every write is copied into segments taken from a lock-free pool and the chain is appended
+ * to a lock-free queue in one step, so concurrent writes never interleave. The consumer
+ * coalesces as many pending writes as fit in its bulk transfer buffer and gives the segments
+ * back to the pool, so there are no allocations once the pool is warm.
+ *
+ * Writes can carry a WriteFuture. The consumer records where each of them ends in the stream of
+ * consumed bytes and they are completed as bulk transfers report those bytes as transferred.
+ */
+class PooledWriteBuffer
+{
+    static final int SEGMENT_SIZE = 512;
+    static final int POOL_SIZE = 128;
+
+    private final SegmentPool pool = new SegmentPool(POOL_SIZE);
+    private final AtomicReference<Segment> tail;
+    private Segment head; // Only touched by the consumer, always an already consumed segment
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+
+    private volatile long consumedBytes; // Only written by the consumer
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<WriteFuture> completions = new ConcurrentLinkedQueue<>();
+    private volatile long failedFrom;
+    private volatile long failedTo;
+
+    private volatile long capacity = Long.MAX_VALUE;
+    private volatile int policy = UsbSerialInterface.WRITE_BUFFER_BLOCK;
+
+    private volatile Thread parkedConsumer;
+    private volatile boolean wakeUpRequested;
+    private final Object fullLock = new Object(); // Only used by writers blocked on a full buffer
+    private final AtomicInteger blockedProducers = new AtomicInteger();
+    private final Object flushLock = new Object(); // Only used by threads waiting on flush
+    private volatile int flushWaiters;
+
+    PooledWriteBuffer()
+    {
+        Segment stub = new Segment();
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    void setCapacity(long capacity, int policy)
+    {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.policy = policy;
+        this.capacity = capacity;
+        synchronized(fullLock)
+        {
+            fullLock.notifyAll();
+        }
+    }
+
+    long getCapacity()
+    {
+        return capacity;
+    }
+
+    long getPendingBytes()
+    {
+        return pendingBytes.get();
+    }
+
+    int getPendingWrites()
+    {
+        return pendingWrites.get();
+    }
+
+    long getDroppedWrites()
+    {
+        return droppedWrites.get();
+    }
+
+    long getRejectedWrites()
+    {
+        return rejectedWrites.get();
+    }
+
+    /*
+     * Returns false if the write was rejected (WRITE_BUFFER_FAIL) or the writer was interrupted while blocked
+     */
+    boolean put(byte[] src, int offset, int length)
+    {
+        return put(src, offset, length, null);
+    }
+
+    boolean put(byte[] src, int offset, int length, WriteFuture future)
+    {
+        return put(src, offset, null, length, future);
+    }
+
+    /*
+     * Same as put(byte[], int, int, WriteFuture) taking the remaining bytes of src, its position
+     * is advanced past the bytes written
+     */
+    boolean put(ByteBuffer src, WriteFuture future)
+    {
+        return put(null, 0, src, src.remaining(), future);
+    }
+
+    private boolean put(byte[] srcArray, int offset, ByteBuffer srcBuffer, int length, WriteFuture future)
+    {
+        if(length == 0)
+        {
+            if(future != null)
+                future.complete(true);
+            return true;
+        }
+
+        long limit = capacity;
+        if(limit != Long.MAX_VALUE && policy == UsbSerialInterface.WRITE_BUFFER_BLOCK && length > limit)
+        {
+            // It would never fit, it goes in pieces and only those are kept together
+            while(length > 0)
+            {
+                int chunk = (int) Math.min(length, limit);
+                if(!put(srcArray, offset, srcBuffer, chunk, chunk == length ? future : null))
+                    return false;
+                offset += chunk;
+                length -= chunk;
+            }
+            return true;
+        }
+
+        if(!reserve(length))
+            return false;
+
+        Segment first = pool.take();
+        Segment last = first;
+        int copied = Math.min(length, SEGMENT_SIZE);
+        copy(srcArray, offset, srcBuffer, first, copied);
+        while(copied < length)
+        {
+            Segment segment = pool.take();
+            int n = Math.min(length - copied, SEGMENT_SIZE);
+            copy(srcArray, offset + copied, srcBuffer, segment, n);
+            last.next = segment;
+            last = segment;
+            copied += n;
+        }
+        publish(first, last, future);
+        return true;
+    }
+
+    /*
+     * Gathering put: the remaining bytes of every buffer in srcs, packed one after the other into
+     * the segments as a single write. Their positions are advanced past the bytes written.
+     */
+    boolean put(ByteBuffer[] srcs, WriteFuture future)
+    {
+        long total = 0;
+        for(ByteBuffer src : srcs)
+        {
+            total += src.remaining();
+        }
+
+        long limit = capacity;
+        if(total > Integer.MAX_VALUE
+                || (limit != Long.MAX_VALUE && policy == UsbSerialInterface.WRITE_BUFFER_BLOCK && total > limit))
+        {
+            // It would never fit, the buffers go one by one
+            for(int i=0;i<=srcs.length-1;i++)
+            {
+                if(!put(srcs[i], i == srcs.length - 1 ? future : null))
+                    return false;
+            }
+            return true;
+        }
+
+        int length = (int) total;
+        if(length == 0)
+        {
+            if(future != null)
+                future.complete(true);
+            return true;
+        }
+
+        if(!reserve(length))
+            return false;
+
+        Segment first = pool.take();
+        Segment last = first;
+        for(ByteBuffer src : srcs)
+        {
+            while(src.hasRemaining())
+            {
+                if(last.length == SEGMENT_SIZE)
+                {
+                    Segment segment = pool.take();
+                    last.next = segment;
+                    last = segment;
+                }
+                int n = Math.min(src.remaining(), SEGMENT_SIZE - last.length);
+                src.get(last.data, last.length, n);
+                last.length += n;
+            }
+        }
+        publish(first, last, future);
+        return true;
+    }
+
+    // Append a chain built privately, it becomes visible to the consumer all at once
+    private void publish(Segment first, Segment last, WriteFuture future)
+    {
+        first.writeStart = true;
+        last.writeEnd = true;
+        last.future = future;
+
+        pendingWrites.incrementAndGet();
+        Segment previous = tail.getAndSet(last);
+        previous.next = first;
+
+        Thread consumer = parkedConsumer;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /*
+     * Copies pending writes into dst, blocking while there are none. Returns the number of bytes
+     * copied, 0 if the consumer thread was interrupted or woken up.
+     */
+    int get(byte[] dst)
+    {
+        if(!awaitData(0))
+            return 0;
+        return poll(dst);
+    }
+
+    /*
+     * Same as get(byte[]) but waits at most timeoutNanos, 0 if nothing was written meanwhile
+     */
+    int get(byte[] dst, long timeoutNanos)
+    {
+        if(!awaitData(timeoutNanos))
+            return 0;
+        return poll(dst);
+    }
+
+    /*
+     * Same as get(byte[]) but copying into a buffer, from its position up to its limit
+     */
+    int get(ByteBuffer dst)
+    {
+        return get(dst, 0);
+    }
+
+    int get(ByteBuffer dst, long timeoutNanos)
+    {
+        if(!awaitData(timeoutNanos))
+            return 0;
+        return poll(dst);
+    }
+
+    /*
+     * Non blocking version of get(byte[])
+     */
+    int poll(byte[] dst)
+    {
+        dropOldest();
+        return drain(dst, null, dst.length);
+    }
+
+    /*
+     * Non blocking version of get(ByteBuffer)
+     */
+    int poll(ByteBuffer dst)
+    {
+        dropOldest();
+        return drain(null, dst, dst.remaining());
+    }
+
+    /*
+     * Bulk transfer result for bytes previously handed to the consumer, in the same order
+     */
+    void onTransferred(int length, boolean success)
+    {
+        long transferred = transferredBytes.addAndGet(length);
+        if(!success)
+        {
+            failedFrom = transferred - length;
+            failedTo = transferred;
+        }
+
+        WriteFuture future;
+        while((future = completions.peek()) != null && future.endOffset <= transferred)
+        {
+            completions.poll();
+            long start = future.endOffset - future.getLength();
+            future.complete(!(failedFrom < future.endOffset && failedTo > start));
+        }
+
+        if(flushWaiters > 0)
+        {
+            synchronized(flushLock)
+            {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Blocks until every write accepted so far has been transferred, or dropped. Returns false
+     * if that did not happen within timeoutNanos.
+     */
+    boolean flush(long timeoutNanos) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized(flushLock)
+        {
+            flushWaiters++;
+            try
+            {
+                while(!isFlushed())
+                {
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(flushLock, left);
+                }
+                return true;
+            } finally
+            {
+                flushWaiters--;
+            }
+        }
+    }
+
+    private boolean isFlushed()
+    {
+        // Consumed bytes are counted before they are released from pending bytes
+        if(pendingBytes.get() > 0)
+            return false;
+        return transferredBytes.get() >= consumedBytes;
+    }
+
+    long getTransferredBytes()
+    {
+        return transferredBytes.get();
+    }
+
+    private int drain(byte[] dstArray, ByteBuffer dstBuffer, int room)
+    {
+        int copied = 0;
+        Segment next = head.next;
+        while(next != null && copied < room)
+        {
+            int n = Math.min(next.length - next.position, room - copied);
+            if(dstArray != null)
+                System.arraycopy(next.data, next.position, dstArray, copied, n);
+            else
+                dstBuffer.put(next.data, next.position, n);
+            next.position += n;
+            copied += n;
+
+            if(next.position < next.length)
+                break;
+
+            if(next.writeEnd)
+            {
+                pendingWrites.decrementAndGet();
+                if(next.future != null)
+                {
+                    next.future.endOffset = consumedBytes + copied;
+                    completions.add(next.future);
+                }
+            }
+            advance(next);
+            next = head.next;
+        }
+
+        if(copied > 0)
+        {
+            consumedBytes += copied;
+            release(copied);
+        }
+        return copied;
+    }
+
+    boolean isEmpty()
+    {
+        return head.next == null;
+    }
+
+    /*
+     * Makes the consumer return from get() with nothing if it is waiting for data, or from
+     * the next call otherwise
+     */
+    void wakeUp()
+    {
+        wakeUpRequested = true;
+        Thread consumer = parkedConsumer;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    private static void copy(byte[] srcArray, int offset, ByteBuffer srcBuffer, Segment segment, int length)
+    {
+        if(srcArray != null)
+            System.arraycopy(srcArray, offset, segment.data, 0, length);
+        else
+            srcBuffer.get(segment.data, 0, length);
+        segment.length = length;
+    }
+
+    private boolean awaitData(long timeoutNanos)
+    {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Thread current = Thread.currentThread();
+        while(head.next == null)
+        {
+            if(wakeUpRequested)
+            {
+                wakeUpRequested = false;
+                return false;
+            }
+            if(current.isInterrupted())
+                return false;
+
+            parkedConsumer = current;
+            if(head.next == null && !wakeUpRequested)
+            {
+                if(timeoutNanos == 0)
+                {
+                    LockSupport.park(this);
+                }else
+                {
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0)
+                    {
+                        parkedConsumer = null;
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+            }
+            parkedConsumer = null;
+        }
+        return true;
+    }
+
+    private boolean reserve(int length)
+    {
+        long limit = capacity;
+        if(limit == Long.MAX_VALUE || policy == UsbSerialInterface.WRITE_BUFFER_DROP_OLDEST)
+        {
+            // Writes beyond capacity in drop oldest mode are trimmed by the consumer
+            pendingBytes.addAndGet(length);
+            return true;
+        }
+
+        if(tryReserve(length, limit))
+            return true;
+
+        if(policy == UsbSerialInterface.WRITE_BUFFER_FAIL)
+        {
+            rejectedWrites.incrementAndGet();
+            return false;
+        }
+
+        blockedProducers.incrementAndGet();
+        try
+        {
+            synchronized(fullLock)
+            {
+                while(!tryReserve(length, capacity))
+                {
+                    fullLock.wait();
+                }
+            }
+            return true;
+        } catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally
+        {
+            blockedProducers.decrementAndGet();
+        }
+    }
+
+    private boolean tryReserve(int length, long limit)
+    {
+        while(true)
+        {
+            long pending = pendingBytes.get();
+            if(pending + length > limit)
+                return false;
+            if(pendingBytes.compareAndSet(pending, pending + length))
+                return true;
+        }
+    }
+
+    private void release(long bytes)
+    {
+        pendingBytes.addAndGet(-bytes);
+        if(blockedProducers.get() > 0)
+        {
+            synchronized(fullLock)
+            {
+                fullLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Drop whole writes, oldest first, until pending bytes fit in the capacity again.
+     * A write that was partially sent is never cut.
+     */
+    private void dropOldest()
+    {
+        if(policy != UsbSerialInterface.WRITE_BUFFER_DROP_OLDEST)
+            return;
+
+        long dropped = 0;
+        Segment next = head.next;
+        while(next != null && next.writeStart && next.position == 0
+                && pendingBytes.get() - dropped > capacity)
+        {
+            boolean end;
+            do
+            {
+                dropped += next.length;
+                end = next.writeEnd;
+                if(end && next.future != null)
+                    next.future.drop();
+                advance(next);
+                next = head.next;
+            }while(!end);
+
+            pendingWrites.decrementAndGet();
+            droppedWrites.incrementAndGet();
+        }
+
+        if(dropped > 0)
+            release(dropped);
+    }
+
+    private void advance(Segment next)
+    {
+        Segment consumed = head;
+        head = next;
+        pool.release(consumed);
+    }
+
+    private static final class Segment
+    {
+        final byte[] data = new byte[SEGMENT_SIZE];
+        int length;
+        int position;
+        boolean writeStart;
+        boolean writeEnd;
+        WriteFuture future;
+        volatile Segment next;
+
+        void reset()
+        {
+            future = null;
+            length = 0;
+            position = 0;
+            writeStart = false;
+            writeEnd = false;
+            next = null;
+        }
+    }
+
+    /*
+     * Bounded lock-free ring of free segments. It allocates when empty and lets the
+     * garbage collector take segments back when full.
+     */
+    private static final class SegmentPool
+    {
+        private final AtomicReferenceArray<Segment> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong enqueuePosition = new AtomicLong();
+        private final AtomicLong dequeuePosition = new AtomicLong();
+        private final int mask;
+
+        SegmentPool(int size)
+        {
+            int capacity = Integer.highestOneBit(size - 1) << 1;
+            slots = new AtomicReferenceArray<>(capacity);
+            sequences = new AtomicLongArray(capacity);
+            for(int i=0;i<=capacity-1;i++)
+            {
+                sequences.set(i, i);
+            }
+            mask = capacity - 1;
+        }
+
+        Segment take()
+        {
+            long position = dequeuePosition.get();
+            while(true)
+            {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - (position + 1);
+                if(difference == 0)
+                {
+                    if(dequeuePosition.compareAndSet(position, position + 1))
+                    {
+                        Segment segment = slots.get(index);
+                        slots.lazySet(index, null);
+                        sequences.lazySet(index, position + mask + 1);
+                        segment.reset();
+                        return segment;
+                    }
+                    position = dequeuePosition.get();
+                }else if(difference < 0)
+                {
+                    return new Segment();
+                }else
+                {
+                    position = dequeuePosition.get();
+                }
+            }
+        }
+
+        void release(Segment segment)
+        {
+            long position = enqueuePosition.get();
+            while(true)
+            {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if(difference == 0)
+                {
+                    if(enqueuePosition.compareAndSet(position, position + 1))
+                    {
+                        slots.lazySet(index, segment);
+                        sequences.lazySet(index, position + 1);
+                        return;
+                    }
+                    position = enqueuePosition.get();
+                }else if(difference < 0)
+                {
+                    return;
+                }else
+                {
+                    position = enqueuePosition.get();
+                }
+            }
+        }
+    }
+}
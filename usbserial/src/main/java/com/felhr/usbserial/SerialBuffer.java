@@ -1,28 +1,28 @@
 package com.felhr.usbserial;
 
-import java.io.EOFException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import okio.Buffer;
-
 public class SerialBuffer
 {
     static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     static final int MAX_BULK_BUFFER = 16 * 1024;
+    static final int DEFAULT_READ_REQUESTS = 4;
     private ByteBuffer readBuffer;
+    private ByteBuffer[] readBuffers; // One direct buffer per queued IN request
+    private ByteBuffer[] readViews; // Read-only views handed to UsbReadBufferCallback
 
-    private final SynchronizedBuffer writeBuffer;
+    private final PooledWriteBuffer writeBuffer;
     private byte[] readBufferCompatible; // Read buffer for android < 4.2
     private boolean debugging = false;
+    private volatile SerialTraceRecorder traceRecorder;
 
     public SerialBuffer(boolean version)
     {
-        writeBuffer = new SynchronizedBuffer();
+        writeBuffer = new PooledWriteBuffer();
         if(version)
         {
-            readBuffer = ByteBuffer.allocate(DEFAULT_READ_BUFFER_SIZE);
-
+            setReadBufferCount(DEFAULT_READ_REQUESTS);
         }else
         {
             readBufferCompatible = new byte[DEFAULT_READ_BUFFER_SIZE];
@@ -37,6 +37,48 @@ public class SerialBuffer
         debugging = value;
     }
 
+    /*
+     * Record what goes through the buffers in a binary trace, null to stop
+     */
+    public void setTraceRecorder(SerialTraceRecorder traceRecorder)
+    {
+        this.traceRecorder = traceRecorder;
+    }
+
+    public SerialTraceRecorder getTraceRecorder()
+    {
+        return traceRecorder;
+    }
+
+    /*
+     * Allocate a ring of read buffers, one for each IN request kept in flight
+     */
+    public void setReadBufferCount(int count)
+    {
+        synchronized(this)
+        {
+            if(count < 1)
+                throw new IllegalArgumentException("At least one read buffer is needed");
+
+            readBuffers = new ByteBuffer[count];
+            readViews = new ByteBuffer[count];
+            for(int i=0;i<=count-1;i++)
+            {
+                readBuffers[i] = ByteBuffer.allocateDirect(DEFAULT_READ_BUFFER_SIZE);
+                readViews[i] = readBuffers[i].asReadOnlyBuffer();
+            }
+            readBuffer = readBuffers[0];
+        }
+    }
+
+    public int getReadBufferCount()
+    {
+        synchronized(this)
+        {
+            return readBuffers != null ? readBuffers.length : 0;
+        }
+    }
+
     public ByteBuffer getReadBuffer()
     {
         synchronized(this)
@@ -45,14 +87,59 @@ public class SerialBuffer
         }
     }
 
+    public ByteBuffer getReadBuffer(int index)
+    {
+        synchronized(this)
+        {
+            return readBuffers[index];
+        }
+    }
+
+    /*
+     * Read-only view over the bytes received in the given buffer. Nothing is copied, so the view
+     * is only valid until the buffer is cleared and queued again.
+     */
+    public ByteBuffer getReadView(int index)
+    {
+        synchronized(this)
+        {
+            ByteBuffer view = readViews[index];
+            view.clear();
+            view.limit(readBuffers[index].position());
+            SerialTraceRecorder trace = traceRecorder;
+            if(trace != null)
+                trace.record(SerialTraceRecorder.READ, readBuffers[index], 0, view.limit());
+            if(debugging)
+            {
+                byte[] dst = new byte[view.remaining()];
+                view.get(dst);
+                view.position(0);
+                UsbSerialDebugger.printReadLogGet(dst, true);
+            }
+            return view;
+        }
+    }
 
     public byte[] getDataReceived()
+    {
+        return getDataReceived(readBuffer);
+    }
+
+    public byte[] getDataReceived(int index)
+    {
+        return getDataReceived(getReadBuffer(index));
+    }
+
+    private byte[] getDataReceived(ByteBuffer buffer)
     {
         synchronized(this)
         {
-            byte[] dst = new byte[readBuffer.position()];
-            readBuffer.position(0);
-            readBuffer.get(dst, 0, dst.length);
+            byte[] dst = new byte[buffer.position()];
+            buffer.position(0);
+            buffer.get(dst, 0, dst.length);
+            SerialTraceRecorder trace = traceRecorder;
+            if(trace != null)
+                trace.record(SerialTraceRecorder.READ, dst, 0, dst.length);
             if(debugging)
                 UsbSerialDebugger.printReadLogGet(dst, true);
             return dst;
@@ -67,77 +154,245 @@ public class SerialBuffer
         }
     }
 
+    public void clearReadBuffer(int index)
+    {
+        synchronized(this)
+        {
+            readBuffers[index].clear();
+        }
+    }
+
     public byte[] getWriteBuffer()
     {
-        return writeBuffer.get();
+        byte[] dst = new byte[MAX_BULK_BUFFER];
+        int length = getWriteBuffer(dst);
+        return length == dst.length ? dst : Arrays.copyOf(dst, length);
     }
 
-    public void putWriteBuffer(byte[]data)
+    /*
+     * Coalesce pending writes into dst without allocating. It blocks until there is something
+     * to write and returns the number of bytes copied, 0 if the calling thread was interrupted.
+     */
+    public int getWriteBuffer(byte[] dst)
     {
-        writeBuffer.put(data);
+        return getWriteBuffer(dst, 0);
     }
 
+    /*
+     * Same as getWriteBuffer(byte[]) waiting at most timeoutNanos, 0 waits with no limit
+     */
+    public int getWriteBuffer(byte[] dst, long timeoutNanos)
+    {
+        int length = timeoutNanos == 0 ? writeBuffer.get(dst) : writeBuffer.get(dst, timeoutNanos);
+        traceTaken(dst, length);
+        if(debugging && length > 0)
+            UsbSerialDebugger.printLogGet(Arrays.copyOf(dst, length), true);
+        return length;
+    }
 
-    public byte[] getBufferCompatible()
+    /*
+     * Same as getWriteBuffer(byte[]) but copying into dst from its position up to its limit,
+     * used to fill the direct buffers of queued OUT requests.
+     */
+    public int getWriteBuffer(ByteBuffer dst)
     {
-        return readBufferCompatible;
+        return getWriteBuffer(dst, 0);
     }
 
-    public byte[] getDataReceivedCompatible(int numberBytes)
+    public int getWriteBuffer(ByteBuffer dst, long timeoutNanos)
     {
-        return Arrays.copyOfRange(readBufferCompatible, 0, numberBytes);
+        int start = dst.position();
+        int length = writeBuffer.get(dst, timeoutNanos);
+        traceTaken(dst, start, length);
+        if(debugging && length > 0)
+        {
+            byte[] data = new byte[length];
+            ByteBuffer copy = dst.duplicate();
+            copy.position(start);
+            copy.get(data);
+            UsbSerialDebugger.printLogGet(data, true);
+        }
+        return length;
     }
 
-    private class SynchronizedBuffer
+    /*
+     * Non blocking versions of getWriteBuffer(), 0 if there is nothing to write
+     */
+    public int pollWriteBuffer(byte[] dst)
     {
-        private final Buffer buffer;
+        int length = writeBuffer.poll(dst);
+        traceTaken(dst, length);
+        if(debugging && length > 0)
+            UsbSerialDebugger.printLogGet(Arrays.copyOf(dst, length), true);
+        return length;
+    }
 
-        SynchronizedBuffer()
+    public int pollWriteBuffer(ByteBuffer dst)
+    {
+        int start = dst.position();
+        int length = writeBuffer.poll(dst);
+        traceTaken(dst, start, length);
+        if(debugging && length > 0)
         {
-            this.buffer = new Buffer();
+            byte[] data = new byte[length];
+            ByteBuffer copy = dst.duplicate();
+            copy.position(start);
+            copy.get(data);
+            UsbSerialDebugger.printLogGet(data, true);
         }
+        return length;
+    }
+
+    public boolean isWriteBufferEmpty()
+    {
+        return writeBuffer.isEmpty();
+    }
+
+    // A writer waiting for data returns right away, with nothing
+    public void wakeUpWriter()
+    {
+        writeBuffer.wakeUp();
+    }
 
-        synchronized void put(byte[] src)
+    public boolean putWriteBuffer(byte[] data)
+    {
+        return putWriteBuffer(data, null);
+    }
+
+    /*
+     * future, if not null, is completed once the last byte of data has been transferred
+     */
+    public boolean putWriteBuffer(byte[] data, WriteFuture future)
+    {
+        if(data == null || data.length == 0)
         {
-            if(src == null || src.length == 0) return;
+            if(future != null)
+                future.complete(true);
+            return true;
+        }
 
-            if(debugging)
-                UsbSerialDebugger.printLogPut(src, true);
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null)
+            trace.record(SerialTraceRecorder.WRITE_QUEUED, data, 0, data.length);
+        if(debugging)
+            UsbSerialDebugger.printLogPut(data, true);
+
+        return writeBuffer.put(data, 0, data.length, future);
+    }
 
-            buffer.write(src);
-            notify();
+    public boolean putWriteBuffer(ByteBuffer data, WriteFuture future)
+    {
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null && data.hasRemaining())
+            trace.record(SerialTraceRecorder.WRITE_QUEUED, data, data.position(), data.remaining());
+        if(debugging && data.hasRemaining())
+        {
+            byte[] copy = new byte[data.remaining()];
+            data.duplicate().get(copy);
+            UsbSerialDebugger.printLogPut(copy, true);
         }
 
-        synchronized byte[] get()
+        return writeBuffer.put(data, future);
+    }
+
+    // The remaining bytes of every buffer in data as a single write
+    public boolean putWriteBuffer(ByteBuffer[] data, WriteFuture future)
+    {
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null)
         {
-            if(buffer.size() ==  0)
+            for(ByteBuffer buffer : data)
             {
-                try
-                {
-                    wait();
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                    Thread.currentThread().interrupt();
-                }
+                if(buffer.hasRemaining())
+                    trace.record(SerialTraceRecorder.WRITE_QUEUED, buffer, buffer.position(), buffer.remaining());
             }
-            byte[] dst;
-            if(buffer.size() <= MAX_BULK_BUFFER){
-                dst = buffer.readByteArray();
-            }else{
-                try {
-                    dst = buffer.readByteArray(MAX_BULK_BUFFER);
-                } catch (EOFException e) {
-                    e.printStackTrace();
-                    return new byte[0];
-                }
+        }
+        if(debugging)
+        {
+            for(ByteBuffer buffer : data)
+            {
+                if(!buffer.hasRemaining())
+                    continue;
+                byte[] copy = new byte[buffer.remaining()];
+                buffer.duplicate().get(copy);
+                UsbSerialDebugger.printLogPut(copy, true);
             }
+        }
 
-            if(debugging)
-                UsbSerialDebugger.printLogGet(dst, true);
+        return writeBuffer.put(data, future);
+    }
 
-            return dst;
-        }
+    /*
+     * Blocks until everything written so far has been transferred, false on timeout
+     */
+    public boolean flushWriteBuffer(long timeoutNanos) throws InterruptedException
+    {
+        return writeBuffer.flush(timeoutNanos);
+    }
+
+    /*
+     * Result of a bulk transfer of length bytes taken from the write buffer. Transfers must be
+     * reported in the same order their data was taken.
+     */
+    public void onWriteTransferred(int length, boolean success)
+    {
+        writeBuffer.onTransferred(length, success);
+    }
+
+    /*
+     * Bound the write buffer to capacity bytes. policy is one of UsbSerialInterface.WRITE_BUFFER_BLOCK,
+     * WRITE_BUFFER_DROP_OLDEST or WRITE_BUFFER_FAIL. The buffer is unbounded by default.
+     */
+    public void setWriteBufferCapacity(long capacity, int policy)
+    {
+        writeBuffer.setCapacity(capacity, policy);
+    }
+
+    // Bytes written but not yet handed to the write thread
+    public long getWriteQueueSize()
+    {
+        return writeBuffer.getPendingBytes();
+    }
+
+    public int getPendingWrites()
+    {
+        return writeBuffer.getPendingWrites();
+    }
+
+    public long getDroppedWrites()
+    {
+        return writeBuffer.getDroppedWrites();
     }
 
+    public long getRejectedWrites()
+    {
+        return writeBuffer.getRejectedWrites();
+    }
+
+    public byte[] getBufferCompatible()
+    {
+        return readBufferCompatible;
+    }
+
+    public byte[] getDataReceivedCompatible(int numberBytes)
+    {
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null)
+            trace.record(SerialTraceRecorder.READ, readBufferCompatible, 0, numberBytes);
+        return Arrays.copyOfRange(readBufferCompatible, 0, numberBytes);
+    }
+
+    private void traceTaken(byte[] dst, int length)
+    {
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null && length > 0)
+            trace.record(SerialTraceRecorder.WRITE_TAKEN, dst, 0, length);
+    }
+
+    private void traceTaken(ByteBuffer dst, int start, int length)
+    {
+        SerialTraceRecorder trace = traceRecorder;
+        if(trace != null && length > 0)
+            trace.record(SerialTraceRecorder.WRITE_TAKEN, dst, start, length);
+    }
 }
@@ -2,58 +2,80 @@ package com.felhr.usbserial;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * InputStream over the synchronous reads of a port. Data is read from the device in transfers of
+ * whole packets of its IN endpoint and buffered: every read takes what is buffered first, so single
+ * byte and bulk reads can be mixed. Bulk reads of at least a buffer are done straight into the
+ * caller's array.
+ * <p>
+ * With {@link #startReadAhead()} a thread keeps reading from the device into a few buffers while
+ * the consumer is busy, and {@link #available()} counts what it has read already.
+ * <p>
+ * Reads are meant for a single thread.
+ */
 public class SerialInputStream extends InputStream
 {
+    private static final int DEFAULT_PACKET_SIZE = 64;
+    private static final int READ_AHEAD_BUFFERS = 4;
+    private static final int READ_AHEAD_TIMEOUT = 100; // ms, the read ahead thread notices it was stopped
+    static final long READ_AHEAD_RETRY = 10; // ms, waited after a failed read
+
     private int timeout = 0;
 
     private int maxBufferSize =  16 * 1024;
 
-    private final byte[] buffer;
+    private final byte[] ownBuffer;
+    private byte[] buffer; // ownBuffer, or the one taken from the read ahead thread
     private int pointer;
     private int bufferSize;
 
+    private int packetSize = 0; // Known once the port is open
+    private ReadAheadThread readAheadThread;
+    private Chunk readAheadChunk; // The one buffer points to
+
     protected final UsbSerialInterface device;
 
     public SerialInputStream(UsbSerialInterface device)
     {
         this.device = device;
-        this.buffer = new byte[maxBufferSize];
+        this.ownBuffer = new byte[maxBufferSize];
+        this.buffer = ownBuffer;
         this.pointer = 0;
-        this.bufferSize = -1;
+        this.bufferSize = 0;
     }
 
     public SerialInputStream(UsbSerialInterface device, int maxBufferSize)
     {
         this.device = device;
         this.maxBufferSize = maxBufferSize;
-        this.buffer = new byte[this.maxBufferSize];
+        this.ownBuffer = new byte[this.maxBufferSize];
+        this.buffer = ownBuffer;
         this.pointer = 0;
-        this.bufferSize = -1;
+        this.bufferSize = 0;
     }
 
     @Override
     public int read()
     {
-        int value = checkFromBuffer();
-        if(value >= 0)
-            return value;
-
-        int ret = device.syncRead(buffer, timeout);
-        if(ret >= 0) {
-            bufferSize = ret;
-            return buffer[pointer++] & 0xff;
-        }else {
+        if(pointer == bufferSize && fill() <= 0)
             return -1;
-        }
+        return buffer[pointer++] & 0xff;
     }
 
     @Override
     public int read(byte[] b)
     {
-        return device.syncRead(b, timeout);
+        return read(b, 0, b.length);
     }
 
+    /**
+     * Buffered data is returned without waiting for more. With nothing buffered it waits up to
+     * the timeout for the device, returning 0 or -1 if no data arrived as syncRead does.
+     */
     @Override
     public int read(byte[] b, int off, int len)
     {
@@ -69,32 +91,214 @@ public class SerialInputStream extends InputStream
             throw new IndexOutOfBoundsException("Length greater than b.length - off");
         }
 
-        if (off == 0 && len == b.length) {
-            return read(b);
+        if(len == 0)
+            return 0;
+
+        if(pointer == bufferSize)
+        {
+            int transferLength = getTransferLength(len);
+            if(readAheadThread == null && transferLength >= getTransferLength(ownBuffer.length))
+            {
+                // Large reads skip the copy
+                if(off == 0 && transferLength == b.length)
+                    return device.syncRead(b, timeout);
+                return device.syncRead(b, off, transferLength, timeout);
+            }
+
+            int ret = fill();
+            if(ret <= 0)
+                return ret;
         }
 
-        return device.syncRead(b, off, len, timeout);
+        int length = Math.min(len, bufferSize - pointer);
+        System.arraycopy(buffer, pointer, b, off, length);
+        pointer += length;
+        return length;
     }
 
+    /**
+     * Bytes that can be read without waiting for the device: the ones buffered and, with read
+     * ahead, the ones it has read already.
+     */
     @Override
     public int available() throws IOException {
-        if(bufferSize > 0)
-            return bufferSize - pointer;
-        else
-            return 0;
+        ReadAheadThread readAheadThread = this.readAheadThread;
+        int readAhead = readAheadThread != null ? readAheadThread.bytes.get() : 0;
+        return bufferSize - pointer + readAhead;
     }
 
     public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
 
-    private int checkFromBuffer(){
-        if(bufferSize > 0 && pointer < bufferSize){
-            return buffer[pointer++] & 0xff;
-        }else{
-            pointer = 0;
-            bufferSize = -1;
+    /**
+     * Start a thread reading from the device while the data already read is consumed. Data is
+     * read ahead until the buffers are full or {@link #stopReadAhead()} is called. Closing the port
+     * stops it too.
+     */
+    public void startReadAhead()
+    {
+        // A stopped one may still hold data read ahead
+        if(readAheadThread == null)
+            readAheadThread = new ReadAheadThread(getTransferLength(maxBufferSize));
+        readAheadThread.start();
+    }
+
+    /**
+     * Stop reading ahead. What was read ahead already is still returned by the next reads.
+     */
+    public void stopReadAhead()
+    {
+        if(readAheadThread != null)
+            readAheadThread.stopThread(READ_AHEAD_TIMEOUT * 2);
+    }
+
+    public boolean isReadingAhead()
+    {
+        return readAheadThread != null && readAheadThread.isAlive();
+    }
+
+    /*
+     * Refill the empty buffer. Returns the bytes buffered, 0 or -1 if none arrived in time.
+     */
+    private int fill()
+    {
+        pointer = 0;
+        bufferSize = 0;
+        int ret = readAheadThread != null ? takeReadAhead() : readDevice();
+        if(ret > 0)
+            bufferSize = ret;
+        return ret;
+    }
+
+    private int readDevice()
+    {
+        int transferLength = getTransferLength(ownBuffer.length);
+        if(transferLength == ownBuffer.length)
+            return device.syncRead(ownBuffer, timeout);
+        return device.syncRead(ownBuffer, 0, transferLength, timeout);
+    }
+
+    private int takeReadAhead()
+    {
+        ReadAheadThread readAheadThread = this.readAheadThread;
+        if(readAheadChunk != null)
+        {
+            readAheadThread.free.offer(readAheadChunk);
+            readAheadChunk = null;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Chunk chunk;
+        try
+        {
+            while(true)
+            {
+                // Waits in slices, the thread stops by itself when the port is closed
+                boolean finished = !readAheadThread.isAlive() && readAheadThread.join(0);
+                long wait = READ_AHEAD_TIMEOUT;
+                if(timeout > 0)
+                    wait = Math.min(wait, Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                chunk = readAheadThread.filled.poll(finished ? 0 : wait, TimeUnit.MILLISECONDS);
+                if(chunk != null)
+                    break;
+
+                if(finished)
+                {
+                    // Everything read ahead was consumed
+                    this.readAheadThread = null;
+                    buffer = ownBuffer;
+                    return readDevice();
+                }
+                if(timeout > 0 && System.nanoTime() - deadline >= 0)
+                    return 0;
+            }
+        }catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
             return -1;
         }
+
+        readAheadThread.bytes.addAndGet(-chunk.length);
+        readAheadChunk = chunk;
+        buffer = chunk.data;
+        return chunk.length;
+    }
+
+    // Largest read of whole packets not longer than length, at least one packet
+    private int getTransferLength(int length)
+    {
+        if(packetSize == 0 && device instanceof UsbSerialDevice)
+            packetSize = ((UsbSerialDevice) device).getSyncReadPacketSize();
+        int packet = packetSize > 0 ? packetSize : DEFAULT_PACKET_SIZE;
+        return length < packet ? length : length - length % packet;
+    }
+
+    private static class Chunk
+    {
+        final byte[] data;
+        int length;
+
+        Chunk(int size)
+        {
+            data = new byte[size];
+        }
+    }
+
+    /*
+     * Reads from the device into the free buffers and hands them over filled
+     */
+    private class ReadAheadThread extends AbstractWorkerThread
+    {
+        final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(READ_AHEAD_BUFFERS);
+        final ArrayBlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(READ_AHEAD_BUFFERS);
+        final AtomicInteger bytes = new AtomicInteger(); // In the filled buffers
+        private Chunk chunk;
+
+        ReadAheadThread(int size)
+        {
+            for(int i=0;i<=READ_AHEAD_BUFFERS-1;i++)
+            {
+                free.add(new Chunk(size));
+            }
+        }
+
+        @Override
+        void doRun()
+        {
+            try
+            {
+                if(chunk == null)
+                    chunk = free.take();
+
+                long start = System.nanoTime();
+                int ret = device.syncRead(chunk.data, READ_AHEAD_TIMEOUT);
+                if(ret > 0)
+                {
+                    chunk.length = ret;
+                    bytes.addAndGet(ret);
+                    filled.add(chunk);
+                    chunk = null;
+                }else
+                {
+                    // Some drivers return 0 rather than failing once closed (FTDI)
+                    if(device instanceof UsbSerialDevice && !((UsbSerialDevice) device).isOpen())
+                    {
+                        stopThread();
+                        return;
+                    }
+                    if(ret == 0)
+                        return;
+                    // A timed out read is issued again at once, only one that failed before its
+                    // timeout waits so a failing device does not keep the thread spinning
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if(elapsed < READ_AHEAD_TIMEOUT / 2)
+                        Thread.sleep(READ_AHEAD_RETRY);
+                }
+            }catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,97 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small event loop shared by many serial ports. Ports using it have no write thread of their own,
+ * their pending writes, write request completions and timed work run as short tasks on the
+ * scheduler threads instead.
+ * <p>
+ * Reads still need a thread per port, Android only waits for request completions per connection.
+ * Set it with {@link UsbSerialDevice#setIoScheduler(SerialIoScheduler)} before opening the port.
+ */
+public class SerialIoScheduler
+{
+    private static SerialIoScheduler defaultScheduler;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param threads number of threads shared by every port, one is usually enough
+     */
+    public SerialIoScheduler(int threads)
+    {
+        if(threads <= 0)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SerialIo-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return a process wide scheduler with a single thread, created the first time is requested
+     */
+    public static synchronized SerialIoScheduler getDefault()
+    {
+        if(defaultScheduler == null)
+            defaultScheduler = new SerialIoScheduler(1);
+        return defaultScheduler;
+    }
+
+    /**
+     * Stop the scheduler threads. Ports still using it stop writing.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    public boolean isShutdown()
+    {
+        return executor.isShutdown();
+    }
+
+    // Tasks given to a scheduler already shut down are ignored
+
+    void execute(Runnable task)
+    {
+        try
+        {
+            executor.execute(task);
+        } catch (RejectedExecutionException e)
+        {
+            // Shut down
+        }
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayNanos)
+    {
+        try
+        {
+            return executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delayNanos)
+    {
+        try
+        {
+            return executor.scheduleWithFixedDelay(task, delayNanos, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e)
+        {
+            return null;
+        }
+    }
+}
@@ -1,32 +1,80 @@
 package com.felhr.usbserial;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * OutputStream over the synchronous writes of a port.
+ * <p>
+ * By default every write is a bulk transfer of its own. With {@link #setBufferSize(int)} small
+ * writes are coalesced in a buffer of whole packets of the OUT endpoint, transferred when it is
+ * full, on {@link #flush()} or, with {@link #setLinger(int)}, a while after the first byte was
+ * buffered. Flush it before closing the port.
+ * <p>
+ * A transfer that fails or is short throws an IOException. One made by the linger flush or
+ * {@link #setBufferSize(int)} is reported by the next write or flush. The linger flush runs on a shared scheduler, so it waits at most
+ * {@link UsbSerialDevice#SCHEDULED_WRITE_TIMEOUT} ms for the device and never for a write in progress.
+ */
 public class SerialOutputStream extends OutputStream
 {
+    private static final int DEFAULT_PACKET_SIZE = 64;
+
     private int timeout = 0;
 
     protected final UsbSerialInterface device;
 
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private final byte[] singleByte = new byte[1];
+    private byte[] buffer; // null while writes are not coalesced
+    private int count;
+    private byte[] gatherBuffer;
+    private int linger = 0;
+    private ScheduledFuture<?> lingerFlush;
+    private long transfers;
+    private IOException deferredError; // Failure of a flush nobody waited for, thrown by the next call
+
+    private final Runnable lingerFlushTask = this::lingerFlush;
+
     public SerialOutputStream(UsbSerialInterface device)
     {
         this.device = device;
     }
 
     @Override
-    public void write(int b)
+    public void write(int b) throws IOException
     {
-        device.syncWrite(new byte[] { (byte)b }, timeout);
+        lock.lock();
+        try
+        {
+            throwDeferredError();
+            if(buffer == null)
+            {
+                singleByte[0] = (byte) b;
+                transfer(singleByte, 0, 1, timeout);
+                return;
+            }
+
+            buffer[count++] = (byte) b;
+            onBuffered();
+        }finally
+        {
+            lock.unlock();
+        }
     }
 
     @Override
-    public void write(byte[] b)
+    public void write(byte[] b) throws IOException
     {
-        device.syncWrite(b, timeout);
+        write(b, 0, b.length);
     }
 
     @Override
-    public void write(byte[] b, int off, int len)
+    public void write(byte[] b, int off, int len) throws IOException
     {
         if(off < 0 ){
             throw new IndexOutOfBoundsException("Offset must be >= 0");
@@ -40,15 +88,266 @@ public class SerialOutputStream extends OutputStream
             throw new IndexOutOfBoundsException("off + length greater than buffer length");
         }
 
-        if (off == 0 && len == b.length) {
-            write(b);
-            return;
+        lock.lock();
+        try
+        {
+            throwDeferredError();
+            if(buffer == null || len >= buffer.length)
+            {
+                // Nothing to coalesce, what was buffered goes first
+                flushBuffer();
+                transfer(b, off, len, timeout);
+                return;
+            }
+
+            if(len > buffer.length - count)
+                flushBuffer();
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            onBuffered();
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gathering write: the buffers are written one after the other, packed in a single transfer
+     * when writes are not coalesced.
+     */
+    public void write(byte[]... buffers) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if(buffer != null)
+            {
+                for(byte[] b : buffers)
+                {
+                    write(b, 0, b.length);
+                }
+                return;
+            }
+
+            throwDeferredError();
+            int length = 0;
+            for(byte[] b : buffers)
+            {
+                length += b.length;
+            }
+            if(length == 0)
+                return;
+            if(gatherBuffer == null || gatherBuffer.length < length)
+                gatherBuffer = new byte[length];
+
+            int offset = 0;
+            for(byte[] b : buffers)
+            {
+                System.arraycopy(b, 0, gatherBuffer, offset, b.length);
+                offset += b.length;
+            }
+            transfer(gatherBuffer, 0, length, timeout);
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfer the coalesced writes now
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            throwDeferredError();
+            flushBuffer();
+        }finally
+        {
+            lock.unlock();
         }
+    }
 
-        device.syncWrite(b, off, len, timeout);
+    @Override
+    public void close() throws IOException
+    {
+        flush();
     }
 
     public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
+
+    /**
+     * Coalesce writes shorter than bufferSize. It is rounded down to whole packets of the OUT
+     * endpoint, at least one.
+     *
+     * @param bufferSize 0 (default) to transfer every write right away
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        lock.lock();
+        try
+        {
+            try
+            {
+                flushBuffer();
+            }catch(IOException e)
+            {
+                deferredError = e;
+            }
+            if(bufferSize <= 0)
+            {
+                buffer = null;
+                return;
+            }
+
+            int packetSize = device instanceof UsbSerialDevice ? ((UsbSerialDevice) device).getSyncWritePacketSize() : 0;
+            if(packetSize <= 0)
+                packetSize = DEFAULT_PACKET_SIZE;
+            buffer = new byte[Math.max(packetSize, bufferSize - bufferSize % packetSize)];
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfer coalesced writes at most linger milliseconds after the first of them
+     *
+     * @param linger 0 (default) to keep them until the buffer is full or flushed
+     */
+    public void setLinger(int linger)
+    {
+        lock.lock();
+        try
+        {
+            this.linger = linger;
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Successful USB transfers made so far
+    public long getTransferCount()
+    {
+        lock.lock();
+        try
+        {
+            return transfers;
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void onBuffered() throws IOException
+    {
+        if(count == buffer.length)
+        {
+            flushBuffer();
+        }else if(linger > 0 && lingerFlush == null)
+        {
+            lingerFlush = getScheduler().schedule(lingerFlushTask, TimeUnit.MILLISECONDS.toNanos(linger));
+            if(lingerFlush == null)
+                flushBuffer(); // Scheduler shut down
+        }
+    }
+
+    /*
+     * Runs on the scheduler. It must not wait for a write in progress, the write may block for its
+     * whole timeout, so it tries again shortly. By then it may flush a later batch a bit early.
+     */
+    private void lingerFlush()
+    {
+        ReentrantLock deviceLock = device instanceof UsbSerialDevice ? ((UsbSerialDevice) device).syncWriteLock : null;
+        if(!lock.tryLock())
+        {
+            getScheduler().schedule(lingerFlushTask, UsbSerialDevice.SYNC_WRITE_RETRY);
+            return;
+        }
+        try
+        {
+            if(lingerFlush == null)
+                return; // Flushed meanwhile
+            if(deviceLock != null && !deviceLock.tryLock())
+            {
+                getScheduler().schedule(lingerFlushTask, UsbSerialDevice.SYNC_WRITE_RETRY);
+                return;
+            }
+            try
+            {
+                lingerFlush = null;
+                if(count > 0)
+                {
+                    int scheduledTimeout = timeout > 0 ? Math.min(timeout, UsbSerialDevice.SCHEDULED_WRITE_TIMEOUT)
+                            : UsbSerialDevice.SCHEDULED_WRITE_TIMEOUT;
+                    try
+                    {
+                        transfer(buffer, 0, count, scheduledTimeout);
+                    }catch(IOException e)
+                    {
+                        deferredError = e;
+                    }
+                    count = 0;
+                }
+            }finally
+            {
+                if(deviceLock != null)
+                    deviceLock.unlock();
+            }
+        }finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private SerialIoScheduler getScheduler()
+    {
+        SerialIoScheduler scheduler = device instanceof UsbSerialDevice ? ((UsbSerialDevice) device).getIoScheduler() : null;
+        return scheduler != null ? scheduler : SerialIoScheduler.getDefault();
+    }
+
+    private void throwDeferredError() throws IOException
+    {
+        IOException e = deferredError;
+        if(e != null)
+        {
+            deferredError = null;
+            throw e;
+        }
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if(lingerFlush != null)
+        {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        if(count > 0)
+        {
+            // Dropped if it fails, as an unbuffered write
+            int length = count;
+            count = 0;
+            transfer(buffer, 0, length, timeout);
+        }
+    }
+
+    private void transfer(byte[] b, int off, int len, int timeout) throws IOException
+    {
+        int ret;
+        if(off == 0 && len == b.length)
+            ret = device.syncWrite(b, timeout);
+        else
+            ret = device.syncWrite(b, off, len, timeout);
+        if(ret < 0)
+            throw new IOException("Write of " + len + " bytes failed");
+        if(ret < len)
+            throw new IOException("Short write: " + ret + " of " + len + " bytes");
+        transfers++;
+    }
 }
@@ -41,6 +41,8 @@ public class SerialPortBuilder {
 
     private boolean broadcastRegistered = false;
 
+    private SerialIoScheduler ioScheduler;
+
     private SerialPortBuilder(SerialPortCallback serialPortCallback){
         this.serialPortCallback = serialPortCallback;
     }
@@ -56,6 +58,14 @@ public class SerialPortBuilder {
     }
 
 
+    /**
+     * Ports created from now on write from the given scheduler instead of a write thread each.
+     * null, the default, keeps a write thread per port.
+     */
+    public void setIoScheduler(SerialIoScheduler ioScheduler){
+        this.ioScheduler = ioScheduler;
+    }
+
     public List<UsbDevice> getPossibleSerialPorts(Context context){
 
         usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
@@ -193,6 +203,8 @@ public class SerialPortBuilder {
                     usbDeviceStatus.usbDeviceConnection,
                     i);
 
+            if(usbSerialDevice != null)
+                usbSerialDevice.setIoScheduler(ioScheduler);
             serialDevices.add(usbSerialDevice);
         }
     }
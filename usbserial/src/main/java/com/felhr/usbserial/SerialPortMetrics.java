@@ -0,0 +1,348 @@
+package com.felhr.usbserial;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * I/O counters of a port, kept all the time. Recording an event only updates atomic counters, so it
+ * is cheap enough for production. {@link #snapshot()} can be called from any thread.
+ * <p>
+ * Bulk transfer latencies are kept in histograms of power of two buckets: bucket 0 counts
+ * transfers shorter than a microsecond and bucket i those that took [2^(i-1), 2^i) microseconds.
+ * The latency of a queued IN request includes the time waiting for data.
+ * <p>
+ * Parity, framing and overrun errors are counted when the driver checks the line status. FTDI chips
+ * report it in every IN packet, so all their errors are counted. CP210x ones are polled for it only
+ * while a modem line or line error callback is registered, errors meanwhile are not counted. Other
+ * chips are not checked.
+ */
+public class SerialPortMetrics
+{
+    public static final int LATENCY_BUCKETS = 32;
+
+    private final SerialBuffer serialBuffer;
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong transfersIn = new AtomicLong();
+    private final AtomicLong transfersOut = new AtomicLong();
+    private final AtomicLong failedTransfersIn = new AtomicLong();
+    private final AtomicLong failedTransfersOut = new AtomicLong();
+    private final AtomicLong shortReads = new AtomicLong();
+    private final AtomicLong zeroLengthReads = new AtomicLong();
+    private final AtomicLong parityErrors = new AtomicLong();
+    private final AtomicLong framingErrors = new AtomicLong();
+    private final AtomicLong overrunErrors = new AtomicLong();
+    private final AtomicLong writeQueueHighWaterMark = new AtomicLong();
+    private final AtomicLongArray readLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+    private final AtomicLongArray writeLatencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+    SerialPortMetrics(SerialBuffer serialBuffer)
+    {
+        this.serialBuffer = serialBuffer;
+    }
+
+    /*
+     * IN transfer that returned received bytes, headers not included, or a negative result if it
+     * failed. full is what a full packet of the endpoint carries, or the length requested if shorter.
+     */
+    void onRead(int full, int received, long nanos)
+    {
+        if(received < 0)
+        {
+            failedTransfersIn.incrementAndGet();
+            return;
+        }
+
+        transfersIn.incrementAndGet();
+        readLatencies.incrementAndGet(bucketOf(nanos));
+        if(received == 0)
+        {
+            zeroLengthReads.incrementAndGet();
+            return;
+        }
+        bytesIn.addAndGet(received);
+        if(received < full)
+            shortReads.incrementAndGet();
+    }
+
+    /*
+     * OUT transfer of length bytes that returned sent, a negative result if it failed
+     */
+    void onWrite(int length, int sent, long nanos)
+    {
+        if(sent < 0)
+        {
+            failedTransfersOut.incrementAndGet();
+            return;
+        }
+
+        transfersOut.incrementAndGet();
+        writeLatencies.incrementAndGet(bucketOf(nanos));
+        bytesOut.addAndGet(sent);
+        if(sent < length)
+            failedTransfersOut.incrementAndGet();
+    }
+
+    void onWriteQueued(long queueSize)
+    {
+        long highWaterMark = writeQueueHighWaterMark.get();
+        while(queueSize > highWaterMark && !writeQueueHighWaterMark.compareAndSet(highWaterMark, queueSize))
+        {
+            highWaterMark = writeQueueHighWaterMark.get();
+        }
+    }
+
+    void onParityError()
+    {
+        parityErrors.incrementAndGet();
+    }
+
+    void onFramingError()
+    {
+        framingErrors.incrementAndGet();
+    }
+
+    void onOverrunError()
+    {
+        overrunErrors.incrementAndGet();
+    }
+
+    /**
+     * Copy of the counters. They are read one by one, a snapshot taken while transferring may be off
+     * by the transfers in progress.
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Set every counter and the write queue high-water mark back to 0
+     */
+    public void reset()
+    {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        transfersIn.set(0);
+        transfersOut.set(0);
+        failedTransfersIn.set(0);
+        failedTransfersOut.set(0);
+        shortReads.set(0);
+        zeroLengthReads.set(0);
+        parityErrors.set(0);
+        framingErrors.set(0);
+        overrunErrors.set(0);
+        writeQueueHighWaterMark.set(0);
+        for(int i=0;i<=LATENCY_BUCKETS-1;i++)
+        {
+            readLatencies.set(i, 0);
+            writeLatencies.set(i, 0);
+        }
+    }
+
+    /**
+     * Upper bound in microseconds of the latencies counted in bucket
+     */
+    public static long getBucketLimit(int bucket)
+    {
+        return 1L << bucket;
+    }
+
+    static int bucketOf(long nanos)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(micros, 0));
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Counters of a port at a point in time
+     */
+    public static final class Snapshot
+    {
+        private final long timestamp;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long transfersIn;
+        private final long transfersOut;
+        private final long failedTransfersIn;
+        private final long failedTransfersOut;
+        private final long shortReads;
+        private final long zeroLengthReads;
+        private final long parityErrors;
+        private final long framingErrors;
+        private final long overrunErrors;
+        private final long writeQueueSize;
+        private final int pendingWrites;
+        private final long writeQueueHighWaterMark;
+        private final long droppedWrites;
+        private final long rejectedWrites;
+        private final long[] readLatencies = new long[LATENCY_BUCKETS];
+        private final long[] writeLatencies = new long[LATENCY_BUCKETS];
+
+        private Snapshot(SerialPortMetrics metrics)
+        {
+            timestamp = System.nanoTime();
+            bytesIn = metrics.bytesIn.get();
+            bytesOut = metrics.bytesOut.get();
+            transfersIn = metrics.transfersIn.get();
+            transfersOut = metrics.transfersOut.get();
+            failedTransfersIn = metrics.failedTransfersIn.get();
+            failedTransfersOut = metrics.failedTransfersOut.get();
+            shortReads = metrics.shortReads.get();
+            zeroLengthReads = metrics.zeroLengthReads.get();
+            parityErrors = metrics.parityErrors.get();
+            framingErrors = metrics.framingErrors.get();
+            overrunErrors = metrics.overrunErrors.get();
+            writeQueueSize = metrics.serialBuffer.getWriteQueueSize();
+            pendingWrites = metrics.serialBuffer.getPendingWrites();
+            writeQueueHighWaterMark = Math.max(metrics.writeQueueHighWaterMark.get(), writeQueueSize);
+            droppedWrites = metrics.serialBuffer.getDroppedWrites();
+            rejectedWrites = metrics.serialBuffer.getRejectedWrites();
+            for(int i=0;i<=LATENCY_BUCKETS-1;i++)
+            {
+                readLatencies[i] = metrics.readLatencies.get(i);
+                writeLatencies[i] = metrics.writeLatencies.get(i);
+            }
+        }
+
+        // System.nanoTime() when it was taken, to compute rates between two snapshots
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        public long getBytesIn()
+        {
+            return bytesIn;
+        }
+
+        public long getBytesOut()
+        {
+            return bytesOut;
+        }
+
+        public long getTransfersIn()
+        {
+            return transfersIn;
+        }
+
+        public long getTransfersOut()
+        {
+            return transfersOut;
+        }
+
+        public long getFailedTransfersIn()
+        {
+            return failedTransfersIn;
+        }
+
+        // Failed or partial OUT transfers
+        public long getFailedTransfersOut()
+        {
+            return failedTransfersOut;
+        }
+
+        // IN transfers that returned data, less than a full packet: the device sends it in small pieces
+        public long getShortReads()
+        {
+            return shortReads;
+        }
+
+        // IN transfers that returned no data, FTDI status only packets included
+        public long getZeroLengthReads()
+        {
+            return zeroLengthReads;
+        }
+
+        public long getParityErrors()
+        {
+            return parityErrors;
+        }
+
+        public long getFramingErrors()
+        {
+            return framingErrors;
+        }
+
+        public long getOverrunErrors()
+        {
+            return overrunErrors;
+        }
+
+        // Bytes written but not yet handed to the USB stack
+        public long getWriteQueueSize()
+        {
+            return writeQueueSize;
+        }
+
+        public int getPendingWrites()
+        {
+            return pendingWrites;
+        }
+
+        public long getWriteQueueHighWaterMark()
+        {
+            return writeQueueHighWaterMark;
+        }
+
+        public long getDroppedWrites()
+        {
+            return droppedWrites;
+        }
+
+        public long getRejectedWrites()
+        {
+            return rejectedWrites;
+        }
+
+        // IN transfers per latency bucket, see SerialPortMetrics
+        public long[] getReadLatencies()
+        {
+            return readLatencies.clone();
+        }
+
+        public long[] getWriteLatencies()
+        {
+            return writeLatencies.clone();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return upper bound in microseconds of the bucket holding that quantile of the IN transfer
+         * latencies, 0 if there were none
+         */
+        public long getReadLatencyQuantile(double quantile)
+        {
+            return quantile(readLatencies, quantile);
+        }
+
+        public long getWriteLatencyQuantile(double quantile)
+        {
+            return quantile(writeLatencies, quantile);
+        }
+
+        private static long quantile(long[] histogram, double quantile)
+        {
+            long total = 0;
+            for(long count : histogram)
+            {
+                total += count;
+            }
+            if(total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for(int i=0;i<=histogram.length-1;i++)
+            {
+                seen += histogram[i];
+                if(seen >= rank)
+                    return getBucketLimit(i);
+            }
+            return getBucketLimit(histogram.length - 1);
+        }
+    }
+}
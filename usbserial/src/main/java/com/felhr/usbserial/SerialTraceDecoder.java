@@ -0,0 +1,120 @@
+package com.felhr.usbserial;
+
+import com.felhr.utils.HexData;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Prints the traces dumped by {@link SerialTraceRecorder}, one line per event with the time since
+ * the first one, its type, length and captured payload as hex or text. It has no Android
+ * dependencies, so dumps pulled from a device can be decoded on a desktop:
+ * <pre>
+ * java -cp usbserial.jar com.felhr.usbserial.SerialTraceDecoder trace.bin [hex|text]
+ * </pre>
+ */
+public class SerialTraceDecoder
+{
+    public static final int HEX = 0;
+    public static final int TEXT = 1;
+
+    private static final String[] TYPES = {"WRITE_QUEUED", "WRITE_TAKEN", "READ"};
+
+    private SerialTraceDecoder()
+    {
+
+    }
+
+    public static void decode(InputStream in, Appendable out, int format) throws IOException
+    {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(data.readInt() != SerialTraceRecorder.MAGIC)
+            throw new IOException("Not a serial trace");
+        int version = data.readUnsignedShort();
+        if(version != SerialTraceRecorder.VERSION)
+            throw new IOException("Unsupported trace version " + version);
+        int captureSize = data.readUnsignedShort();
+        long dumpNanos = data.readLong();
+        long dumpMillis = data.readLong();
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        out.append("Dumped ").append(dateFormat.format(new Date(dumpMillis))).append('\n');
+
+        byte[] payload = new byte[captureSize];
+        char[] chars = new char[5 * captureSize];
+        boolean first = true;
+        long start = 0;
+        int type;
+        while((type = data.read()) != -1)
+        {
+            long timestamp;
+            int length;
+            try
+            {
+                timestamp = data.readLong();
+                length = data.readInt();
+                data.readFully(payload, 0, Math.min(length, captureSize));
+            }catch(EOFException e)
+            {
+                throw new IOException("Truncated trace", e);
+            }
+            if(first)
+            {
+                start = timestamp;
+                first = false;
+                out.append("First event ").append(dateFormat.format(
+                        new Date(dumpMillis - (dumpNanos - timestamp) / 1000000))).append('\n');
+            }
+
+            int captured = Math.min(length, captureSize);
+            out.append(String.format(Locale.US, "%+14.6f ms %-12s %6d ",
+                    (timestamp - start) / 1e6, type < TYPES.length ? TYPES[type] : "TYPE_" + type, length));
+            if(format == TEXT)
+            {
+                for(int i=0;i<=captured-1;i++)
+                {
+                    int value = payload[i] & 0xFF;
+                    out.append(value >= 0x20 && value < 0x7F ? (char) value : '.');
+                }
+            }else
+            {
+                int encoded = HexData.encode(payload, 0, captured, chars, 0, HexData.PREFIXED);
+                out.append(CharBuffer.wrap(chars, 0, Math.max(encoded - 1, 0))); // No trailing space
+            }
+            if(captured < length)
+                out.append(" ...");
+            out.append('\n');
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("hex") && !args[1].equals("text")))
+        {
+            System.err.println("Usage: SerialTraceDecoder <trace file> [hex|text]");
+            System.exit(1);
+            return;
+        }
+
+        int format = args.length == 2 && args[1].equals("text") ? TEXT : HEX;
+        PrintStream out = System.out;
+        InputStream in = new FileInputStream(args[0]);
+        try
+        {
+            decode(in, out, format);
+        }finally
+        {
+            in.close();
+        }
+        out.flush();
+    }
+}
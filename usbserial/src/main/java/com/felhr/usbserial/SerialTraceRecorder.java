@@ -0,0 +1,199 @@
+package com.felhr.usbserial;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size ring of binary trace events, a replacement for the string logs of
+ * {@link UsbSerialDebugger} that is cheap enough to leave on while chasing timing issues.
+ * <p>
+ * Every event keeps its System.nanoTime() timestamp, type, length and the first bytes of its
+ * payload in arrays allocated up front, nothing is allocated per event. Once full the oldest
+ * events are overwritten. {@link #dump(OutputStream)} writes what the ring holds in a compact
+ * binary format, read back with {@link SerialTraceDecoder}.
+ * <p>
+ * Any number of threads can record. Dumps do not stop them, an event overwritten while it is
+ * dumped is skipped.
+ */
+public class SerialTraceRecorder
+{
+    // Event types
+    public static final int WRITE_QUEUED = 0; // Written by the application, queued in the write buffer
+    public static final int WRITE_TAKEN = 1; // Taken from the write buffer to be transferred
+    public static final int READ = 2; // Received from the device, with FTDI headers from Android 4.3 on
+
+    static final int MAGIC = 0x55534254; // "USBT"
+    static final int VERSION = 1;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_CAPTURE_SIZE = 16;
+
+    private final int mask;
+    private final int captureSize;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray sequences; // Sequence of the event in each slot, -1 while written
+    private final long[] timestamps;
+    private final byte[] types;
+    private final int[] lengths;
+    private final byte[] payloads;
+
+    public SerialTraceRecorder()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_CAPTURE_SIZE);
+    }
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     * @param captureSize payload bytes kept of every event, at most 65535
+     */
+    public SerialTraceRecorder(int capacity, int captureSize)
+    {
+        if(capacity <= 0 || capacity > 1 << 24)
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^24");
+        if(captureSize < 0 || captureSize > 0xFFFF)
+            throw new IllegalArgumentException("Capture size must be between 0 and 65535");
+
+        int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        if((long) slots * captureSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Capacity times capture size is too large");
+        this.mask = slots - 1;
+        this.captureSize = captureSize;
+        this.sequences = new AtomicLongArray(slots);
+        for(int i=0;i<=slots-1;i++)
+        {
+            sequences.set(i, -1);
+        }
+        this.timestamps = new long[slots];
+        this.types = new byte[slots];
+        this.lengths = new int[slots];
+        this.payloads = new byte[slots * captureSize];
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    public int getCaptureSize()
+    {
+        return captureSize;
+    }
+
+    // Events recorded so far, overwritten ones included
+    public long getEventCount()
+    {
+        return next.get();
+    }
+
+    public void record(int type, byte[] data, int offset, int length)
+    {
+        long sequence = next.getAndIncrement();
+        int slot = begin(sequence, type, length);
+        int captured = Math.min(length, captureSize);
+        if(captured > 0)
+            System.arraycopy(data, offset, payloads, slot * captureSize, captured);
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Same as {@link #record(int, byte[], int, int)} for length bytes of data at offset, its position
+     * and limit are not used nor changed
+     */
+    public void record(int type, ByteBuffer data, int offset, int length)
+    {
+        if(data.hasArray())
+        {
+            record(type, data.array(), data.arrayOffset() + offset, length);
+            return;
+        }
+
+        long sequence = next.getAndIncrement();
+        int slot = begin(sequence, type, length);
+        int captured = Math.min(length, captureSize);
+        int base = slot * captureSize;
+        for(int i=0;i<=captured-1;i++)
+        {
+            payloads[base + i] = data.get(offset + i);
+        }
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Forget every event recorded so far. Events recorded at the same time may be kept.
+     */
+    public void clear()
+    {
+        for(int i=0;i<=mask;i++)
+        {
+            sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Write the events held by the ring, oldest first. The stream is not closed.
+     */
+    public void dump(OutputStream out) throws IOException
+    {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        byte[] payload = new byte[captureSize];
+
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(captureSize);
+        // Both clocks at the same time, to turn event timestamps into wall clock time
+        data.writeLong(System.nanoTime());
+        data.writeLong(System.currentTimeMillis());
+
+        for(long sequence=start;sequence<end;sequence++)
+        {
+            int slot = (int) sequence & mask;
+            if(sequences.get(slot) != sequence)
+                continue;
+
+            long timestamp = timestamps[slot];
+            int type = types[slot];
+            int length = lengths[slot];
+            int captured = Math.min(length, captureSize);
+            System.arraycopy(payloads, slot * captureSize, payload, 0, captured);
+            if(sequences.get(slot) != sequence)
+                continue; // Overwritten meanwhile
+
+            data.writeByte(type);
+            data.writeLong(timestamp);
+            data.writeInt(length);
+            data.write(payload, 0, captured);
+        }
+        data.flush();
+    }
+
+    public void dump(File file) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            dump(out);
+        }finally
+        {
+            out.close();
+        }
+    }
+
+    private int begin(long sequence, int type, int length)
+    {
+        int slot = (int) sequence & mask;
+        sequences.set(slot, -1);
+        timestamps[slot] = System.nanoTime();
+        types[slot] = (byte) type;
+        lengths[slot] = length;
+        return slot;
+    }
+}
@@ -4,6 +4,11 @@ import com.felhr.utils.HexData;
 
 import android.util.Log;
 
+/**
+ * String logs of every buffer written and read, enabled with {@link UsbSerialDevice#debug(boolean)}.
+ * They are slow enough to change the timing of the port, use
+ * {@link UsbSerialDevice#setTraceRecorder(SerialTraceRecorder)} to diagnose timing issues.
+ */
 public class UsbSerialDebugger
 {
     private static final String CLASS_ID = UsbSerialDebugger.class.getSimpleName();
@@ -4,6 +4,7 @@ import com.felhr.deviceids.CH34xIds;
 import com.felhr.deviceids.CP210xIds;
 import com.felhr.deviceids.FTDISioIds;
 import com.felhr.deviceids.PL2303Ids;
+import com.felhr.utils.SafeUsbRequest;
 
 import android.annotation.TargetApi;
 import android.hardware.usb.UsbConstants;
@@ -13,6 +14,14 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbRequest;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
 public abstract class UsbSerialDevice implements UsbSerialInterface
 {
     public static final String CDC = "cdc";
@@ -31,7 +40,17 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
     protected static final int USB_TIMEOUT = 0;
 
+    // Milliseconds close() waits for the write thread to finish
+    static final long STOP_TIMEOUT = 100;
+
+    // Bulk transfers on a shared scheduler must not block the other ports forever
+    static final int SCHEDULED_WRITE_TIMEOUT = 1000;
+
+    // Nanoseconds a scheduled write waits before trying again when a sync write is in progress
+    static final long SYNC_WRITE_RETRY = TimeUnit.MILLISECONDS.toNanos(1);
+
     protected SerialBuffer serialBuffer;
+    private final SerialPortMetrics metrics;
 
     protected WorkerThread workerThread;
     protected WriteThread writeThread;
@@ -41,14 +60,29 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
 
+    // ByteBuffers without an accessible array are transferred through it, at most its length at a time
+    private static final int SYNC_ARRAY_SIZE = 16 * 1024;
+    private final AtomicReference<byte[]> syncArrayPool = new AtomicReference<>();
+
+    // Orders sync writes with the commands the write thread sends in sync mode, they share the OUT endpoint.
+    // Scheduled writes only try to take it.
+    final ReentrantLock syncWriteLock = new ReentrantLock();
+
     // InputStream and OutputStream (only for sync api)
     protected SerialInputStream inputStream;
     protected SerialOutputStream outputStream;
 
     protected boolean asyncMode;
 
+    // Number of OUT requests queued at the same time, 0 writes with blocking bulk transfers
+    private int writeRequestCount;
+
+    private volatile CommandChannel commandChannel;
+
+    private SerialIoScheduler ioScheduler;
+
     private String portName = "";
-    protected boolean isOpen;
+    protected volatile boolean isOpen; // Read by the read ahead thread of the input stream
 
     public UsbSerialDevice(UsbDevice device, UsbDeviceConnection connection)
     {
@@ -56,6 +90,7 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         this.connection = connection;
         this.asyncMode = true;
         serialBuffer = new SerialBuffer(mr1Version);
+        metrics = new SerialPortMetrics(serialBuffer);
     }
 
     public static UsbSerialDevice createUsbSerialDevice(UsbDevice device, UsbDeviceConnection connection)
@@ -123,11 +158,208 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     @Override
     public abstract boolean open();
 
+    /**
+     * Queue data for the write thread. With a bounded write buffer in {@link #WRITE_BUFFER_FAIL} mode
+     * an IllegalStateException is thrown when the data does not fit.
+     */
     @Override
     public void write(byte[] buffer)
     {
-        if(asyncMode)
-            serialBuffer.putWriteBuffer(buffer);
+        if(asyncMode && !serialBuffer.putWriteBuffer(buffer))
+            throw new IllegalStateException("Write buffer full");
+        onWriteQueued();
+    }
+
+    /**
+     * Gathering write: the remaining bytes of every buffer in srcs are queued as a single write,
+     * packed one after the other without joining them first. Their positions are advanced.
+     */
+    public void write(ByteBuffer... srcs)
+    {
+        if(asyncMode && !serialBuffer.putWriteBuffer(srcs, null))
+            throw new IllegalStateException("Write buffer full");
+        onWriteQueued();
+    }
+
+    /**
+     * Queue data for the write thread and get notified when it has been transferred to the device.
+     *
+     * @return a future completed with the number of bytes written once the last one of them has been
+     * transferred
+     * @throws IllegalStateException if the port was opened in sync mode or the write buffer is full in
+     * {@link #WRITE_BUFFER_FAIL} mode
+     */
+    public WriteFuture writeAsync(byte[] buffer)
+    {
+        if(!asyncMode)
+            throw new IllegalStateException("writeAsync only available in Async mode. \n" +
+                    "Open the port with open()");
+
+        WriteFuture future = new WriteFuture(buffer.length);
+        if(!serialBuffer.putWriteBuffer(buffer, future))
+            throw new IllegalStateException("Write buffer full");
+        onWriteQueued();
+        return future;
+    }
+
+    /**
+     * Same as {@link #writeAsync(byte[])} taking the remaining bytes of buffer. They are copied before
+     * returning, so buffer can be reused right away.
+     */
+    public WriteFuture writeAsync(ByteBuffer buffer)
+    {
+        if(!asyncMode)
+            throw new IllegalStateException("writeAsync only available in Async mode. \n" +
+                    "Open the port with open()");
+
+        WriteFuture future = new WriteFuture(buffer.remaining());
+        if(!serialBuffer.putWriteBuffer(buffer, future))
+            throw new IllegalStateException("Write buffer full");
+        onWriteQueued();
+        return future;
+    }
+
+    /**
+     * Gathering {@link #writeAsync(ByteBuffer)}: the buffers are transferred as a single write,
+     * completing one future.
+     */
+    public WriteFuture writeAsync(ByteBuffer... srcs)
+    {
+        if(!asyncMode)
+            throw new IllegalStateException("writeAsync only available in Async mode. \n" +
+                    "Open the port with open()");
+
+        long length = 0;
+        for(ByteBuffer src : srcs)
+        {
+            length += src.remaining();
+        }
+        WriteFuture future = new WriteFuture((int) Math.min(length, Integer.MAX_VALUE));
+        if(!serialBuffer.putWriteBuffer(srcs, future))
+            throw new IllegalStateException("Write buffer full");
+        onWriteQueued();
+        return future;
+    }
+
+    /**
+     * Block until every byte written so far has been transferred to the device. Writes dropped by a
+     * bounded write buffer in {@link #WRITE_BUFFER_DROP_OLDEST} mode are not waited for.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if the write queue was drained, false on timeout or in sync mode
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public boolean flush(long timeout) throws InterruptedException
+    {
+        if(!asyncMode)
+            return false;
+        return serialBuffer.flushWriteBuffer(TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    /**
+     * Latest value wins channel for control commands, drained by the write thread. It is created the
+     * first time is requested. In sync mode there is no write thread, one is started for the channel
+     * so call this after {@link #syncOpen()}. Its commands are then sent between the sync writes,
+     * never in the middle of one.
+     */
+    public synchronized CommandChannel getCommandChannel()
+    {
+        if(commandChannel == null)
+            commandChannel = new CommandChannel(this::wakeUpWriter);
+
+        if(!asyncMode && isOpen && (writeThread == null || !writeThread.isActive()))
+        {
+            restartWriteThread();
+            writeThread.setUsbEndpoint(outEndpoint);
+            writeThread.setUsbRequests(null); // OUT requests need WorkerThread, not running in sync mode
+        }
+        return commandChannel;
+    }
+
+    /**
+     * <p>
+     *     Use this setter <strong>before</strong> calling {@link #open()} to write from a scheduler shared
+     *     with other ports instead of a write thread of its own.
+     * </p>
+     *
+     * <p>
+     *     Every chunk is written with a bulk transfer timeout of one second, so a stalled port can not hold
+     *     the others forever. Combine it with {@link #setWriteRequestCount(int)} to never block the scheduler.
+     * </p>
+     *
+     * @param ioScheduler shared scheduler, null (default) for a write thread per port
+     */
+    public void setIoScheduler(SerialIoScheduler ioScheduler)
+    {
+        this.ioScheduler = ioScheduler;
+    }
+
+    public SerialIoScheduler getIoScheduler()
+    {
+        return ioScheduler;
+    }
+
+    private void onWriteQueued()
+    {
+        metrics.onWriteQueued(serialBuffer.getWriteQueueSize());
+        WriteThread writer = writeThread;
+        if(writer != null)
+            writer.requestDrain();
+    }
+
+    private void wakeUpWriter()
+    {
+        WriteThread writer = writeThread;
+        if(writer != null && writer.isScheduled())
+            writer.requestDrain();
+        else
+            serialBuffer.wakeUpWriter();
+    }
+
+    /**
+     * <p>
+     *     Use this setter <strong>before</strong> calling {@link #open()} to write with queued OUT requests
+     *     instead of one blocking bulk transfer at a time.
+     * </p>
+     *
+     * <p>
+     *     With several requests in flight the next chunk is already queued when the previous one completes,
+     *     which keeps the OUT pipe busy during large uploads. Every request uses its own 16 KB direct buffer.
+     *     Only available on Android 4.3 and above, older versions keep writing with blocking bulk transfers.
+     * </p>
+     *
+     * @param count number of OUT requests kept in flight, 0 (default) for blocking bulk transfers
+     */
+    public void setWriteRequestCount(int count)
+    {
+        if(count < 0)
+            throw new IllegalArgumentException("Write request count must not be negative");
+        writeRequestCount = count;
+    }
+
+    public int getWriteRequestCount()
+    {
+        return writeRequestCount;
+    }
+
+    /**
+     * Bound the write buffer, which is unbounded by default.
+     *
+     * @param capacity maximum number of bytes waiting to be written
+     * @param policy what {@link #write(byte[])} does when full: {@link #WRITE_BUFFER_BLOCK},
+     *               {@link #WRITE_BUFFER_DROP_OLDEST} or {@link #WRITE_BUFFER_FAIL}
+     */
+    public void setWriteBufferCapacity(long capacity, int policy)
+    {
+        serialBuffer.setWriteBufferCapacity(capacity, policy);
+    }
+
+    /**
+     * @return number of bytes written but not yet handed to the USB stack
+     */
+    public long getWriteQueueSize()
+    {
+        return serialBuffer.getWriteQueueSize();
     }
 
     /**
@@ -154,8 +386,41 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         return -1;
     }
 
+    /**
+     * <p>
+     *     Use this setter <strong>before</strong> calling {@link #open()} to change how many IN requests are kept
+     *     queued at the same time.
+     * </p>
+     *
+     * <p>
+     *     At high baud rates a single request leaves a gap between its completion and the next queued read.
+     *     Every request uses its own 16 KB direct buffer.
+     * </p>
+     *
+     * @param count number of IN requests kept in flight, at least 1
+     */
+    public void setReadRequestCount(int count)
+    {
+        serialBuffer.setReadBufferCount(count);
+    }
+
+    public int getReadRequestCount()
+    {
+        return serialBuffer.getReadBufferCount();
+    }
+
     @Override
     public int read(UsbReadCallback mCallback)
+    {
+        return readBuffer(mCallback != null ? new UsbReadCallbackAdapter(mCallback) : null);
+    }
+
+    /**
+     * Zero copy version of {@link #read(UsbReadCallback)}. The callback receives a read-only view of the
+     * pooled read buffer, it must not be kept after the callback returns.
+     */
+    @Override
+    public int readBuffer(UsbReadBufferCallback mCallback)
     {
         if(!asyncMode)
             return -1;
@@ -163,12 +428,12 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         if(mr1Version)
         {
             if (workerThread != null) {
-                workerThread.setCallback(mCallback);
-                workerThread.getUsbRequest().queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                workerThread.setBufferCallback(mCallback);
+                workerThread.queueRequests();
             }
         }else
         {
-            readThread.setCallback(mCallback);
+            readThread.setBufferCallback(mCallback);
             //readThread.start();
         }
         return 0;
@@ -193,7 +458,17 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             if(buffer == null)
                 return 0;
 
-            return connection.bulkTransfer(outEndpoint, buffer, buffer.length, timeout);
+            syncWriteLock.lock();
+            try
+            {
+                long start = System.nanoTime();
+                int ret = connection.bulkTransfer(outEndpoint, buffer, buffer.length, timeout);
+                metrics.onWrite(buffer.length, ret, System.nanoTime() - start);
+                return ret;
+            }finally
+            {
+                syncWriteLock.unlock();
+            }
         }else
         {
             return -1;
@@ -211,7 +486,10 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         if (buffer == null)
             return 0;
 
-        return connection.bulkTransfer(inEndpoint, buffer, buffer.length, timeout);
+        long start = System.nanoTime();
+        int ret = connection.bulkTransfer(inEndpoint, buffer, buffer.length, timeout);
+        metrics.onRead(fullReadLength(inEndpoint, buffer.length), ret, System.nanoTime() - start);
+        return ret;
     }
 
     @TargetApi(18)
@@ -222,7 +500,17 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             if(buffer == null)
                 return 0;
 
-            return connection.bulkTransfer(outEndpoint, buffer, offset, length, timeout);
+            syncWriteLock.lock();
+            try
+            {
+                long start = System.nanoTime();
+                int ret = connection.bulkTransfer(outEndpoint, buffer, offset, length, timeout);
+                metrics.onWrite(length, ret, System.nanoTime() - start);
+                return ret;
+            }finally
+            {
+                syncWriteLock.unlock();
+            }
         }else
         {
             return -1;
@@ -240,7 +528,176 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         if (buffer == null)
             return 0;
 
-        return connection.bulkTransfer(inEndpoint, buffer, offset, length, timeout);
+        long start = System.nanoTime();
+        int ret = connection.bulkTransfer(inEndpoint, buffer, offset, length, timeout);
+        metrics.onRead(fullReadLength(inEndpoint, length), ret, System.nanoTime() - start);
+        return ret;
+    }
+
+    /**
+     * Write the remaining bytes of buffer in one bulk transfer, its position is moved past the
+     * bytes written. Direct buffers are written at most 16 KB at a time.
+     */
+    @Override
+    public int syncWrite(ByteBuffer buffer, int timeout)
+    {
+        if(asyncMode)
+        {
+            return -1;
+        }
+
+        if(buffer == null)
+            return 0;
+
+        int ret;
+        if(buffer.hasArray())
+        {
+            ret = syncWriteArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), timeout);
+        }else
+        {
+            byte[] array = takeSyncArray();
+            int length = Math.min(buffer.remaining(), array.length);
+            buffer.duplicate().get(array, 0, length);
+            ret = syncWriteArray(array, 0, length, timeout);
+            syncArrayPool.set(array);
+        }
+        if(ret > 0)
+            buffer.position(buffer.position() + ret);
+        return ret;
+    }
+
+    /**
+     * Read at most the remaining bytes of buffer, its position is moved past the bytes read.
+     * Direct buffers are read at most 16 KB at a time.
+     */
+    @Override
+    public int syncRead(ByteBuffer buffer, int timeout)
+    {
+        if(asyncMode)
+        {
+            return -1;
+        }
+
+        if(buffer == null || !buffer.hasRemaining())
+            return 0;
+
+        if(buffer.hasArray())
+        {
+            int ret = syncReadArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), timeout);
+            if(ret > 0)
+                buffer.position(buffer.position() + ret);
+            return ret;
+        }
+
+        byte[] array = takeSyncArray();
+        int ret = syncReadArray(array, 0, Math.min(buffer.remaining(), array.length), timeout);
+        if(ret > 0)
+            buffer.put(array, 0, ret);
+        syncArrayPool.set(array);
+        return ret;
+    }
+
+    /**
+     * Gathering write: the remaining bytes of every buffer in srcs are packed into bulk transfers of
+     * whole packets, up to 16 KB each, without joining them first. Positions are moved past the bytes
+     * written and marks are discarded.
+     *
+     * @return number of bytes written, or the result of the first transfer if it failed
+     */
+    public int syncWrite(ByteBuffer[] srcs, int timeout)
+    {
+        if(asyncMode)
+        {
+            return -1;
+        }
+
+        if(srcs == null)
+            return 0;
+
+        // Commands of the CommandChannel are not sent between the transfers of one write
+        syncWriteLock.lock();
+        try
+        {
+            return syncWritePacked(srcs, timeout);
+        }finally
+        {
+            syncWriteLock.unlock();
+        }
+    }
+
+    private int syncWritePacked(ByteBuffer[] srcs, int timeout)
+    {
+        int packetSize = getSyncWritePacketSize();
+        if(packetSize <= 0)
+            packetSize = 64;
+        byte[] array = takeSyncArray();
+        int chunk = array.length - array.length % packetSize;
+        int written = 0;
+        int index = 0;
+        while(true)
+        {
+            while(index < srcs.length && !srcs[index].hasRemaining())
+                index++;
+            if(index == srcs.length)
+                break;
+
+            int first = index;
+            int packed = 0;
+            while(packed < chunk && index < srcs.length)
+            {
+                ByteBuffer src = srcs[index];
+                src.mark();
+                int n = Math.min(src.remaining(), chunk - packed);
+                src.get(array, packed, n);
+                packed += n;
+                if(!src.hasRemaining())
+                    index++;
+            }
+
+            int ret = syncWriteArray(array, 0, packed, timeout);
+            if(ret < packed)
+            {
+                // Only the bytes transferred count as read from the buffers
+                int left = Math.max(ret, 0);
+                for(int i=first;i<=Math.min(index, srcs.length-1);i++)
+                {
+                    ByteBuffer src = srcs[i];
+                    int end = src.position();
+                    src.reset();
+                    int taken = Math.min(end - src.position(), left);
+                    src.position(src.position() + taken);
+                    left -= taken;
+                }
+                syncArrayPool.set(array);
+                return ret > 0 || written > 0 ? written + Math.max(ret, 0) : ret;
+            }
+            written += ret;
+        }
+        syncArrayPool.set(array);
+        return written;
+    }
+
+    // The variants of drivers that override them are used, the ones without offset when possible
+
+    private int syncWriteArray(byte[] buffer, int offset, int length, int timeout)
+    {
+        if(offset == 0 && length == buffer.length)
+            return syncWrite(buffer, timeout);
+        return syncWrite(buffer, offset, length, timeout);
+    }
+
+    private int syncReadArray(byte[] buffer, int offset, int length, int timeout)
+    {
+        if(offset == 0 && length == buffer.length)
+            return syncRead(buffer, timeout);
+        return syncRead(buffer, offset, length, timeout);
+    }
+
+    // Concurrent transfers get an array of their own
+    private byte[] takeSyncArray()
+    {
+        byte[] array = syncArrayPool.getAndSet(null);
+        return array != null ? array : new byte[SYNC_ARRAY_SIZE];
     }
 
     // Serial port configuration
@@ -290,6 +747,22 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             serialBuffer.debug(value);
     }
 
+    /**
+     * Record the data written and read in a binary trace instead of logging it, cheap enough to keep
+     * timing sensitive issues reproducible. Only the async API is traced.
+     *
+     * @param traceRecorder recorder of this port, null to stop tracing
+     */
+    public void setTraceRecorder(SerialTraceRecorder traceRecorder)
+    {
+        serialBuffer.setTraceRecorder(traceRecorder);
+    }
+
+    public SerialTraceRecorder getTraceRecorder()
+    {
+        return serialBuffer.getTraceRecorder();
+    }
+
     public void setPortName(String portName) {
         this.portName = portName;
     }
@@ -302,6 +775,14 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         return isOpen;
     }
 
+    /**
+     * I/O counters of this port, kept across close and open
+     */
+    public SerialPortMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     private boolean isFTDIDevice()
     {
         return (this instanceof FTDISerialDevice);
@@ -321,14 +802,20 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
 
 
     /*
-     * WorkerThread waits for request notifications from IN endpoint
+     * WorkerThread waits for request notifications from IN endpoint.
+     * A ring of IN requests is kept queued, each one with its own buffer, and completions
+     * are dispatched in the same order the requests were queued.
      */
     protected class WorkerThread extends AbstractWorkerThread
     {
         private final UsbSerialDevice usbSerialDevice;
 
-        private UsbReadCallback callback;
-        private UsbRequest requestIN;
+        private UsbReadBufferCallback callback;
+        private volatile UsbRequest[] requestsIN;
+        private boolean[] completed;
+        private long[] times; // When each request was queued, its latency once completed
+        private int head;
+        private boolean queued;
 
         public WorkerThread(UsbSerialDevice usbSerialDevice)
         {
@@ -342,76 +829,399 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             if(request != null && request.getEndpoint().getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
                     && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_IN)
             {
-                byte[] data = serialBuffer.getDataReceived();
+                int index = indexOf(request);
+                if(index < 0)
+                    return;
 
-                // FTDI devices reserves two first bytes of an IN endpoint with info about
-                // modem and Line.
-                if(isFTDIDevice())
+                completed[index] = true;
+                times[index] = System.nanoTime() - times[index];
+
+                // Requests on the same endpoint complete in order, but never hand data to the
+                // callback before every earlier request has been dispatched
+                while(completed[head])
                 {
-                    ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(data); //Check the Modem status
-                    serialBuffer.clearReadBuffer();
+                    completed[head] = false;
+                    ByteBuffer data = serialBuffer.getReadView(head);
 
-                    if(data.length > 2)
+                    // FTDI devices reserves two first bytes of an IN endpoint with info about
+                    // modem and Line.
+                    if(isFTDIDevice())
+                    {
+                        // Headers are removed in place and the modem status checked in the same pass,
+                        // the view shares content with the read buffer
+                        FTDISerialDevice.FTDIUtilities ftdiUtilities = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities;
+                        data.limit(ftdiUtilities.stripHeaders(serialBuffer.getReadBuffer(head), data.limit()));
+                        metrics.onRead(fullReadLength(request.getEndpoint(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE),
+                                data.limit(), times[head]);
+                        if(data.limit() > 0)
+                            onReceivedData(data);
+                    }else
                     {
-                        data = FTDISerialDevice.adaptArray(data);
+                        metrics.onRead(fullReadLength(request.getEndpoint(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE),
+                                data.limit(), times[head]);
                         onReceivedData(data);
                     }
-                }else
-                {
-                    // Clear buffer, execute the callback
-                    serialBuffer.clearReadBuffer();
-                    onReceivedData(data);
+
+                    // The view is not valid anymore, the other requests of the ring kept the IN pipe busy meanwhile
+                    serialBuffer.clearReadBuffer(head);
+                    times[head] = System.nanoTime();
+                    requestsIN[head].queue(serialBuffer.getReadBuffer(head), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+                    head = (head + 1) % requestsIN.length;
                 }
-                // Queue a new request
-                requestIN.queue(serialBuffer.getReadBuffer(), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            }else if(request != null && request.getEndpoint().getDirection() == UsbConstants.USB_DIR_OUT)
+            {
+                // There is only one completion queue per connection, OUT requests show up here too
+                WriteThread writer = writeThread;
+                if(writer != null)
+                    writer.onRequestComplete(request);
             }
         }
 
         public void setCallback(UsbReadCallback callback)
+        {
+            this.callback = callback != null ? new UsbReadCallbackAdapter(callback) : null;
+        }
+
+        public void setBufferCallback(UsbReadBufferCallback callback)
         {
             this.callback = callback;
         }
 
-        public void setUsbRequest(UsbRequest request)
+        public void setUsbRequests(UsbRequest[] requests)
         {
-            this.requestIN = request;
+            this.completed = new boolean[requests.length];
+            this.times = new long[requests.length];
+            this.head = 0;
+            this.queued = false;
+            this.requestsIN = requests;
         }
 
-        public UsbRequest getUsbRequest()
+        public UsbRequest[] getUsbRequests()
         {
-            return requestIN;
+            return requestsIN;
         }
 
-        private void onReceivedData(byte[] data)
+        /*
+         * Queue every IN request of the ring. It only has effect the first time is called.
+         */
+        public void queueRequests()
+        {
+            UsbRequest[] requests = requestsIN;
+            if(queued || requests == null)
+                return;
+
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                times[i] = System.nanoTime();
+                requests[i].queue(serialBuffer.getReadBuffer(i), SerialBuffer.DEFAULT_READ_BUFFER_SIZE);
+            }
+            queued = true;
+        }
+
+        private int indexOf(UsbRequest request)
+        {
+            UsbRequest[] requests = requestsIN;
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                if(requests[i] == request)
+                    return i;
+            }
+            return -1;
+        }
+
+        private void onReceivedData(ByteBuffer data)
         {
             if(callback != null)
                 callback.onReceivedData(data);
         }
     }
 
-    private class WriteThread extends AbstractWorkerThread
+    /*
+     * WriteThread hands the write buffer to the OUT endpoint. By default it blocks on a bulk transfer
+     * per chunk. With OUT requests set it keeps all of them queued, their completions are received by
+     * WorkerThread and reported back here in the order they were queued.
+     * With a shared scheduler the thread is never started, drain() runs as a task whenever there is
+     * something to do and never waits for data.
+     */
+    protected class WriteThread extends AbstractWorkerThread
     {
+        private final byte[] data = new byte[SerialBuffer.MAX_BULK_BUFFER];
         private UsbEndpoint outEndpoint;
 
+        private volatile UsbRequest[] requestsOUT;
+        private ByteBuffer[] buffersOUT;
+        private int[] lengths;
+        private long[] queuedAt;
+        private boolean[] completed;
+        private Semaphore freeRequests;
+        private int next; // Only touched by the write thread
+        private int head; // Only touched by the completing thread
+
+        private volatile SerialIoScheduler scheduler;
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private final Runnable drainTask = this::drain;
+        private ScheduledFuture<?> commandTimer;
+
         @Override
         public void doRun()
         {
-            byte[] data = serialBuffer.getWriteBuffer();
-            if(data.length > 0)
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+            if(requestsOUT == null)
+            {
+                int length = serialBuffer.getWriteBuffer(data, pollCommands());
+                if(length > 0)
+                {
+                    long start = System.nanoTime();
+                    int sent = transfer(length);
+                    metrics.onWrite(length, sent, System.nanoTime() - start);
+                    serialBuffer.onWriteTransferred(length, sent == length);
+                }
+                return;
+            }
+
+            try
+            {
+                freeRequests.acquire();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            ByteBuffer buffer = buffersOUT[next];
+            buffer.clear();
+            int length = serialBuffer.getWriteBuffer(buffer, pollCommands());
+            if(length == 0)
+            {
+                freeRequests.release();
+                return;
+            }
+            queue(buffer, length);
+        }
+
+        void setScheduler(SerialIoScheduler scheduler)
+        {
+            this.scheduler = scheduler;
+        }
+
+        boolean isScheduled()
+        {
+            return scheduler != null;
+        }
+
+        // Writing, from its own thread or a scheduler
+        boolean isActive()
+        {
+            return isAlive() || isScheduled();
+        }
+
+        /*
+         * Make sure drain() runs after this call. Only one drain() task is pending or running at a time.
+         */
+        void requestDrain()
+        {
+            SerialIoScheduler current = scheduler;
+            if(current != null && drainRequests.getAndIncrement() == 0)
+                current.execute(drainTask);
+        }
+
+        private void drain()
+        {
+            SerialIoScheduler current = scheduler;
+            if(current == null)
+            {
+                drainRequests.set(0);
+                return;
+            }
+
+            int seen = drainRequests.get();
+            if(drainOnce(current))
+            {
+                // More to write, go to the back of the queue so other ports get their turn
+                current.execute(drainTask);
+            }else if(!drainRequests.compareAndSet(seen, 0))
+            {
+                current.execute(drainTask);
+            }
+        }
+
+        /*
+         * Write one chunk without waiting for data. Returns true if there may be more to write.
+         */
+        private boolean drainOnce(SerialIoScheduler current)
+        {
+            long delay = pollCommands();
+            if(delay > 0 && (commandTimer == null || commandTimer.isDone()))
+                commandTimer = current.schedule(this::requestDrain, delay);
+
+            if(requestsOUT == null)
+            {
+                // A sync write in progress may block for long, try again later instead of waiting for it
+                boolean locked = !asyncMode;
+                if(locked && !syncWriteLock.tryLock())
+                {
+                    current.schedule(this::requestDrain, SYNC_WRITE_RETRY);
+                    return false;
+                }
+                try
+                {
+                    int length = serialBuffer.pollWriteBuffer(data);
+                    if(length == 0)
+                        return false;
+
+                    long start = System.nanoTime();
+                    int sent = connection.bulkTransfer(outEndpoint, data, length, SCHEDULED_WRITE_TIMEOUT);
+                    metrics.onWrite(length, sent, System.nanoTime() - start);
+                    serialBuffer.onWriteTransferred(length, sent == length);
+                    return !serialBuffer.isWriteBufferEmpty();
+                }finally
+                {
+                    if(locked)
+                        syncWriteLock.unlock();
+                }
+            }
+
+            // Without a free request there is nothing to do, the next completion asks for a drain
+            if(!freeRequests.tryAcquire())
+                return false;
+
+            ByteBuffer buffer = buffersOUT[next];
+            buffer.clear();
+            int length = serialBuffer.pollWriteBuffer(buffer);
+            if(length == 0)
+            {
+                freeRequests.release();
+                return false;
+            }
+            queue(buffer, length);
+            return true;
+        }
+
+        private void queue(ByteBuffer buffer, int length)
+        {
+            // The request sends from the start of the buffer and leaves the position at the
+            // number of bytes transferred
+            buffer.flip();
+            synchronized(this)
+            {
+                lengths[next] = length;
+                queuedAt[next] = System.nanoTime();
+            }
+            if(!requestsOUT[next].queue(buffer, length))
+                onRequestComplete(requestsOUT[next]);
+            next = (next + 1) % requestsOUT.length;
+        }
+
+        // In sync mode the commands wait for the sync write in progress, if any
+        private int transfer(int length)
+        {
+            if(asyncMode)
+                return connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+
+            syncWriteLock.lock();
+            try
+            {
+                return connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
+            }finally
+            {
+                syncWriteLock.unlock();
+            }
+        }
+
+        /*
+         * Move the commands that are due to the write buffer. Returns how long to wait for data
+         * before the next command is due, 0 to wait with no limit.
+         */
+        private long pollCommands()
+        {
+            CommandChannel channel = commandChannel;
+            if(channel == null)
+                return 0;
+
+            long now = System.nanoTime();
+            byte[] command;
+            while((command = channel.poll(now)) != null)
+            {
+                serialBuffer.putWriteBuffer(command);
+            }
+            return channel.getDelay(now);
         }
 
         public void setUsbEndpoint(UsbEndpoint outEndpoint)
         {
             this.outEndpoint = outEndpoint;
         }
+
+        // null writes with blocking bulk transfers
+        public void setUsbRequests(UsbRequest[] requests)
+        {
+            if(requests == null)
+            {
+                requestsOUT = null;
+                return;
+            }
+
+            buffersOUT = new ByteBuffer[requests.length];
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                buffersOUT[i] = ByteBuffer.allocateDirect(SerialBuffer.MAX_BULK_BUFFER);
+            }
+            lengths = new int[requests.length];
+            queuedAt = new long[requests.length];
+            completed = new boolean[requests.length];
+            freeRequests = new Semaphore(requests.length);
+            next = 0;
+            head = 0;
+            requestsOUT = requests;
+        }
+
+        public UsbRequest[] getUsbRequests()
+        {
+            return requestsOUT;
+        }
+
+        synchronized void onRequestComplete(UsbRequest request)
+        {
+            int index = indexOf(request);
+            if(index < 0)
+                return;
+
+            completed[index] = true;
+            queuedAt[index] = System.nanoTime() - queuedAt[index]; // Latency until dispatched
+            while(completed[head])
+            {
+                completed[head] = false;
+                int length = lengths[head];
+                int sent = buffersOUT[head].position();
+                metrics.onWrite(length, sent, queuedAt[head]);
+                serialBuffer.onWriteTransferred(length, sent == length);
+                head = (head + 1) % requestsOUT.length;
+                freeRequests.release();
+            }
+
+            // A shared scheduler does not wait for free requests, it has to be told
+            requestDrain();
+        }
+
+        private int indexOf(UsbRequest request)
+        {
+            UsbRequest[] requests = requestsOUT;
+            if(requests == null)
+                return -1;
+
+            for(int i=0;i<=requests.length-1;i++)
+            {
+                if(requests[i] == request)
+                    return i;
+            }
+            return -1;
+        }
     }
 
     protected class ReadThread extends AbstractWorkerThread
     {
         private final UsbSerialDevice usbSerialDevice;
 
-        private UsbReadCallback callback;
+        private UsbReadBufferCallback callback;
         private UsbEndpoint inEndpoint;
 
         public ReadThread(UsbSerialDevice usbSerialDevice)
@@ -420,6 +1230,11 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         }
 
         public void setCallback(UsbReadCallback callback)
+        {
+            this.callback = callback != null ? new UsbReadCallbackAdapter(callback) : null;
+        }
+
+        public void setBufferCallback(UsbReadBufferCallback callback)
         {
             this.callback = callback;
         }
@@ -429,29 +1244,36 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         {
             byte[] dataReceived = null;
             int numberBytes;
+            long start = System.nanoTime();
             if(inEndpoint != null)
                 numberBytes = connection.bulkTransfer(inEndpoint, serialBuffer.getBufferCompatible(),
                         SerialBuffer.DEFAULT_READ_BUFFER_SIZE, 0);
             else
                 numberBytes = 0;
+            long latency = System.nanoTime() - start;
 
+            int full = inEndpoint != null ? fullReadLength(inEndpoint, SerialBuffer.DEFAULT_READ_BUFFER_SIZE) : 0;
+            if(inEndpoint != null && numberBytes <= 0)
+                metrics.onRead(full, numberBytes, latency);
             if(numberBytes > 0)
             {
-                dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
-
                 // FTDI devices reserve two first bytes of an IN endpoint with info about
                 // modem and Line.
                 if(isFTDIDevice())
                 {
-                    ((FTDISerialDevice) usbSerialDevice).ftdiUtilities.checkModemStatus(dataReceived);
-
-                    if(dataReceived.length > 2)
+                    // Headers are removed in place, only the data is copied out
+                    FTDISerialDevice.FTDIUtilities ftdiUtilities = ((FTDISerialDevice) usbSerialDevice).ftdiUtilities;
+                    int length = ftdiUtilities.stripHeaders(serialBuffer.getBufferCompatible(), 0, numberBytes);
+                    metrics.onRead(full, length, latency);
+                    if(length > 0)
                     {
-                        dataReceived = FTDISerialDevice.adaptArray(dataReceived);
+                        dataReceived = serialBuffer.getDataReceivedCompatible(length);
                         onReceivedData(dataReceived);
                     }
                 }else
                 {
+                    metrics.onRead(full, numberBytes, latency);
+                    dataReceived = serialBuffer.getDataReceivedCompatible(numberBytes);
                     onReceivedData(dataReceived);
                 }
             }
@@ -462,10 +1284,32 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
             this.inEndpoint = inEndpoint;
         }
 
+        // Android < 4.3 keeps copying every read, there are no pooled direct buffers there
         private void onReceivedData(byte[] data)
         {
             if(callback != null)
-                callback.onReceivedData(data);
+                callback.onReceivedData(ByteBuffer.wrap(data).asReadOnlyBuffer());
+        }
+    }
+
+    /*
+     * Keeps the byte[] callback working on top of the buffer based read path
+     */
+    private static class UsbReadCallbackAdapter implements UsbReadBufferCallback
+    {
+        private final UsbReadCallback callback;
+
+        UsbReadCallbackAdapter(UsbReadCallback callback)
+        {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onReceivedData(ByteBuffer data)
+        {
+            byte[] dst = new byte[data.remaining()];
+            data.get(dst);
+            callback.onReceivedData(dst);
         }
     }
 
@@ -475,49 +1319,97 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
         this.outEndpoint = outEndpoint;
     }
 
+    // Max packet size of the IN endpoint read by syncRead, 0 if not open in sync mode
+    int getSyncReadPacketSize()
+    {
+        return inEndpoint != null ? inEndpoint.getMaxPacketSize() : 0;
+    }
+
+    // Data bytes an IN transfer of length returns when it gets a full packet of endpoint, for the metrics
+    int fullReadLength(UsbEndpoint endpoint, int length)
+    {
+        int packet = endpoint != null ? endpoint.getMaxPacketSize() : 0;
+        if(isFTDIDevice())
+            packet -= 2; // Status header of every packet
+        return packet > 0 ? Math.min(length, packet) : length;
+    }
+
+    // Max packet size of the OUT endpoint written by syncWrite, 0 if not open in sync mode
+    int getSyncWritePacketSize()
+    {
+        return outEndpoint != null ? outEndpoint.getMaxPacketSize() : 0;
+    }
+
     protected void setThreadsParams(UsbRequest request, UsbEndpoint endpoint)
     {
         writeThread.setUsbEndpoint(endpoint);
         if(mr1Version)
         {
-            workerThread.setUsbRequest(request);
+            writeThread.setUsbRequests(writeRequestCount > 0 ? createWriteRequests(endpoint) : null);
+            workerThread.setUsbRequests(createReadRequests(request));
         }else
         {
             readThread.setUsbEndpoint(request.getEndpoint());
         }
+        writeThread.requestDrain(); // Anything written while closed
     }
 
     /*
-     * Kill workingThread; This must be called when closing a device
+     * The given request heads the ring, the rest of the IN requests are created for the same endpoint
+     */
+    private UsbRequest[] createReadRequests(UsbRequest request)
+    {
+        UsbRequest[] requests = new UsbRequest[serialBuffer.getReadBufferCount()];
+        requests[0] = request;
+        for(int i=1;i<=requests.length-1;i++)
+        {
+            requests[i] = new SafeUsbRequest();
+            requests[i].initialize(connection, request.getEndpoint());
+        }
+        return requests;
+    }
+
+    private UsbRequest[] createWriteRequests(UsbEndpoint endpoint)
+    {
+        UsbRequest[] requests = new UsbRequest[writeRequestCount];
+        for(int i=0;i<=requests.length-1;i++)
+        {
+            requests[i] = new SafeUsbRequest();
+            requests[i].initialize(connection, endpoint);
+        }
+        return requests;
+    }
+
+    /*
+     * Kill workingThread; This must be called when closing a device.
+     * It is not waited for, it may be blocked in requestWait() until the connection is closed.
      */
     protected void killWorkingThread()
     {
         if(mr1Version && workerThread != null)
         {
             workerThread.stopThread();
-            workerThread = null;
         }else if(!mr1Version && readThread != null)
         {
             readThread.stopThread();
-            readThread = null;
         }
     }
 
     /*
-     * Restart workingThread if it has been killed before
+     * Restart workingThread if it has been killed before. Threads are kept across close/open cycles.
      */
     protected void restartWorkingThread()
     {
-        if(mr1Version && workerThread == null)
+        if(mr1Version)
         {
-            workerThread = new WorkerThread(this);
+            if(workerThread == null)
+                workerThread = new WorkerThread(this);
             workerThread.start();
-            while(!workerThread.isAlive()){} // Busy waiting
-        }else if(!mr1Version && readThread == null)
+        }else
         {
-            readThread = new ReadThread(this);
+            if(readThread == null)
+                readThread = new ReadThread(this);
             readThread.start();
-            while(!readThread.isAlive()){} // Busy waiting
         }
     }
 
@@ -525,18 +1417,19 @@ public abstract class UsbSerialDevice implements UsbSerialInterface
     {
         if(writeThread != null)
         {
-            writeThread.stopThread();
-            writeThread = null;
+            writeThread.setScheduler(null);
+            writeThread.stopThread(STOP_TIMEOUT);
         }
     }
 
     protected void restartWriteThread()
     {
         if(writeThread == null)
-        {
             writeThread = new WriteThread();
+
+        if(ioScheduler != null)
+            writeThread.setScheduler(ioScheduler);
+        else
             writeThread.start();
-            while(!writeThread.isAlive()){} // Busy waiting
-        }
     }
 }
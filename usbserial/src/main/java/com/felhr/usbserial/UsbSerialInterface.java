@@ -1,5 +1,7 @@
 package com.felhr.usbserial;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface to handle a serial port
  * @author felhr (felhr85@gmail.com)
@@ -28,10 +30,16 @@ public interface UsbSerialInterface
     int FLOW_CONTROL_DSR_DTR = 2;
     int FLOW_CONTROL_XON_XOFF = 3;
 
+    // What a write does when a bounded write buffer is full
+    int WRITE_BUFFER_BLOCK = 0;
+    int WRITE_BUFFER_DROP_OLDEST = 1;
+    int WRITE_BUFFER_FAIL = 2;
+
     // Common Usb Serial Operations (I/O Asynchronous)
     boolean open();
     void write(byte[] buffer);
     int read(UsbReadCallback mCallback);
+    int readBuffer(UsbReadBufferCallback mCallback);
     void close();
 
     // Common Usb Serial Operations (I/O Synchronous)
@@ -40,6 +48,8 @@ public interface UsbSerialInterface
     int syncRead(byte[] buffer, int timeout);
     int syncWrite(byte[] buffer, int offset, int length, int timeout);
     int syncRead(byte[] buffer, int offset, int length, int timeout);
+    int syncWrite(ByteBuffer buffer, int timeout);
+    int syncRead(ByteBuffer buffer, int timeout);
     void syncClose();
 
     // Serial port configuration
@@ -99,4 +109,11 @@ public interface UsbSerialInterface
         void onReceivedData(byte[] data);
     }
 
+    // Usb Read Callback without copies. data is a read-only view of a pooled buffer,
+    // it is only valid until the callback returns
+    interface UsbReadBufferCallback
+    {
+        void onReceivedData(ByteBuffer data);
+    }
+
 }
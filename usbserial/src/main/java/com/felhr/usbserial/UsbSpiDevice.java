@@ -82,14 +82,15 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
 
     protected class WriteThread extends AbstractWorkerThread
     {
+        private final byte[] data = new byte[SerialBuffer.MAX_BULK_BUFFER];
         private UsbEndpoint outEndpoint;
 
         @Override
         public void doRun()
         {
-            byte[] data = serialBuffer.getWriteBuffer();
-            if(data.length > 0)
-                connection.bulkTransfer(outEndpoint, data, data.length, USB_TIMEOUT);
+            int length = serialBuffer.getWriteBuffer(data);
+            if(length > 0)
+                connection.bulkTransfer(outEndpoint, data, length, USB_TIMEOUT);
         }
 
         public void setUsbEndpoint(UsbEndpoint outEndpoint)
@@ -154,38 +155,29 @@ public abstract class UsbSpiDevice implements UsbSpiInterface
     protected void killWorkingThread()
     {
         if(readThread != null)
-        {
             readThread.stopThread();
-            readThread = null;
-        }
     }
 
     /*
-     * Restart workingThread if it has been killed before
+     * Restart workingThread if it has been killed before. Threads are kept across close/open cycles.
      */
     protected void restartWorkingThread()
     {
-        readThread = new ReadThread();
+        if(readThread == null)
+            readThread = new ReadThread();
         readThread.start();
-        while(!readThread.isAlive()){} // Busy waiting
     }
 
     protected void killWriteThread()
     {
         if(writeThread != null)
-        {
-            writeThread.stopThread();
-            writeThread = null;
-        }
+            writeThread.stopThread(UsbSerialDevice.STOP_TIMEOUT);
     }
 
     protected void restartWriteThread()
     {
         if(writeThread == null)
-        {
             writeThread = new WriteThread();
-            writeThread.start();
-            while(!writeThread.isAlive()){} // Busy waiting
-        }
+        writeThread.start();
     }
 }
@@ -0,0 +1,138 @@
+package com.felhr.usbserial;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a single write. It is done once every byte of the write has been handed to the device
+ * by a bulk transfer. The result is the number of bytes written.
+ * <p>
+ * A write dropped by a bounded write buffer in drop oldest mode is reported as cancelled and a failed
+ * bulk transfer as an {@link ExecutionException} caused by an {@link IOException}.
+ * <p>
+ * Submit and completion times are taken with {@link System#nanoTime()}, so the difference between
+ * them is the time the write spent queued and in flight.
+ */
+public class WriteFuture implements Future<Integer>
+{
+    private static final int PENDING = 0;
+    private static final int WRITTEN = 1;
+    private static final int FAILED = 2;
+    private static final int DROPPED = 3;
+
+    private final int length;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int state = PENDING;
+    private final long submitTime;
+    private volatile long completeTime;
+
+    long endOffset; // Position of the last byte of this write in the stream of written bytes
+
+    WriteFuture(int length)
+    {
+        this.length = length;
+        this.submitTime = System.nanoTime();
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the write was queued
+     */
+    public long getSubmitTime()
+    {
+        return submitTime;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the write was done, 0 while it is pending
+     */
+    public long getCompleteTime()
+    {
+        return completeTime;
+    }
+
+    /**
+     * @return time from submission to completion, -1 while the write is pending
+     */
+    public long getLatency(TimeUnit unit)
+    {
+        if(!isDone())
+            return -1;
+        return unit.convert(completeTime - submitTime, TimeUnit.NANOSECONDS);
+    }
+
+    // Write futures can not be cancelled, the data is already in the write buffer
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return state == DROPPED;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return state != PENDING;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException, ExecutionException
+    {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if(!done.await(timeout, unit))
+            throw new TimeoutException("Write not completed after " + timeout + " " + unit);
+        return result();
+    }
+
+    void complete(boolean success)
+    {
+        finish(success ? WRITTEN : FAILED);
+    }
+
+    void drop()
+    {
+        finish(DROPPED);
+    }
+
+    private void finish(int newState)
+    {
+        if(state != PENDING)
+            return;
+        completeTime = System.nanoTime();
+        state = newState;
+        done.countDown();
+    }
+
+    private Integer result() throws ExecutionException
+    {
+        switch(state)
+        {
+            case FAILED:
+                throw new ExecutionException(new IOException("Bulk transfer failed"));
+            case DROPPED:
+                throw new CancellationException("Dropped from a full write buffer");
+            default:
+                return length;
+        }
+    }
+}
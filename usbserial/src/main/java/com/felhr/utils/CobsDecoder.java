@@ -0,0 +1,93 @@
+package com.felhr.utils;
+
+/**
+ * Decoder of COBS (Consistent Overhead Byte Stuffing) frames, each one ended by a zero byte.
+ * Frames are the decoded payloads.
+ * <p>
+ * Data is decoded as it is appended into a reusable buffer. Malformed frames and frames longer than
+ * the maximum size are dropped and counted.
+ */
+public class CobsDecoder implements FrameDecoder {
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024;
+
+    private final FrameAccumulator frame;
+
+    private int code = 0; // Code of the current block, 0 before the first one
+    private int remaining = 0; // Data bytes left in the current block
+    private boolean dropping = false; // Discarding a frame until its end
+    private long droppedFrames = 0;
+
+    public CobsDecoder(){
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize maximum decoded length, longer frames are dropped
+     */
+    public CobsDecoder(int maxFrameSize){
+        this.frame = new FrameAccumulator(maxFrameSize);
+    }
+
+    @Override
+    public void append(byte[] data, int offset, int length, FrameHandler handler){
+        int end = offset + length;
+        for(int i=offset;i<end;i++){
+            byte value = data[i];
+            if(value == 0){
+                endFrame(handler);
+            }else if(dropping){
+                // Wait for the end of the frame
+            }else if(remaining == 0){
+                // A block shorter than 254 bytes stands for data followed by a zero, unless it is the last one
+                boolean added = code == 0 || code == 0xFF || frame.put((byte) 0);
+                code = value & 0xFF;
+                remaining = code - 1;
+                if(!added)
+                    drop();
+            }else{
+                // Data bytes of the block up to the next zero
+                int run = 1;
+                int maxRun = Math.min(remaining, end - i);
+                while(run < maxRun && data[i + run] != 0){
+                    run++;
+                }
+                if(frame.put(data, i, run)){
+                    remaining -= run;
+                    i += run - 1;
+                }else{
+                    drop();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear(){
+        code = 0;
+        remaining = 0;
+        dropping = false;
+        frame.reset();
+    }
+
+    // Malformed frames and frames longer than the maximum size
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    private void endFrame(FrameHandler handler){
+        if(!dropping && code != 0){
+            if(remaining == 0){
+                handler.onFrame(frame.buffer, 0, frame.length);
+            }else{
+                droppedFrames++; // Ended in the middle of a block
+            }
+        }
+        clear();
+    }
+
+    private void drop(){
+        droppedFrames++;
+        dropping = true;
+    }
+}
@@ -0,0 +1,252 @@
+package com.felhr.utils;
+
+import java.util.Arrays;
+
+/**
+ * Streaming splitter of a byte stream into frames ending with a delimiter of one or more bytes.
+ * <p>
+ * Every byte is scanned once: the scan resumes where the previous append stopped and a KMP
+ * matcher keeps track of a delimiter split between appends. Frames are handed to a
+ * {@link FrameDecoder.FrameHandler} as slices of the internal buffer, delimiter included, without
+ * copying them. Only the unfinished frame is moved, when room is needed at the end of the buffer.
+ * <p>
+ * By default the buffer grows to hold frames of any length. With
+ * {@link #setOverflowPolicy(int, int)} frames are bounded and the buffer never grows beyond the
+ * maximum frame size: a frame reaching it without a delimiter is dropped or cut.
+ * <p>
+ * It is not thread safe.
+ */
+public class DelimiterFramer implements FrameDecoder {
+
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    // Overflow policies
+    public static final int OVERFLOW_GROW = 0; // No maximum frame size, the buffer grows as needed
+    public static final int OVERFLOW_DROP = 1; // Discard the oversized frame up to its delimiter
+    public static final int OVERFLOW_RESYNC = 2; // Discard the data buffered so far, what follows starts a new frame
+
+    private byte[] buffer;
+    private int frameStart = 0; // Start of the unfinished frame
+    private int scanned = 0; // Data before it has been scanned
+    private int end = 0; // End of the buffered data
+
+    private byte[] delimiter;
+    private int[] failure; // KMP failure function of the delimiter
+    private int matched = 0; // Delimiter bytes matched at the end of the buffered data
+
+    private int overflowPolicy = OVERFLOW_GROW;
+    private int maxFrameSize = Integer.MAX_VALUE;
+    private boolean dropping = false; // Discarding an oversized frame until its delimiter
+    private long overflows = 0;
+    private long droppedBytes = 0;
+
+    public DelimiterFramer(byte[] delimiter){
+        this(delimiter, DEFAULT_BUFFER_SIZE);
+    }
+
+    public DelimiterFramer(byte[] delimiter, int bufferSize){
+        buffer = new byte[Math.max(bufferSize, 1)];
+        setDelimiter(delimiter);
+    }
+
+    /**
+     * Change the delimiter. Buffered data not framed yet is scanned again with the new one on the
+     * next append.
+     */
+    public void setDelimiter(byte[] delimiter){
+        if(delimiter == null || delimiter.length == 0)
+            throw new IllegalArgumentException("Delimiter must not be empty");
+        if(delimiter.length > maxFrameSize)
+            throw new IllegalArgumentException("Delimiter longer than the maximum frame size");
+
+        this.delimiter = delimiter.clone();
+        this.failure = buildFailure(this.delimiter);
+        this.matched = 0;
+        this.scanned = frameStart;
+    }
+
+    public byte[] getDelimiter(){
+        return delimiter.clone();
+    }
+
+    /**
+     * Bound the length of the frames, delimiter included. Set it before appending data.
+     *
+     * @param policy OVERFLOW_GROW, OVERFLOW_DROP or OVERFLOW_RESYNC
+     * @param maxFrameSize maximum frame length, ignored by OVERFLOW_GROW
+     */
+    public void setOverflowPolicy(int policy, int maxFrameSize){
+        if(policy == OVERFLOW_GROW){
+            this.overflowPolicy = policy;
+            this.maxFrameSize = Integer.MAX_VALUE;
+            return;
+        }
+        if(policy != OVERFLOW_DROP && policy != OVERFLOW_RESYNC)
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+        if(maxFrameSize < delimiter.length)
+            throw new IllegalArgumentException("Maximum frame size shorter than the delimiter");
+
+        this.overflowPolicy = policy;
+        this.maxFrameSize = maxFrameSize;
+        if(buffer.length < maxFrameSize)
+            buffer = Arrays.copyOf(buffer, maxFrameSize);
+
+        // Data already buffered that does not fit anymore
+        if(getPendingLength() >= maxFrameSize){
+            overflows++;
+            droppedBytes += getPendingLength();
+            clear();
+        }
+    }
+
+    public int getOverflowPolicy(){
+        return overflowPolicy;
+    }
+
+    public int getMaxFrameSize(){
+        return maxFrameSize;
+    }
+
+    // Frames that reached the maximum size without a delimiter
+    public long getOverflowCount(){
+        return overflows;
+    }
+
+    public long getDroppedBytes(){
+        return droppedBytes;
+    }
+
+    public void append(byte[] data, FrameHandler handler){
+        append(data, 0, data.length, handler);
+    }
+
+    @Override
+    public void append(byte[] data, int offset, int length, FrameHandler handler){
+        // Bounded frames are framed in chunks that fit the buffer
+        while(length > 0){
+            int chunk = makeRoom(length);
+            System.arraycopy(data, offset, buffer, end, chunk);
+            end += chunk;
+            scan(handler);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Bytes of the unfinished frame
+    public int getPendingLength(){
+        return end - frameStart;
+    }
+
+    /**
+     * Hand the unfinished frame to handler as it is, at the end of the stream, and clear the buffer
+     */
+    public void flush(FrameHandler handler){
+        if(!dropping && end > frameStart){
+            handler.onFrame(buffer, frameStart, end - frameStart);
+        }
+        clear();
+    }
+
+    @Override
+    public void clear(){
+        frameStart = 0;
+        scanned = 0;
+        end = 0;
+        matched = 0;
+        dropping = false;
+    }
+
+    private void scan(FrameHandler handler){
+        byte[] buffer = this.buffer;
+        byte[] delimiter = this.delimiter;
+        int matched = this.matched;
+        for(int i=scanned;i<end;i++){
+            byte value = buffer[i];
+            while(matched > 0 && value != delimiter[matched]){
+                matched = failure[matched - 1];
+            }
+            if(value == delimiter[matched]){
+                matched++;
+            }
+            if(matched == delimiter.length){
+                int frameEnd = i + 1;
+                int start = frameStart;
+                frameStart = frameEnd;
+                matched = 0;
+                if(dropping){
+                    droppedBytes += frameEnd - start;
+                    dropping = false;
+                }else{
+                    handler.onFrame(buffer, start, frameEnd - start);
+                }
+            }else if(dropping){
+                droppedBytes += i + 1 - frameStart;
+                frameStart = i + 1;
+            }else if(i + 1 - frameStart >= maxFrameSize){
+                overflow(i + 1, matched);
+            }
+        }
+        this.matched = matched;
+        scanned = end;
+
+        if(frameStart == end){
+            // Everything was framed, the next append starts from the beginning again
+            frameStart = 0;
+            scanned = 0;
+            end = 0;
+        }
+    }
+
+    // The unfinished frame reached the maximum size at end without a delimiter
+    private void overflow(int end, int matched){
+        overflows++;
+        // A partial delimiter at the end is kept, it may still end the next frame
+        int discardTo = overflowPolicy == OVERFLOW_DROP ? end : end - matched;
+        dropping = overflowPolicy == OVERFLOW_DROP;
+        droppedBytes += discardTo - frameStart;
+        frameStart = discardTo;
+    }
+
+    /*
+     * Make room for length more bytes, moving the unfinished frame to the start first.
+     * Returns how many fit, at least one.
+     */
+    private int makeRoom(int length){
+        if(end + length <= buffer.length)
+            return length;
+
+        int pending = end - frameStart;
+        if(frameStart > 0){
+            System.arraycopy(buffer, frameStart, buffer, 0, pending);
+            scanned -= frameStart;
+            frameStart = 0;
+            end = pending;
+        }
+
+        if(overflowPolicy == OVERFLOW_GROW && pending + length > buffer.length){
+            int size = buffer.length;
+            while(size < pending + length){
+                size *= 2;
+            }
+            buffer = Arrays.copyOf(buffer, size);
+        }
+        // Bounded frames leave room: the unfinished frame is always shorter than the buffer
+        return Math.min(length, buffer.length - end);
+    }
+
+    private static int[] buildFailure(byte[] delimiter){
+        int[] failure = new int[delimiter.length];
+        int k = 0;
+        for(int i=1;i<delimiter.length;i++){
+            while(k > 0 && delimiter[i] != delimiter[k]){
+                k = failure[k - 1];
+            }
+            if(delimiter[i] == delimiter[k]){
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+}
@@ -0,0 +1,57 @@
+package com.felhr.utils;
+
+import java.util.Arrays;
+
+/*
+ * Reusable buffer for the frame being decoded. It grows on demand up to the maximum frame size.
+ */
+class FrameAccumulator {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private final int maxLength;
+    byte[] buffer;
+    int length;
+
+    FrameAccumulator(int maxLength){
+        if(maxLength <= 0)
+            throw new IllegalArgumentException("Maximum frame size must be positive");
+        this.maxLength = maxLength;
+        this.buffer = new byte[Math.min(INITIAL_SIZE, maxLength)];
+    }
+
+    // False if the frame would be longer than the maximum, nothing is added then
+    boolean put(byte value){
+        if(!ensureRoom(1))
+            return false;
+        buffer[length++] = value;
+        return true;
+    }
+
+    boolean put(byte[] data, int offset, int count){
+        if(!ensureRoom(count))
+            return false;
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+        return true;
+    }
+
+    void reset(){
+        length = 0;
+    }
+
+    int getMaxLength(){
+        return maxLength;
+    }
+
+    private boolean ensureRoom(int count){
+        int needed = length + count;
+        if(needed > maxLength || needed < 0)
+            return false;
+        if(needed > buffer.length){
+            int size = (int) Math.min(Math.max(2L * buffer.length, needed), maxLength);
+            buffer = Arrays.copyOf(buffer, size);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,24 @@
+package com.felhr.utils;
+
+/**
+ * Incremental splitter of a byte stream into frames. Data is appended as it is read, in chunks
+ * of any size, and every frame it completes is handed to a {@link FrameHandler} in order.
+ * <p>
+ * Implementations are not thread safe.
+ */
+public interface FrameDecoder {
+
+    interface FrameHandler {
+        /**
+         * A decoded frame. The slice is only valid until this call returns.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    void append(byte[] data, int offset, int length, FrameHandler handler);
+
+    /**
+     * Drop the unfinished frame
+     */
+    void clear();
+}
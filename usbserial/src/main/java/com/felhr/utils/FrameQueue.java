@@ -0,0 +1,154 @@
+package com.felhr.utils;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue handing frames from one producer thread, usually the USB read callback, to one
+ * consumer thread. It is a lock-free ring: offering and polling are O(1) and never block. The
+ * consumer can wait for frames with {@link #take(long, TimeUnit)}.
+ * <p>
+ * A frame offered while the queue is full is dropped and counted, the producer never waits for a
+ * slow consumer.
+ */
+public class FrameQueue<E> {
+
+    private final Object[] ring;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong(); // Next slot to fill, only written by the producer
+    private final AtomicLong head = new AtomicLong(); // Next slot to take, only written by the consumer
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity maximum number of frames queued, rounded up to a power of two
+     */
+    public FrameQueue(int capacity){
+        if(capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+        ring = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side. Returns false if the queue is full, the frame is dropped then.
+     */
+    public boolean offer(E frame){
+        if(frame == null)
+            throw new NullPointerException("Frame must not be null");
+
+        long t = tail.get();
+        if(t - head.get() == ring.length){
+            droppedFrames.incrementAndGet();
+            return false;
+        }
+        ring[(int) t & mask] = frame;
+        // Publishes the slot. A full volatile write, so a consumer about to park either sees the
+        // frame or is seen parked below
+        tail.set(t + 1);
+
+        Thread consumer = parkedConsumer;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Consumer side. Next frame, null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll(){
+        long h = head.get();
+        if(h == tail.get())
+            return null;
+        int index = (int) h & mask;
+        E frame = (E) ring[index];
+        ring[index] = null;
+        head.lazySet(h + 1); // Frees the slot
+        return frame;
+    }
+
+    /**
+     * Consumer side. Next frame, waiting up to timeout for one.
+     *
+     * @return the frame, null if none arrived in time
+     */
+    public E take(long timeout, TimeUnit unit) throws InterruptedException {
+        E frame = poll();
+        if(frame != null)
+            return frame;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        while(true){
+            if(Thread.interrupted())
+                throw new InterruptedException();
+
+            long left = deadline - System.nanoTime();
+            if(left <= 0)
+                return null;
+
+            parkedConsumer = current;
+            // A frame offered before the producer could see this thread parked
+            frame = poll();
+            if(frame == null)
+                LockSupport.parkNanos(this, left);
+            parkedConsumer = null;
+
+            if(frame == null)
+                frame = poll();
+            if(frame != null)
+                return frame;
+        }
+    }
+
+    /**
+     * Consumer side. Move up to max frames to collection.
+     *
+     * @return number of frames moved
+     */
+    public int drainTo(Collection<? super E> collection, int max){
+        int count = 0;
+        E frame;
+        while(count < max && (frame = poll()) != null){
+            collection.add(frame);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side. Drop every queued frame.
+     */
+    public void clear(){
+        while(poll() != null){
+            // Discard
+        }
+    }
+
+    public int size(){
+        // head first, so the difference never goes negative
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public int getCapacity(){
+        return ring.length;
+    }
+
+    // Frames dropped because the queue was full
+    public long getDroppedFrames(){
+        return droppedFrames.get();
+    }
+}
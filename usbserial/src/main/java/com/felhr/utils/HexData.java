@@ -1,10 +1,50 @@
 package com.felhr.utils;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven hex codec. Two formats are supported:
+ * <ul>
+ *     <li>{@link #PREFIXED}: every byte as "0xAB ", the format of {@link #hexToString(byte[])}</li>
+ *     <li>{@link #ESCAPED}: printable bytes as they are and the rest as "_ab_", for mostly text
+ *     protocols. '_' is escaped too, so it can be decoded back.</li>
+ * </ul>
+ * The encode and decode methods write into a caller supplied char[], Appendable or ByteBuffer
+ * without allocating.
+ */
 public class HexData
 {
-    private static final String HEXES = "0123456789ABCDEF";
-    private static final String HEX_INDICATOR = "0x";
-    private static final String SPACE = " ";
+    public static final int PREFIXED = 0;
+    public static final int ESCAPED = 1;
+
+    private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char ESCAPE = '_';
+
+    // Value of every hex digit, -1 for the other chars
+    private static final byte[] NIBBLES = new byte[128];
+
+    // Bytes kept as they are in the ESCAPED format
+    private static final boolean[] LITERAL = new boolean[256];
+
+    static
+    {
+        for(int i=0;i<=NIBBLES.length-1;i++)
+        {
+            NIBBLES[i] = -1;
+        }
+        for(int i=0;i<=15;i++)
+        {
+            NIBBLES[UPPER_DIGITS[i]] = (byte) i;
+            NIBBLES[LOWER_DIGITS[i]] = (byte) i;
+        }
+        for(int i=0;i<=0x7E;i++)
+        {
+            LITERAL[i] = i != ESCAPE;
+        }
+    }
 
     private HexData()
     {
@@ -13,41 +53,165 @@ public class HexData
 
     public static String hexToString(byte[] data)
     {
-        if(data != null)
+        return hexToString(data, PREFIXED);
+    }
+
+    public static String hexToString(byte[] data, int format)
+    {
+        if(data == null)
+            return null;
+
+        char[] chars = new char[encodedLength(data, 0, data.length, format)];
+        encode(data, 0, data.length, chars, 0, format);
+        return new String(chars);
+    }
+
+    /**
+     * Chars needed to encode length bytes of data at offset
+     */
+    public static int encodedLength(byte[] data, int offset, int length, int format)
+    {
+        if(format == PREFIXED)
+            return 5 * length;
+
+        int chars = length;
+        for(int i=offset;i<=offset+length-1;i++)
         {
-            StringBuilder hex = new StringBuilder(2*data.length);
-            for(int i=0;i<=data.length-1;i++)
+            if(!LITERAL[data[i] & 0xFF])
+                chars += 3;
+        }
+        return chars;
+    }
+
+    /**
+     * Encode length bytes of src at offset into dst, which must have room for
+     * {@link #encodedLength(byte[], int, int, int)} chars
+     *
+     * @return number of chars written
+     */
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset, int format)
+    {
+        int pos = dstOffset;
+        for(int i=offset;i<=offset+length-1;i++)
+        {
+            int value = src[i] & 0xFF;
+            if(format == PREFIXED)
+            {
+                dst[pos] = '0';
+                dst[pos + 1] = 'x';
+                dst[pos + 2] = UPPER_DIGITS[value >> 4];
+                dst[pos + 3] = UPPER_DIGITS[value & 0x0F];
+                dst[pos + 4] = ' ';
+                pos += 5;
+            }else if(LITERAL[value])
             {
-                byte dataAtIndex = data[i];
-                hex.append(HEX_INDICATOR);
-                hex.append(HEXES.charAt((dataAtIndex & 0xF0) >> 4))
-                        .append(HEXES.charAt((dataAtIndex & 0x0F)));
-                hex.append(SPACE);
+                dst[pos++] = (char) value;
+            }else
+            {
+                dst[pos] = ESCAPE;
+                dst[pos + 1] = LOWER_DIGITS[value >> 4];
+                dst[pos + 2] = LOWER_DIGITS[value & 0x0F];
+                dst[pos + 3] = ESCAPE;
+                pos += 4;
             }
-            return hex.toString();
-        }else
+        }
+        return pos - dstOffset;
+    }
+
+    /**
+     * Same as {@link #encode(byte[], int, int, char[], int, int)} appending to out
+     */
+    public static void encode(byte[] src, int offset, int length, Appendable out, int format) throws IOException
+    {
+        for(int i=offset;i<=offset+length-1;i++)
         {
-            return null;
+            int value = src[i] & 0xFF;
+            if(format == PREFIXED)
+            {
+                out.append('0').append('x')
+                        .append(UPPER_DIGITS[value >> 4]).append(UPPER_DIGITS[value & 0x0F])
+                        .append(' ');
+            }else if(LITERAL[value])
+            {
+                out.append((char) value);
+            }else
+            {
+                out.append(ESCAPE).append(LOWER_DIGITS[value >> 4]).append(LOWER_DIGITS[value & 0x0F])
+                        .append(ESCAPE);
+            }
         }
     }
 
-    public static byte[] stringTobytes(String hexString)
+    /**
+     * Same as {@link #encode(byte[], int, int, char[], int, int)} writing one ASCII byte per char
+     * into dst, from its position
+     *
+     * @throws BufferOverflowException if dst is too small, nothing is written then
+     */
+    public static int encode(byte[] src, int offset, int length, ByteBuffer dst, int format)
     {
-        String stringProcessed = hexString.trim().replaceAll("0x", "");
-        stringProcessed = stringProcessed.replaceAll("\\s+","");
-        byte[] data = new byte[stringProcessed.length()/2];
-        int i = 0;
-        int j = 0;
-        while(i <= stringProcessed.length()-1)
+        int chars = encodedLength(src, offset, length, format);
+        if(dst.remaining() < chars)
+            throw new BufferOverflowException();
+
+        for(int i=offset;i<=offset+length-1;i++)
         {
-            byte character = (byte) Integer.parseInt(stringProcessed.substring(i, i+2), 16);
-            data[j] = character;
-            j++;
-            i += 2;
+            int value = src[i] & 0xFF;
+            if(format == PREFIXED)
+            {
+                dst.put((byte) '0').put((byte) 'x')
+                        .put((byte) UPPER_DIGITS[value >> 4]).put((byte) UPPER_DIGITS[value & 0x0F])
+                        .put((byte) ' ');
+            }else if(LITERAL[value])
+            {
+                dst.put((byte) value);
+            }else
+            {
+                dst.put((byte) ESCAPE).put((byte) LOWER_DIGITS[value >> 4])
+                        .put((byte) LOWER_DIGITS[value & 0x0F]).put((byte) ESCAPE);
+            }
         }
+        return chars;
+    }
+
+    /**
+     * Parse hex digits in pairs, whitespace and "0x" prefixes are skipped
+     *
+     * @throws NumberFormatException if there is anything else or a digit misses its pair
+     */
+    public static byte[] stringTobytes(String hexString)
+    {
+        byte[] data = new byte[decode(hexString, 0, hexString.length(), null, 0, PREFIXED)];
+        decode(hexString, 0, hexString.length(), data, 0, PREFIXED);
         return data;
     }
 
+    /**
+     * Decode the chars of src between start and end into dst, null to only count the bytes.
+     * {@link #PREFIXED} accepts hex digits in pairs with any whitespace and "0x" prefixes around
+     * them, {@link #ESCAPED} what {@link #encode(byte[], int, int, char[], int, int)} writes.
+     *
+     * @return number of bytes decoded
+     * @throws NumberFormatException if src is not in the given format
+     */
+    public static int decode(CharSequence src, int start, int end, byte[] dst, int dstOffset, int format)
+    {
+        return decode(src, start, end, dst, dstOffset, null, format);
+    }
+
+    /**
+     * Same as {@link #decode(CharSequence, int, int, byte[], int, int)} for the whole of src,
+     * writing into dst from its position. src is checked first, nothing is written if it is not
+     * valid or does not fit.
+     */
+    public static int decode(CharSequence src, ByteBuffer dst, int format)
+    {
+        int length = decode(src, 0, src.length(), null, 0, null, format);
+        if(dst.remaining() < length)
+            throw new BufferOverflowException();
+        return decode(src, 0, src.length(), null, 0, dst, format);
+    }
+
     public static String hex4digits(String id)
     {
         if(id.length() == 1) return "000" + id;
@@ -55,4 +219,61 @@ public class HexData
         if(id.length() == 3) return "0" + id;
         else return id;
     }
+
+    // Into dst or dstBuffer, counting only if both are null
+    private static int decode(CharSequence src, int start, int end, byte[] dst, int dstOffset, ByteBuffer dstBuffer,
+                              int format)
+    {
+        int count = 0;
+        int i = start;
+        while(i < end)
+        {
+            char c = src.charAt(i);
+            int value;
+            if(format == PREFIXED)
+            {
+                if(c == '0' && i + 1 < end && (src.charAt(i + 1) == 'x' || src.charAt(i + 1) == 'X'))
+                {
+                    i += 2;
+                    continue;
+                }
+                if(Character.isWhitespace(c))
+                {
+                    i++;
+                    continue;
+                }
+                if(i + 1 >= end)
+                    throw new NumberFormatException("Odd number of hex digits");
+                value = (nibble(c) << 4) | nibble(src.charAt(i + 1));
+                i += 2;
+            }else if(c == ESCAPE)
+            {
+                if(i + 3 >= end || src.charAt(i + 3) != ESCAPE)
+                    throw new NumberFormatException("Unterminated escape at " + i);
+                value = (nibble(src.charAt(i + 1)) << 4) | nibble(src.charAt(i + 2));
+                i += 4;
+            }else
+            {
+                if(c > 0x7E)
+                    throw new NumberFormatException("Unescaped char at " + i);
+                value = c;
+                i++;
+            }
+
+            if(dst != null)
+                dst[dstOffset + count] = (byte) value;
+            else if(dstBuffer != null)
+                dstBuffer.put((byte) value);
+            count++;
+        }
+        return count;
+    }
+
+    private static int nibble(char c)
+    {
+        int value = c < NIBBLES.length ? NIBBLES[c] : -1;
+        if(value < 0)
+            throw new NumberFormatException("Not a hex digit: '" + c + "'");
+        return value;
+    }
 }
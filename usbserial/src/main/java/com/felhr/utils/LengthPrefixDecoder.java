@@ -0,0 +1,95 @@
+package com.felhr.utils;
+
+import java.nio.ByteOrder;
+
+/**
+ * Decoder of frames made of a fixed length field followed by that many payload bytes. Frames
+ * are the payloads, without the length field.
+ * <p>
+ * A payload received in a single append is handed over as a slice of the appended data, without
+ * copying it. Only payloads split between appends are gathered in a reusable buffer. Frames longer
+ * than the maximum size are skipped and counted.
+ */
+public class LengthPrefixDecoder implements FrameDecoder {
+
+    private final int lengthSize;
+    private final boolean bigEndian;
+    private final FrameAccumulator frame;
+
+    private int headerRead = 0; // Bytes of the length field read so far
+    private long payloadLength = 0;
+    private long skipping = 0; // Payload bytes left of an oversized frame
+    private long droppedFrames = 0;
+
+    /**
+     * @param lengthSize bytes of the length field, 1 to 4
+     * @param byteOrder byte order of the length field
+     * @param maxFrameSize maximum payload length, longer frames are dropped
+     */
+    public LengthPrefixDecoder(int lengthSize, ByteOrder byteOrder, int maxFrameSize){
+        if(lengthSize < 1 || lengthSize > 4)
+            throw new IllegalArgumentException("Length field must be 1 to 4 bytes long");
+        this.lengthSize = lengthSize;
+        this.bigEndian = byteOrder == ByteOrder.BIG_ENDIAN;
+        this.frame = new FrameAccumulator(maxFrameSize);
+    }
+
+    @Override
+    public void append(byte[] data, int offset, int length, FrameHandler handler){
+        int end = offset + length;
+        while(offset < end){
+            if(headerRead < lengthSize){
+                long value = data[offset++] & 0xFF;
+                payloadLength = bigEndian ? (payloadLength << 8) | value : payloadLength | (value << (8 * headerRead));
+                headerRead++;
+                if(headerRead == lengthSize){
+                    if(payloadLength > frame.getMaxLength()){
+                        droppedFrames++;
+                        skipping = payloadLength;
+                    }else if(payloadLength == 0){
+                        nextFrame();
+                        handler.onFrame(frame.buffer, 0, 0);
+                    }
+                }
+            }else if(skipping > 0){
+                int skipped = (int) Math.min(skipping, end - offset);
+                skipping -= skipped;
+                offset += skipped;
+                if(skipping == 0)
+                    nextFrame();
+            }else if(frame.length == 0 && end - offset >= payloadLength){
+                // Whole payload in this chunk
+                int start = offset;
+                offset += (int) payloadLength;
+                nextFrame();
+                handler.onFrame(data, start, offset - start);
+            }else{
+                int count = (int) Math.min(payloadLength - frame.length, end - offset);
+                frame.put(data, offset, count);
+                offset += count;
+                if(frame.length == payloadLength){
+                    int frameLength = frame.length;
+                    nextFrame();
+                    handler.onFrame(frame.buffer, 0, frameLength);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear(){
+        nextFrame();
+    }
+
+    // Frames longer than the maximum size
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    private void nextFrame(){
+        headerRead = 0;
+        payloadLength = 0;
+        skipping = 0;
+        frame.reset();
+    }
+}
@@ -1,17 +1,28 @@
 package com.felhr.utils;
 
-import com.annimon.stream.IntStream;
-import com.annimon.stream.function.IntPredicate;
+import com.felhr.usbserial.UsbSerialInterface;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 // Thanks to Thomas Moorhead for improvements and suggestions
 
-public class ProtocolBuffer {
+/**
+ * Splits the data read from a serial port into commands. Data is appended by one thread, usually
+ * the read callback, and commands are taken by another one. Complete commands wait in a bounded
+ * {@link FrameQueue}: taking them never blocks the reader and commands arriving while it is full
+ * are dropped and counted.
+ * <p>
+ * It is also a read callback: given to {@link com.felhr.usbserial.UsbSerialDevice#readBuffer} or
+ * {@link com.felhr.usbserial.UsbSerialDevice#read}, data is framed right on the USB completion
+ * thread. With a {@link FrameListener} set, commands are pushed to it instead of being queued.
+ */
+public class ProtocolBuffer implements UsbSerialInterface.UsbReadCallback,
+        UsbSerialInterface.UsbReadBufferCallback {
 
     public static final String BINARY = "binary";
     public static final String TEXT = "text";
@@ -19,136 +30,239 @@ public class ProtocolBuffer {
     private final String mode;
 
     private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    private static final int READ_CHUNK_SIZE = 16 * 1024;
 
-    private byte[] rawBuffer;
-    private int bufferPointer = 0;
+    /**
+     * Receiver of every complete command
+     */
+    public interface FrameListener<T> {
+        void onFrame(T frame);
+    }
+
+    // Only the one of the mode is created
+    private final FrameQueue<String> commands;
+    private final FrameQueue<byte[]> rawCommands;
+
+    // Both modes split the raw bytes, a text command is only decoded once it is complete
+    private final int bufferSize;
+    private DelimiterFramer framer;
+    private FrameDecoder decoder; // Binary commands split by other means than a delimiter
+    private final FrameDecoder.FrameHandler textHandler;
+    private final FrameDecoder.FrameHandler binaryHandler;
+
+    private int overflowPolicy = DelimiterFramer.OVERFLOW_GROW;
+    private int maxCommandLength = Integer.MAX_VALUE;
 
-    private byte[] separator;
-    private String delimiter;
-    private StringBuilder stringBuffer;
+    // Guarded by this, commands are queued while there is no listener
+    private FrameListener<String> textListener;
+    private FrameListener<byte[]> binaryListener;
+    private Executor listenerExecutor;
 
-    private final List<String> commands = new ArrayList<>();
-    private final List<byte[]> rawCommands = new ArrayList<>();
+    private byte[] readChunk; // Buffer reads are copied through it, guarded by this
 
     public ProtocolBuffer(String mode){
-        this.mode = mode;
-        if(mode.equals(BINARY)){
-            rawBuffer = new byte[DEFAULT_BUFFER_SIZE];
-        }else{
-            stringBuffer = new StringBuilder(DEFAULT_BUFFER_SIZE);
-        }
+        this(mode, DEFAULT_BUFFER_SIZE);
     }
 
     public ProtocolBuffer(String mode, int bufferSize){
+        this(mode, bufferSize, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity maximum number of complete commands waiting to be taken
+     */
+    public ProtocolBuffer(String mode, int bufferSize, int queueCapacity){
         this.mode = mode;
-        if(mode.equals(BINARY)){
-            rawBuffer = new byte[bufferSize];
-        }else{
-            stringBuffer = new StringBuilder(bufferSize);
+        this.bufferSize = bufferSize;
+        this.commands = mode.equals(TEXT) ? new FrameQueue<String>(queueCapacity) : null;
+        this.rawCommands = mode.equals(TEXT) ? null : new FrameQueue<byte[]>(queueCapacity);
+        this.textHandler = (buffer, offset, length) ->
+                deliver(new String(buffer, offset, length, StandardCharsets.UTF_8), textListener, commands);
+        this.binaryHandler = (buffer, offset, length) ->
+                deliver(Arrays.copyOfRange(buffer, offset, offset + length), binaryListener, rawCommands);
+    }
+
+    /**
+     * Binary commands split by a decoder, like {@link LengthPrefixDecoder}, {@link CobsDecoder} or
+     * {@link SlipDecoder}. No delimiter is set then.
+     */
+    public ProtocolBuffer(FrameDecoder decoder){
+        this(decoder, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ProtocolBuffer(FrameDecoder decoder, int queueCapacity){
+        this(BINARY, DEFAULT_BUFFER_SIZE, queueCapacity);
+        this.decoder = decoder;
+    }
+
+    public synchronized void setDelimiter(String delimiter){
+        setFramerDelimiter(delimiter.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized void setDelimiter(byte[] delimiter){
+        setFramerDelimiter(delimiter);
+    }
+
+    /**
+     * Bound the length of the commands, delimiter included. By default the buffer grows to hold
+     * commands of any length.
+     *
+     * @param policy {@link DelimiterFramer#OVERFLOW_GROW}, {@link DelimiterFramer#OVERFLOW_DROP}
+     *               or {@link DelimiterFramer#OVERFLOW_RESYNC}
+     * @param maxCommandLength maximum command length, ignored by OVERFLOW_GROW
+     */
+    public synchronized void setOverflowPolicy(int policy, int maxCommandLength){
+        if(framer != null){
+            framer.setOverflowPolicy(policy, maxCommandLength);
         }
+        this.overflowPolicy = policy;
+        this.maxCommandLength = maxCommandLength;
     }
 
-    public void setDelimiter(String delimiter){
-        this.delimiter = delimiter;
+    // Commands that reached the maximum length without a delimiter
+    public synchronized long getOverflowCount(){
+        return framer != null ? framer.getOverflowCount() : 0;
     }
 
-    public void setDelimiter(byte[] delimiter){
-        this.separator = delimiter;
+    /**
+     * Push text commands to listener instead of queuing them.
+     *
+     * @param listener receiver of the commands, null to queue them again
+     * @param executor runs the listener, null to call it right away on the thread appending data,
+     *                 the USB completion thread when used as a read callback
+     */
+    public synchronized void setTextFrameListener(FrameListener<String> listener, Executor executor){
+        if(!mode.equals(TEXT))
+            throw new IllegalStateException("Not a text protocol");
+        this.textListener = listener;
+        this.listenerExecutor = executor;
+    }
+
+    /**
+     * Same as {@link #setTextFrameListener(FrameListener, Executor)} for binary commands
+     */
+    public synchronized void setBinaryFrameListener(FrameListener<byte[]> listener, Executor executor){
+        if(mode.equals(TEXT))
+            throw new IllegalStateException("Not a binary protocol");
+        this.binaryListener = listener;
+        this.listenerExecutor = executor;
     }
 
     public synchronized void appendData(byte[] data){
+        appendData(data, 0, data.length);
+    }
+
+    public synchronized void appendData(byte[] data, int offset, int length){
         // Ignore the frequent empty calls
-        if (data.length == 0) return;
+        if (length == 0) return;
 
         if(mode.equals(TEXT)){
-            String dataStr = new String(data, StandardCharsets.UTF_8);
-            stringBuffer.append(dataStr);
-
-            String buffer = stringBuffer.toString();
-            int prevIndex = 0;
-            int index = buffer.indexOf(delimiter);
-            while (index >= 0) {
-                String tempStr = buffer.substring(prevIndex, index + delimiter.length());
-                commands.add(tempStr);
-                prevIndex = index + delimiter.length();
-                index = stringBuffer.toString().indexOf(delimiter, prevIndex);
-            }
-
-            if( /*prevIndex < buffer.length() &&*/ prevIndex > 0){
-                String tempStr = buffer.substring(prevIndex);
-                stringBuffer.setLength(0);
-                stringBuffer.append(tempStr);
-            }
-
+            framer.append(data, offset, length, textHandler);
+        }else if(decoder != null){
+            decoder.append(data, offset, length, binaryHandler);
         }else if(mode.equals(BINARY)){
-            appendRawData(data);
+            framer.append(data, offset, length, binaryHandler);
+        }
+    }
+
+    /**
+     * Append the remaining bytes of data, without changing its position
+     */
+    public synchronized void appendData(ByteBuffer data){
+        if(data.hasArray()){
+            appendData(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+
+        if(readChunk == null)
+            readChunk = new byte[READ_CHUNK_SIZE];
+        ByteBuffer source = data.duplicate();
+        while(source.hasRemaining()){
+            int length = Math.min(source.remaining(), readChunk.length);
+            source.get(readChunk, 0, length);
+            appendData(readChunk, 0, length);
         }
     }
 
+    @Override
+    public void onReceivedData(byte[] data){
+        appendData(data);
+    }
+
+    @Override
+    public void onReceivedData(ByteBuffer data){
+        appendData(data);
+    }
+
+    private <T> void deliver(T frame, FrameListener<T> listener, FrameQueue<T> queue){
+        if(listener == null){
+            queue.offer(frame);
+        }else if(listenerExecutor == null){
+            listener.onFrame(frame);
+        }else{
+            listenerExecutor.execute(() -> listener.onFrame(frame));
+        }
+    }
+
+    // The methods taking commands are meant for a single consumer thread, they never block appendData
+
     public boolean hasMoreCommands(){
         if(mode.equals(TEXT)) {
-            return commands.size() > 0;
+            return !commands.isEmpty();
         }else {
-            return rawCommands.size() > 0;
+            return !rawCommands.isEmpty();
         }
     }
 
     public String nextTextCommand(){
-        if(commands.size() > 0){
-            return commands.remove(0);
-        }else{
-            return null;
-        }
+        return commands.poll();
     }
 
     public byte[] nextBinaryCommand(){
-        if(rawCommands.size() > 0){
-            return rawCommands.remove(0);
-        }else{
-            return null;
-        }
+        return rawCommands.poll();
     }
 
-    private void appendRawData(byte[] rawData){
-
-        System.arraycopy(rawData, 0, rawBuffer, bufferPointer, rawData.length);
-        bufferPointer += rawData.length;
+    /**
+     * Next text command, waiting up to timeout for one
+     *
+     * @return the command, null if none arrived in time
+     */
+    public String takeTextCommand(long timeout, TimeUnit unit) throws InterruptedException {
+        return commands.take(timeout, unit);
+    }
 
-        SeparatorPredicate predicate = new SeparatorPredicate();
-        int[] indexes =
-                IntStream.range(0, bufferPointer)
-                        .filter(predicate)
-                        .toArray();
+    public byte[] takeBinaryCommand(long timeout, TimeUnit unit) throws InterruptedException {
+        return rawCommands.take(timeout, unit);
+    }
 
-        int prevIndex = 0;
-        for(Integer i : indexes){
-            byte[] command = Arrays.copyOfRange(rawBuffer, prevIndex, i + separator.length);
-            rawCommands.add(command);
-            prevIndex = i + separator.length;
-        }
+    /**
+     * Move up to max text commands to collection
+     *
+     * @return number of commands moved
+     */
+    public int drainTextCommands(Collection<? super String> collection, int max){
+        return commands.drainTo(collection, max);
+    }
 
-        if(prevIndex < rawBuffer.length
-                && prevIndex > 0){
-            byte[] tempBuffer = Arrays.copyOfRange(rawBuffer, prevIndex, rawBuffer.length);
-            bufferPointer = 0;
-            System.arraycopy(tempBuffer, 0, rawBuffer, bufferPointer, rawData.length);
-            bufferPointer += rawData.length;
-        }
+    public int drainBinaryCommands(Collection<? super byte[]> collection, int max){
+        return rawCommands.drainTo(collection, max);
+    }
 
+    // Commands dropped because too many were waiting to be taken
+    public long getDroppedCommands(){
+        return mode.equals(TEXT) ? commands.getDroppedFrames() : rawCommands.getDroppedFrames();
     }
 
-    private class SeparatorPredicate implements IntPredicate{
-        @Override
-        public boolean test(int value) {
-            if(rawBuffer[value] == separator[0]){
-                for(int i=1;i<=separator.length-1;i++){
-                    if(rawBuffer[value + i] != separator[i]){
-                        return false;
-                    }
-                }
-                return true;
-            }
-            return false;
+    private void setFramerDelimiter(byte[] delimiter){
+        if(decoder != null)
+            throw new IllegalStateException("Commands are split by " + decoder.getClass().getSimpleName());
+
+        if(framer == null){
+            framer = new DelimiterFramer(delimiter, bufferSize);
+            framer.setOverflowPolicy(overflowPolicy, maxCommandLength);
+        }else{
+            framer.setDelimiter(delimiter);
         }
     }
 }
@@ -0,0 +1,86 @@
+package com.felhr.utils;
+
+/**
+ * Decoder of SLIP (RFC 1055) frames, each one ended by an END byte. Frames are the unescaped
+ * payloads, empty frames are ignored.
+ * <p>
+ * Data is unescaped as it is appended into a reusable buffer. Frames longer than the maximum size
+ * are dropped and counted.
+ */
+public class SlipDecoder implements FrameDecoder {
+
+    public static final byte END = (byte) 0xC0;
+    public static final byte ESC = (byte) 0xDB;
+    public static final byte ESC_END = (byte) 0xDC;
+    public static final byte ESC_ESC = (byte) 0xDD;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024;
+
+    private final FrameAccumulator frame;
+
+    private boolean escaped = false;
+    private boolean dropping = false; // Discarding a frame until its end
+    private long droppedFrames = 0;
+
+    public SlipDecoder(){
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize maximum unescaped length, longer frames are dropped
+     */
+    public SlipDecoder(int maxFrameSize){
+        this.frame = new FrameAccumulator(maxFrameSize);
+    }
+
+    @Override
+    public void append(byte[] data, int offset, int length, FrameHandler handler){
+        int end = offset + length;
+        for(int i=offset;i<end;i++){
+            byte value = data[i];
+            if(value == END){
+                if(!dropping && frame.length > 0)
+                    handler.onFrame(frame.buffer, 0, frame.length);
+                clear();
+            }else if(dropping){
+                // Wait for the end of the frame
+            }else if(escaped){
+                escaped = false;
+                // Other bytes after ESC are a protocol violation, RFC 1055 keeps them as they are
+                byte unescaped = value == ESC_END ? END : value == ESC_ESC ? ESC : value;
+                if(!frame.put(unescaped))
+                    drop();
+            }else if(value == ESC){
+                escaped = true;
+            }else{
+                // Plain bytes up to the next END or ESC
+                int run = 1;
+                while(i + run < end && data[i + run] != END && data[i + run] != ESC){
+                    run++;
+                }
+                if(frame.put(data, i, run)){
+                    i += run - 1;
+                }else{
+                    drop();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear(){
+        escaped = false;
+        dropping = false;
+        frame.reset();
+    }
+
+    // Frames longer than the maximum size
+    public long getDroppedFrames(){
+        return droppedFrames;
+    }
+
+    private void drop(){
+        droppedFrames++;
+        dropping = true;
+    }
+}
@@ -0,0 +1,132 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbInterface;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+
+@RunWith(JUnit4.class)
+public class AbstractWorkerThreadTest {
+
+    @Test
+    public void restartAfterStop() throws Exception {
+        CountingWorker worker = new CountingWorker();
+        for(int cycle=0;cycle<3;cycle++) {
+            int before = worker.runs.get();
+            worker.start();
+            Assert.assertTrue(worker.isAlive());
+            waitUntil(() -> worker.runs.get() > before);
+
+            Assert.assertTrue(worker.stopThread(1000));
+            Assert.assertFalse(worker.isAlive());
+        }
+        Assert.assertEquals("Every start runs on a new thread", 3, worker.threads.size());
+    }
+
+    @Test
+    public void startIsIdempotent() throws Exception {
+        CountingWorker worker = new CountingWorker();
+        worker.start();
+        worker.start();
+        waitUntil(() -> worker.runs.get() > 10);
+        worker.stopThread(1000);
+
+        Assert.assertEquals(1, worker.threads.size());
+    }
+
+    @Test
+    public void stopWaitsAtMostTimeout() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        AbstractWorkerThread worker = new AbstractWorkerThread() {
+            @Override
+            void doRun() {
+                running.countDown();
+                // Ignores interruptions, like a blocked bulk transfer would
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+                while(System.nanoTime() < end) {
+                    Thread.yield();
+                }
+            }
+        };
+        worker.start();
+        running.await();
+
+        Assert.assertFalse(worker.stopThread(10));
+        Assert.assertTrue(worker.join(2000));
+    }
+
+    @Test
+    public void openLatency() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        Mockito.when(fake.getConnection().claimInterface(Mockito.any(), anyBoolean())).thenReturn(true);
+        Mockito.when(fake.getConnection().bulkTransfer(Mockito.eq(fake.getInEndpoint()), Mockito.any(byte[].class),
+                anyInt(), anyInt())).thenAnswer(invocation -> {
+                    Thread.sleep(1); // Legacy read thread, nothing to read
+                    return 0;
+                });
+
+        UsbInterface usbInterface = Mockito.mock(UsbInterface.class);
+        Mockito.when(usbInterface.getEndpointCount()).thenReturn(2);
+        Mockito.when(usbInterface.getEndpoint(0)).thenReturn(fake.getInEndpoint());
+        Mockito.when(usbInterface.getEndpoint(1)).thenReturn(fake.getOutEndpoint());
+        UsbDevice usbDevice = Mockito.mock(UsbDevice.class);
+        Mockito.when(usbDevice.getInterface(anyInt())).thenReturn(usbInterface);
+
+        UsbSerialDevice device = new CDCSerialDevice(usbDevice, fake.getConnection(), 0);
+        int cycles = 50;
+        long total = 0;
+        long max = 0;
+        for(int i=0;i<cycles;i++) {
+            long start = System.nanoTime();
+            Assert.assertTrue(device.open());
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            max = Math.max(max, elapsed);
+
+            Assert.assertTrue(device.writeThread.isAlive());
+            device.close();
+            Assert.assertFalse(device.writeThread.isAlive());
+        }
+
+        // Starting the threads no longer waits in a sleep loop
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(total / cycles) < 100);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(max) < 1000);
+    }
+
+    private static class CountingWorker extends AbstractWorkerThread {
+        final AtomicInteger runs = new AtomicInteger();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        void doRun() {
+            threads.add(Thread.currentThread());
+            runs.incrementAndGet();
+            Thread.yield();
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while(!condition.isMet()) {
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class CommandChannelTest {
+
+    @Test
+    public void newerCommandReplacesUnsentOne() {
+        CommandChannel channel = new CommandChannel(() -> {});
+
+        Assert.assertFalse(channel.send("drive", bytes("c 1 1")));
+        Assert.assertFalse(channel.send("light", bytes("l on")));
+        Assert.assertTrue(channel.send("drive", bytes("c 2 2")));
+
+        Assert.assertEquals("Replaced command keeps its turn", "c 2 2", string(channel.poll(0)));
+        Assert.assertEquals("l on", string(channel.poll(0)));
+        Assert.assertNull(channel.poll(0));
+
+        Assert.assertEquals(3, channel.getSubmittedCount());
+        Assert.assertEquals(1, channel.getConflatedCount());
+        Assert.assertEquals(2, channel.getSentCount());
+    }
+
+    @Test
+    public void maxRateSpacesCommands() {
+        CommandChannel channel = new CommandChannel(() -> {});
+        channel.setMaxRate(10);
+        long interval = TimeUnit.MILLISECONDS.toNanos(100);
+
+        channel.send("a", bytes("1"));
+        channel.send("b", bytes("2"));
+        Assert.assertNotNull(channel.poll(1000));
+
+        Assert.assertNull(channel.poll(1000 + interval - 1));
+        Assert.assertEquals(interval - 1, channel.getDelay(1001));
+        Assert.assertEquals("2", string(channel.poll(1000 + interval)));
+        Assert.assertEquals("Nothing pending", 0, channel.getDelay(1000 + interval));
+    }
+
+    @Test
+    public void writeThreadDrainsLatestCommands() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.writeThread = device.new WriteThread();
+        device.writeThread.setUsbEndpoint(fake.getOutEndpoint());
+
+        CommandChannel channel = device.getCommandChannel();
+        channel.send("drive", bytes("c 1 1\n"));
+        channel.send("drive", bytes("c 2 2\n"));
+        device.writeThread.start();
+
+        try {
+            waitUntil(() -> channel.getPendingCount() == 0 && fake.getReceivedData().length > 0);
+            Assert.assertEquals("c 2 2\n", string(fake.getReceivedData()));
+            Assert.assertEquals(1, channel.getConflatedCount());
+
+            // Write thread is waiting for data, a new command wakes it up
+            channel.send("drive", bytes("c 3 3\n"));
+            waitUntil(() -> fake.getReceivedData().length == 12);
+            Assert.assertEquals("c 2 2\nc 3 3\n", string(fake.getReceivedData()));
+        } finally {
+            device.writeThread.stopThread();
+            device.writeThread.join(2000);
+        }
+    }
+
+    @Test
+    public void writeThreadStartedInSyncMode() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        device.asyncMode = false;
+        device.isOpen = true;
+
+        try {
+            device.getCommandChannel().send("drive", bytes("c 5 5\n"));
+            Assert.assertNotNull(device.writeThread);
+            waitUntil(() -> fake.getReceivedData().length == 6);
+            Assert.assertEquals("c 5 5\n", string(fake.getReceivedData()));
+        } finally {
+            device.killWriteThread();
+        }
+    }
+
+    @Test
+    public void commandsNotSentInsideSyncWrite() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        device.asyncMode = false;
+        device.isOpen = true;
+
+        byte[] payload = new byte[48 * 1024];
+        Arrays.fill(payload, (byte) 'x');
+        CommandChannel channel = device.getCommandChannel();
+        try {
+            for(int i=0;i<50;i++) {
+                channel.send("drive", bytes("c\n"));
+                // Several bulk transfers, the commands must go before or after all of them
+                Assert.assertEquals(payload.length, device.syncWrite(new ByteBuffer[]{
+                        ByteBuffer.wrap(payload, 0, 20000), ByteBuffer.wrap(payload, 20000, payload.length - 20000)}, 0));
+            }
+            waitUntil(() -> channel.getPendingCount() == 0);
+        } finally {
+            device.killWriteThread();
+        }
+
+        String received = string(fake.getReceivedData());
+        Assert.assertEquals(50 * payload.length, received.replace("c\n", "").length());
+        for(String run : received.split("c\n")) {
+            Assert.assertEquals(0, run.length() % payload.length);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while(!condition.isMet()) {
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] bytes(String command) {
+        return command.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String string(byte[] data) {
+        return data == null ? null : new String(data, StandardCharsets.US_ASCII);
+    }
+}
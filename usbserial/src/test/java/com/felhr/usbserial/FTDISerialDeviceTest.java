@@ -1,11 +1,22 @@
 package com.felhr.usbserial;
 
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(JUnit4.class)
 public class FTDISerialDeviceTest {
@@ -46,4 +57,146 @@ public class FTDISerialDeviceTest {
         byte[] wanted = {3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31,32,33,34,35,36,37,38,39,40,41,42,43,44,45,46,47,48,49,50,51,52,53,54,55,56,57,58,59,60,61,62,63,64, 3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31,32,33,34,35,36,37,38,39,40,41,42,43,44,45,46,47,48,49,50,51,52,53,54,55,56,57,58,59,60,61,62};
         Assert.assertArrayEquals(wanted, FTDISerialDevice.adaptArray(withHeaders));
     }
+
+    @Test
+    public void adaptBufferInPlace() {
+        byte[] withHeaders = {1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31,32,33,34,35,36,37,38,39,40,41,42,43,44,45,46,47,48,49,50,51,52,53,54,55,56,57,58,59,60,61,62,63,64, 1,2,3,4,5,6,7,8,9,10};
+        ByteBuffer buffer = ByteBuffer.allocateDirect(withHeaders.length);
+        buffer.put(withHeaders);
+        int length = FTDISerialDevice.adaptBuffer(buffer, withHeaders.length);
+
+        byte[] adapted = new byte[length];
+        buffer.position(0);
+        buffer.get(adapted);
+        Assert.assertArrayEquals(FTDISerialDevice.adaptArray(withHeaders), adapted);
+    }
+
+    @Test
+    public void adaptArrayInPlace() {
+        Random random = new Random(10);
+        for(int length=0;length<=300;length++) {
+            byte[] withHeaders = new byte[length];
+            random.nextBytes(withHeaders);
+            byte[] wanted = FTDISerialDevice.adaptArray(withHeaders);
+            Assert.assertEquals(wanted.length, FTDISerialDevice.getPayloadLength(length));
+
+            byte[] buffer = new byte[length + 5];
+            System.arraycopy(withHeaders, 0, buffer, 5, length);
+            int adapted = FTDISerialDevice.adaptArray(buffer, 5, length);
+            Assert.assertArrayEquals("Length " + length, wanted, Arrays.copyOfRange(buffer, 5, 5 + adapted));
+
+            ByteBuffer heap = ByteBuffer.wrap(withHeaders.clone());
+            adapted = FTDISerialDevice.adaptBuffer(heap, length);
+            Assert.assertArrayEquals("Length " + length, wanted, Arrays.copyOf(heap.array(), adapted));
+        }
+    }
+
+    @Test
+    public void lineErrorsOfEveryPacket() {
+        FTDISerialDevice device = new FTDISerialDevice(Mockito.mock(UsbDevice.class), Mockito.mock(UsbDeviceConnection.class));
+        AtomicInteger parityErrors = new AtomicInteger();
+        device.getParity(parityErrors::incrementAndGet);
+
+        byte[] packets = new byte[64 * 3];
+        device.ftdiUtilities.stripHeaders(packets, 0, packets.length); // First status received
+        packets[64 + 1] = 0x04; // Parity error in the second packet
+        int length = device.ftdiUtilities.stripHeaders(packets, 0, packets.length);
+
+        Assert.assertEquals(62 * 3, length);
+        Assert.assertEquals(1, parityErrors.get());
+    }
+
+    @Test
+    public void syncReadStripsHeaders() {
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class);
+        byte[] withHeaders = new byte[64 + 10];
+        for(int i=0;i<withHeaders.length;i++) {
+            withHeaders[i] = (byte) i;
+        }
+        Mockito.when(connection.bulkTransfer(ArgumentMatchers.<UsbEndpoint>any(), ArgumentMatchers.any(byte[].class),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            byte[] buffer = invocation.getArgument(1);
+            int length = Math.min(invocation.<Integer>getArgument(2), withHeaders.length);
+            System.arraycopy(withHeaders, 0, buffer, 0, length);
+            return length;
+        });
+        FTDISerialDevice device = new FTDISerialDevice(Mockito.mock(UsbDevice.class), connection);
+        device.asyncMode = false; // As left by syncOpen()
+
+        byte[] wanted = FTDISerialDevice.adaptArray(withHeaders);
+        for(int i=0;i<3;i++) {
+            byte[] buffer = new byte[100];
+            Assert.assertEquals(wanted.length, device.syncRead(buffer, 20, 80, 0));
+            Assert.assertArrayEquals(wanted, Arrays.copyOfRange(buffer, 20, 20 + wanted.length));
+        }
+    }
+
+    @Test
+    public void syncReadDirectBufferStripsHeaders() {
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class);
+        byte[] withHeaders = new byte[64 + 10];
+        for(int i=0;i<withHeaders.length;i++) {
+            withHeaders[i] = (byte) i;
+        }
+        Mockito.when(connection.bulkTransfer(ArgumentMatchers.<UsbEndpoint>any(), ArgumentMatchers.any(byte[].class),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            byte[] buffer = invocation.getArgument(1);
+            int length = Math.min(invocation.<Integer>getArgument(2), withHeaders.length);
+            System.arraycopy(withHeaders, 0, buffer, 0, length);
+            return length;
+        });
+        FTDISerialDevice device = new FTDISerialDevice(Mockito.mock(UsbDevice.class), connection);
+        device.asyncMode = false; // As left by syncOpen()
+
+        byte[] wanted = FTDISerialDevice.adaptArray(withHeaders);
+        ByteBuffer direct = ByteBuffer.allocateDirect(200);
+        direct.position(5);
+        Assert.assertEquals(wanted.length, device.syncRead(direct, 0));
+        Assert.assertEquals(5 + wanted.length, direct.position());
+
+        byte[] read = new byte[wanted.length];
+        direct.flip();
+        direct.position(5);
+        direct.get(read);
+        Assert.assertArrayEquals(wanted, read);
+        Assert.assertEquals(0, device.syncRead(ByteBuffer.allocateDirect(0), 0));
+    }
+
+    @Test
+    public void concurrentSyncReadsKeepTheirData() throws Exception {
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class);
+        AtomicInteger transfers = new AtomicInteger();
+        CountDownLatch secondDone = new CountDownLatch(1);
+        Mockito.when(connection.bulkTransfer(ArgumentMatchers.<UsbEndpoint>any(), ArgumentMatchers.any(byte[].class),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            byte[] buffer = invocation.getArgument(1);
+            int transfer = transfers.getAndIncrement();
+            buffer[0] = 0x01;
+            buffer[1] = 0x60;
+            Arrays.fill(buffer, 2, 12, (byte) ('a' + transfer));
+            if(transfer == 0)
+                Assert.assertTrue(secondDone.await(5, TimeUnit.SECONDS)); // Completes after the second read
+            else
+                secondDone.countDown();
+            return 12;
+        });
+        FTDISerialDevice device = new FTDISerialDevice(Mockito.mock(UsbDevice.class), connection);
+        device.asyncMode = false; // As left by syncOpen()
+
+        byte[] first = new byte[10];
+        Thread reader = new Thread(() -> device.syncRead(first, 0));
+        reader.start();
+        while(transfers.get() == 0) {
+            Thread.sleep(1);
+        }
+        byte[] second = new byte[10];
+        Assert.assertEquals(10, device.syncRead(second, 0));
+        reader.join(5000);
+
+        byte[] wanted = new byte[10];
+        Arrays.fill(wanted, (byte) 'a');
+        Assert.assertArrayEquals(wanted, first);
+        Arrays.fill(wanted, (byte) 'b');
+        Assert.assertArrayEquals(wanted, second);
+    }
 }
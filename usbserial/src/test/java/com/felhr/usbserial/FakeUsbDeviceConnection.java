@@ -0,0 +1,281 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+
+/*
+ * Host side stand-in for an UsbDeviceConnection. IN requests are completed in the order they
+ * were queued, each one filled with the next packet of the data fed to the fake device.
+ * OUT requests and bulk transfers append their data to what the fake device has received.
+ * Synchronous IN bulk transfers read up to a packet of that data and return 0 when there is none.
+ * In loopback mode the data received is sent back instead.
+ */
+class FakeUsbDeviceConnection
+{
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint inEndpoint;
+    private final UsbEndpoint outEndpoint;
+
+    private final LinkedBlockingQueue<UsbRequest> queuedRequests = new LinkedBlockingQueue<>();
+    private final Map<UsbRequest, ByteBuffer> requestBuffers = new ConcurrentHashMap<>();
+    private final Map<UsbRequest, Integer> requestLengths = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final int packetSize;
+
+    private byte[] deviceData = new byte[0];
+    private int devicePointer;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private volatile boolean failWrites;
+    private boolean loopback;
+    private boolean discardReceived;
+    private int outTransfers;
+
+    FakeUsbDeviceConnection(int packetSize)
+    {
+        this.packetSize = packetSize;
+        this.inEndpoint = createEndpoint(UsbConstants.USB_DIR_IN);
+        this.outEndpoint = createEndpoint(UsbConstants.USB_DIR_OUT);
+        this.connection = Mockito.mock(UsbDeviceConnection.class, Mockito.withSettings().stubOnly()); // Calls are not recorded
+        Mockito.when(connection.requestWait()).thenAnswer(invocation -> completeNext());
+        Mockito.when(connection.bulkTransfer(eq(outEndpoint), any(byte[].class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> {
+                    byte[] data = invocation.getArgument(1);
+                    int length = invocation.getArgument(2);
+                    if(failWrites)
+                        return -1;
+                    synchronized(this)
+                    {
+                        receive(data, 0, length);
+                    }
+                    return length;
+                });
+        Mockito.when(connection.bulkTransfer(eq(outEndpoint), any(byte[].class), anyInt(), anyInt(), anyInt()))
+                .thenAnswer(invocation -> {
+                    byte[] data = invocation.getArgument(1);
+                    int offset = invocation.getArgument(2);
+                    int length = invocation.getArgument(3);
+                    if(failWrites)
+                        return -1;
+                    synchronized(this)
+                    {
+                        receive(data, offset, length);
+                    }
+                    return length;
+                });
+        Mockito.when(connection.bulkTransfer(eq(inEndpoint), any(byte[].class), anyInt(), anyInt()))
+                .thenAnswer(invocation -> transferIn(invocation.getArgument(1), 0, invocation.getArgument(2)));
+        Mockito.when(connection.bulkTransfer(eq(inEndpoint), any(byte[].class), anyInt(), anyInt(), anyInt()))
+                .thenAnswer(invocation -> transferIn(invocation.getArgument(1), invocation.getArgument(2),
+                        invocation.getArgument(3)));
+    }
+
+    UsbDeviceConnection getConnection()
+    {
+        return connection;
+    }
+
+    UsbEndpoint getInEndpoint()
+    {
+        return inEndpoint;
+    }
+
+    UsbEndpoint getOutEndpoint()
+    {
+        return outEndpoint;
+    }
+
+    synchronized byte[] getReceivedData()
+    {
+        return received.toByteArray();
+    }
+
+    // Every OUT transfer from now on transfers nothing
+    void setFailWrites(boolean failWrites)
+    {
+        this.failWrites = failWrites;
+    }
+
+    synchronized void setDeviceData(byte[] data)
+    {
+        deviceData = data;
+        devicePointer = 0;
+    }
+
+    // Data received from now on is sent back by the fake device
+    synchronized void setLoopback(boolean loopback)
+    {
+        this.loopback = loopback;
+    }
+
+    // Data received from now on is not kept, for long runs
+    synchronized void setDiscardReceived(boolean discardReceived)
+    {
+        this.discardReceived = discardReceived;
+    }
+
+    synchronized boolean hasPendingData()
+    {
+        return devicePointer < deviceData.length;
+    }
+
+    // Bulk transfers and requests completed on the OUT endpoint
+    synchronized int getOutTransferCount()
+    {
+        return outTransfers;
+    }
+
+    int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    int getMaxInFlight()
+    {
+        return maxInFlight.get();
+    }
+
+    UsbRequest createInRequest()
+    {
+        return createRequest(inEndpoint);
+    }
+
+    UsbRequest[] createOutRequests(int count)
+    {
+        UsbRequest[] requests = new UsbRequest[count];
+        for(int i=0;i<=count-1;i++)
+        {
+            requests[i] = createRequest(outEndpoint);
+        }
+        return requests;
+    }
+
+    private UsbRequest createRequest(UsbEndpoint endpoint)
+    {
+        UsbRequest request = Mockito.mock(UsbRequest.class, Mockito.withSettings().stubOnly());
+        Mockito.when(request.getEndpoint()).thenReturn(endpoint);
+        Mockito.when(request.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation -> {
+            requestBuffers.put(request, invocation.getArgument(0));
+            requestLengths.put(request, invocation.getArgument(1));
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            queuedRequests.add(request);
+            return true;
+        });
+        return request;
+    }
+
+    UsbRequest[] createInRequests(int count)
+    {
+        UsbRequest[] requests = new UsbRequest[count];
+        for(int i=0;i<=count-1;i++)
+        {
+            requests[i] = createInRequest();
+        }
+        return requests;
+    }
+
+    private UsbRequest completeNext()
+    {
+        UsbRequest request;
+        try
+        {
+            request = queuedRequests.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if(request == null)
+            return null;
+
+        ByteBuffer buffer = requestBuffers.get(request);
+        if(request.getEndpoint() == outEndpoint)
+        {
+            completeOut(buffer, requestLengths.get(request));
+        }else
+        {
+            synchronized(this)
+            {
+                int length = Math.min(packetSize, deviceData.length - devicePointer);
+                buffer.put(deviceData, devicePointer, length);
+                devicePointer += length;
+            }
+        }
+        inFlight.decrementAndGet();
+        return request;
+    }
+
+    // Like UsbRequest does, data is taken from the start of the buffer and position is left at the bytes transferred
+    private void completeOut(ByteBuffer buffer, int length)
+    {
+        if(failWrites)
+        {
+            buffer.position(0);
+            return;
+        }
+
+        byte[] data = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.get(data);
+        synchronized(this)
+        {
+            receive(data, 0, length);
+        }
+        buffer.position(length);
+    }
+
+    private synchronized int transferIn(byte[] buffer, int offset, int length)
+    {
+        int transferred = Math.min(Math.min(length, packetSize), deviceData.length - devicePointer);
+        System.arraycopy(deviceData, devicePointer, buffer, offset, transferred);
+        devicePointer += transferred;
+        return transferred;
+    }
+
+    private void receive(byte[] data, int offset, int length)
+    {
+        outTransfers++;
+        if(discardReceived)
+        {
+            return;
+        }else if(!loopback)
+        {
+            received.write(data, offset, length);
+        }else
+        {
+            int pending = deviceData.length - devicePointer;
+            byte[] sentBack = Arrays.copyOfRange(deviceData, devicePointer, devicePointer + pending + length);
+            System.arraycopy(data, offset, sentBack, pending, length);
+            deviceData = sentBack;
+            devicePointer = 0;
+        }
+    }
+
+    private static UsbEndpoint createEndpoint(int direction)
+    {
+        UsbEndpoint endpoint = Mockito.mock(UsbEndpoint.class, Mockito.withSettings().stubOnly());
+        Mockito.when(endpoint.getType()).thenReturn(UsbConstants.USB_ENDPOINT_XFER_BULK);
+        Mockito.when(endpoint.getDirection()).thenReturn(direction);
+        Mockito.when(endpoint.getMaxPacketSize()).thenReturn(64);
+        return endpoint;
+    }
+}
@@ -0,0 +1,190 @@
+package com.felhr.usbserial;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class ModemStatusPollerTest {
+
+    private static final long MIN = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final FakeLines lines = new FakeLines();
+    private final ModemStatusPoller poller = new ModemStatusPoller(lines, MIN, MAX);
+    private final SerialIoScheduler scheduler = new SerialIoScheduler(1);
+
+    @After
+    public void stop() {
+        poller.stop();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void idlePollsBackOffToMax() throws Exception {
+        lines.needed = true;
+        poller.start(null);
+        awaitInterval(MAX);
+
+        // Doubled from 1 to 16 ms
+        Assert.assertTrue(lines.polls.get() >= 4);
+    }
+
+    @Test
+    public void changesKeepPollingFast() throws Exception {
+        lines.needed = true;
+        lines.changing = true;
+        poller.start(null);
+        lines.awaitPolls(20);
+        Assert.assertEquals(MIN, poller.getInterval());
+    }
+
+    @Test
+    public void wakeUpResetsInterval() throws Exception {
+        lines.needed = true;
+        poller.start(null);
+        awaitInterval(MAX);
+
+        // Once the poller has seen it, no poll in progress or after the wake up can double it again
+        lines.needed = false;
+        Assert.assertTrue(lines.notNeeded.tryAcquire(5, TimeUnit.SECONDS));
+        poller.wakeUp();
+        Assert.assertEquals(MIN, poller.getInterval());
+    }
+
+    @Test
+    public void wakeUpDuringPollKeepsInterval() throws Exception {
+        lines.needed = true;
+        poller.start(null);
+        awaitInterval(MAX);
+
+        lines.gate = new Semaphore(0);
+        Assert.assertTrue(lines.blocked.tryAcquire(5, TimeUnit.SECONDS)); // Inside pollLines()
+        lines.needed = false;
+        poller.wakeUp();
+        lines.gate.release();
+
+        Thread.sleep(20); // The poll without changes returns and must not back off
+        Assert.assertEquals(MIN, poller.getInterval());
+    }
+
+    @Test
+    public void suspendedWithoutCallbacks() throws Exception {
+        poller.start(null);
+        Thread.sleep(50);
+        Assert.assertEquals(0, lines.polls.get());
+
+        lines.needed = true;
+        poller.wakeUp();
+        lines.awaitPolls(1);
+    }
+
+    @Test
+    public void suspendedWithoutCallbacksOnScheduler() throws Exception {
+        poller.start(scheduler);
+        Thread.sleep(50);
+        Assert.assertEquals(0, lines.polls.get());
+
+        lines.needed = true;
+        poller.wakeUp();
+        lines.awaitPolls(1);
+    }
+
+    @Test
+    public void idlePollsBackOffOnScheduler() throws Exception {
+        lines.needed = true;
+        poller.start(scheduler);
+        awaitInterval(MAX);
+
+        // Repeated wake ups must not leave more than one chain of polls behind
+        for(int i=0;i<100;i++) {
+            poller.wakeUp();
+        }
+        awaitInterval(MAX);
+        int polls = lines.polls.get();
+        Thread.sleep(100);
+        Assert.assertTrue("Polls in 100 ms: " + (lines.polls.get() - polls), lines.polls.get() - polls <= 10);
+    }
+
+    @Test
+    public void noPollsAfterStop() throws Exception {
+        lines.needed = true;
+        poller.start(scheduler);
+        lines.awaitPolls(3);
+
+        poller.stop();
+        Thread.sleep(20);
+        int polls = lines.polls.get();
+        Thread.sleep(50);
+        Assert.assertEquals(polls, lines.polls.get());
+    }
+
+    @Test
+    public void restartAfterStop() throws Exception {
+        lines.needed = true;
+        poller.start(null);
+        lines.awaitPolls(1);
+        poller.stop();
+
+        poller.start(null);
+        lines.awaitPolls(1);
+    }
+
+    @Test
+    public void countsControlTransfers() {
+        Assert.assertEquals(0, poller.getControlTransfers());
+        Assert.assertEquals(0, poller.getControlTransferRate(), 0);
+        for(int i=0;i<5;i++) {
+            poller.countControlTransfers(2);
+        }
+        Assert.assertEquals(10, poller.getControlTransfers());
+    }
+
+    private void awaitInterval(long interval) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(poller.getInterval() != interval) {
+            Assert.assertTrue("Interval stuck at " + poller.getInterval(), System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class FakeLines implements ModemStatusPoller.Lines {
+        volatile boolean needed;
+        volatile boolean changing;
+        volatile Semaphore gate; // Polls wait for it if set
+        final AtomicInteger polls = new AtomicInteger();
+        final Semaphore blocked = new Semaphore(0);
+        final Semaphore notNeeded = new Semaphore(0); // Released every time the poller is told no poll is needed
+        private final Semaphore polled = new Semaphore(0);
+
+        @Override
+        public boolean isPollNeeded() {
+            if(needed)
+                return true;
+            notNeeded.release();
+            return false;
+        }
+
+        @Override
+        public boolean pollLines() {
+            polls.incrementAndGet();
+            polled.release();
+            Semaphore current = gate;
+            if(current != null) {
+                blocked.release();
+                current.acquireUninterruptibly();
+            }
+            return changing;
+        }
+
+        void awaitPolls(int count) throws InterruptedException {
+            Assert.assertTrue(polled.tryAcquire(count, 5, TimeUnit.SECONDS));
+        }
+    }
+}
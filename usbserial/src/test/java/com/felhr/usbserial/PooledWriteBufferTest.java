@@ -0,0 +1,169 @@
+package com.felhr.usbserial;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class PooledWriteBufferTest {
+
+    @Test
+    public void coalescesSmallWrites() {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        for(int i=0;i<100;i++)
+            buffer.put(new byte[]{(byte) i, (byte) i}, 0, 2);
+
+        Assert.assertEquals(100, buffer.getPendingWrites());
+        Assert.assertEquals(200, buffer.getPendingBytes());
+
+        byte[] dst = new byte[SerialBuffer.MAX_BULK_BUFFER];
+        Assert.assertEquals(200, buffer.get(dst));
+        Assert.assertEquals(0, buffer.getPendingWrites());
+        Assert.assertEquals(0, buffer.getPendingBytes());
+        for(int i=0;i<100;i++)
+            Assert.assertEquals((byte) i, dst[i * 2 + 1]);
+    }
+
+    @Test
+    public void bigWriteSplitInBulkTransfers() {
+        byte[] src = randomBytes(100 * 1024 + 3);
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        buffer.put(src, 0, src.length);
+
+        Assert.assertArrayEquals(src, drain(buffer, src.length));
+    }
+
+    @Test
+    public void concurrentWritesAreNotInterleaved() throws InterruptedException {
+        int writers = 4;
+        int writesPerWriter = 2000;
+        int writeLength = 700; // Spans two segments
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[writers];
+        for(int w=0;w<writers;w++) {
+            byte[] src = new byte[writeLength];
+            Arrays.fill(src, (byte) w);
+            threads[w] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i=0;i<writesPerWriter;i++)
+                    buffer.put(src, 0, src.length);
+            });
+            threads[w].start();
+        }
+        start.countDown();
+
+        byte[] received = drain(buffer, writers * writesPerWriter * writeLength);
+        for(Thread thread : threads)
+            thread.join();
+
+        for(int i=0;i<received.length;i+=writeLength) {
+            for(int j=1;j<writeLength;j++)
+                Assert.assertEquals(received[i], received[i + j]);
+        }
+    }
+
+    @Test
+    public void gatheredBuffersAreOneWrite() {
+        byte[] header = randomBytes(100);
+        byte[] body = randomBytes(40000); // Spans several segments
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+        direct.put(body).flip();
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        buffer.put(new ByteBuffer[]{ByteBuffer.wrap(header), ByteBuffer.allocate(0), direct}, null);
+
+        Assert.assertEquals(1, buffer.getPendingWrites());
+        Assert.assertFalse(direct.hasRemaining());
+        byte[] expected = Arrays.copyOf(header, header.length + body.length);
+        System.arraycopy(body, 0, expected, header.length, body.length);
+        Assert.assertArrayEquals(expected, drain(buffer, expected.length));
+    }
+
+    @Test
+    public void failWhenFull() {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        buffer.setCapacity(1000, UsbSerialInterface.WRITE_BUFFER_FAIL);
+
+        Assert.assertTrue(buffer.put(new byte[600], 0, 600));
+        Assert.assertFalse(buffer.put(new byte[600], 0, 600));
+        Assert.assertEquals(1, buffer.getRejectedWrites());
+        Assert.assertEquals(600, buffer.getPendingBytes());
+    }
+
+    @Test
+    public void dropOldestWrites() {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        buffer.setCapacity(10, UsbSerialInterface.WRITE_BUFFER_DROP_OLDEST);
+
+        for(int i=0;i<5;i++)
+            Assert.assertTrue(buffer.put(new byte[]{(byte) i, (byte) i, (byte) i, (byte) i}, 0, 4));
+
+        byte[] dst = new byte[64];
+        int length = buffer.get(dst);
+        Assert.assertArrayEquals(new byte[]{3, 3, 3, 3, 4, 4, 4, 4}, Arrays.copyOf(dst, length));
+        Assert.assertEquals(3, buffer.getDroppedWrites());
+    }
+
+    @Test
+    public void blockUntilConsumed() throws InterruptedException {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        buffer.setCapacity(1000, UsbSerialInterface.WRITE_BUFFER_BLOCK);
+        buffer.put(new byte[800], 0, 800);
+
+        CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            buffer.put(new byte[800], 0, 800);
+            written.countDown();
+        });
+        writer.start();
+
+        Assert.assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+        buffer.get(new byte[SerialBuffer.MAX_BULK_BUFFER]);
+        Assert.assertTrue(written.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(800, buffer.getPendingBytes());
+    }
+
+    @Test
+    public void getReturnsWhenInterrupted() {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        Thread.currentThread().interrupt();
+        Assert.assertEquals(0, buffer.get(new byte[16]));
+        Assert.assertTrue(Thread.interrupted());
+    }
+
+    @Test
+    public void getWithTimeout() {
+        PooledWriteBuffer buffer = new PooledWriteBuffer();
+        Assert.assertEquals(0, buffer.get(new byte[16], TimeUnit.MILLISECONDS.toNanos(20)));
+    }
+
+    private static byte[] drain(PooledWriteBuffer buffer, int total) {
+        ByteArrayOutputStream received = new ByteArrayOutputStream(total);
+        byte[] dst = new byte[SerialBuffer.MAX_BULK_BUFFER];
+        while(received.size() < total) {
+            int length = buffer.get(dst);
+            Assert.assertTrue(length <= SerialBuffer.MAX_BULK_BUFFER);
+            received.write(dst, 0, length);
+        }
+        return received.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,244 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class SerialInputStreamTest {
+
+    private static final int PACKET_SIZE = 512;
+    private static final int TRANSFER_SIZE = 16 * 1024; // Bulk transfers of several packets
+
+    @Test
+    public void singleByteAndBulkReadsMixed() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createLoopbackDevice(fake);
+        byte[] sent = randomBytes(40000);
+        device.syncWrite(sent, 0);
+
+        SerialInputStream inputStream = new SerialInputStream(device);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Random random = new Random(2);
+        byte[] buffer = new byte[32 * 1024];
+        while(received.size() < sent.length) {
+            if(random.nextBoolean()) {
+                int value = inputStream.read();
+                Assert.assertNotEquals(-1, value);
+                received.write(value);
+            } else {
+                int length = inputStream.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                Assert.assertTrue(length > 0);
+                received.write(buffer, 0, length);
+            }
+        }
+
+        Assert.assertArrayEquals(sent, received.toByteArray());
+    }
+
+    @Test
+    public void noDataNoByte() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        SerialInputStream inputStream = new SerialInputStream(createLoopbackDevice(fake));
+        Assert.assertEquals(-1, inputStream.read());
+        Assert.assertEquals(0, inputStream.read(new byte[10]));
+    }
+
+    @Test
+    public void transfersOfWholePackets() {
+        List<Integer> lengths = new ArrayList<>();
+        UsbSerialInterface device = Mockito.mock(UsbSerialInterface.class);
+        Mockito.when(device.syncRead(ArgumentMatchers.any(byte[].class), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            lengths.add(invocation.<byte[]>getArgument(0).length);
+            return 1;
+        });
+        Mockito.when(device.syncRead(ArgumentMatchers.any(byte[].class), ArgumentMatchers.anyInt(),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            lengths.add(invocation.<Integer>getArgument(2));
+            return 1;
+        });
+
+        SerialInputStream inputStream = new SerialInputStream(device, 1000);
+        inputStream.read();
+        inputStream.read(new byte[10], 0, 10);
+        inputStream.read(new byte[5000], 0, 5000); // Straight into the array
+
+        Assert.assertEquals(3, lengths.size());
+        Assert.assertEquals(960, (int) lengths.get(0));
+        Assert.assertEquals(960, (int) lengths.get(1));
+        Assert.assertEquals(4992, (int) lengths.get(2));
+    }
+
+    @Test
+    public void readAhead() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(TRANSFER_SIZE);
+        UsbSerialDevice device = createLoopbackDevice(fake);
+        SerialInputStream inputStream = new SerialInputStream(device, 4 * 1024);
+        inputStream.startReadAhead();
+        try {
+            byte[] sent = randomBytes(100000);
+            device.syncWrite(sent, 0);
+
+            awaitAvailable(inputStream, 4 * 4 * 1024); // Every buffer filled
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            while(received.size() < sent.length) {
+                int length = inputStream.read(buffer, 0, buffer.length);
+                Assert.assertTrue(length > 0);
+                received.write(buffer, 0, length);
+            }
+            Assert.assertArrayEquals(sent, received.toByteArray());
+        } finally {
+            inputStream.stopReadAhead();
+        }
+    }
+
+    @Test
+    public void readAheadKeptAfterStop() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(TRANSFER_SIZE);
+        UsbSerialDevice device = createLoopbackDevice(fake);
+        SerialInputStream inputStream = new SerialInputStream(device);
+        byte[] sent = randomBytes(3000);
+        inputStream.startReadAhead();
+        device.syncWrite(sent, 0);
+        awaitAvailable(inputStream, sent.length);
+        inputStream.stopReadAhead();
+        Assert.assertFalse(inputStream.isReadingAhead());
+
+        byte[] more = randomBytes(100);
+        device.syncWrite(more, 0);
+        byte[] received = new byte[sent.length + more.length];
+        int length = 0;
+        while(length < received.length) {
+            int read = inputStream.read(received, length, received.length - length);
+            Assert.assertTrue(read > 0);
+            length += read;
+        }
+
+        byte[] expected = new byte[received.length];
+        System.arraycopy(sent, 0, expected, 0, sent.length);
+        System.arraycopy(more, 0, expected, sent.length, more.length);
+        Assert.assertArrayEquals(expected, received);
+    }
+
+    @Test
+    public void readAheadStopsWhenClosed() throws Exception {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class),
+                new FakeUsbDeviceConnection(PACKET_SIZE).getConnection()); // Async mode, never open
+        SerialInputStream inputStream = new SerialInputStream(device);
+        inputStream.setTimeout(5000);
+        inputStream.startReadAhead();
+
+        long start = System.nanoTime();
+        Assert.assertEquals(-1, inputStream.read());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        Assert.assertFalse(inputStream.isReadingAhead());
+    }
+
+    @Test
+    public void timedOutReadAheadReissuedAtOnce() throws Exception {
+        List<long[]> reads = new ArrayList<>(); // Start and end of every read
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class);
+        Mockito.when(connection.bulkTransfer(ArgumentMatchers.any(UsbEndpoint.class), ArgumentMatchers.any(byte[].class),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            long start = System.nanoTime();
+            Thread.sleep((int) invocation.getArgument(3)); // No data, times out as the device does
+            synchronized(reads) {
+                reads.add(new long[]{start, System.nanoTime()});
+            }
+            return -1;
+        });
+        SerialInputStream inputStream = new SerialInputStream(createOpenDevice(connection));
+        inputStream.startReadAhead();
+        try {
+            awaitReads(reads, 4);
+        } finally {
+            inputStream.stopReadAhead();
+        }
+
+        // Sleeping after a timeout delays every read after it
+        long minGap = Long.MAX_VALUE;
+        synchronized(reads) {
+            for(int i=1;i<reads.size();i++) {
+                minGap = Math.min(minGap, reads.get(i)[0] - reads.get(i - 1)[1]);
+            }
+        }
+        Assert.assertTrue("Gap " + minGap, minGap < TimeUnit.MILLISECONDS.toNanos(SerialInputStream.READ_AHEAD_RETRY / 2));
+    }
+
+    @Test
+    public void failingReadAheadBacksOff() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class);
+        Mockito.when(connection.bulkTransfer(ArgumentMatchers.any(UsbEndpoint.class), ArgumentMatchers.any(byte[].class),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            reads.incrementAndGet();
+            return -1; // Fails at once
+        });
+        SerialInputStream inputStream = new SerialInputStream(createOpenDevice(connection));
+        inputStream.startReadAhead();
+        try {
+            Thread.sleep(100);
+        } finally {
+            inputStream.stopReadAhead();
+        }
+        Assert.assertTrue("Reads " + reads.get(), reads.get() <= 100 / SerialInputStream.READ_AHEAD_RETRY + 1);
+    }
+
+    private static void awaitAvailable(SerialInputStream inputStream, int bytes) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(inputStream.available() < bytes) {
+            Assert.assertTrue("Available " + inputStream.available(), System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitReads(List<long[]> reads, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(true) {
+            synchronized(reads) {
+                if(reads.size() >= count)
+                    return;
+            }
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static UsbSerialDevice createOpenDevice(UsbDeviceConnection connection) {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), connection);
+        device.asyncMode = false;
+        device.isOpen = true; // So failed reads do not stop the read ahead
+        device.setSyncParams(Mockito.mock(UsbEndpoint.class), Mockito.mock(UsbEndpoint.class));
+        return device;
+    }
+
+    private static UsbSerialDevice createLoopbackDevice(FakeUsbDeviceConnection fake) {
+        fake.setLoopback(true);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false; // As left by syncOpen()
+        device.isOpen = true;
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        return device;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,120 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SerialIoSchedulerTest {
+
+    private final SerialIoScheduler scheduler = new SerialIoScheduler(1);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void manyPortsShareOneThread() throws Exception {
+        int ports = 8;
+        List<FakeUsbDeviceConnection> fakes = new ArrayList<>();
+        List<UsbSerialDevice> devices = new ArrayList<>();
+        List<ByteArrayOutputStream> sent = new ArrayList<>();
+        for(int i=0;i<ports;i++) {
+            FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+            fakes.add(fake);
+            devices.add(createDevice(fake, 0));
+            sent.add(new ByteArrayOutputStream());
+        }
+
+        Random random = new Random(3);
+        for(int i=0;i<2000;i++) {
+            int port = random.nextInt(ports);
+            byte[] data = new byte[1 + random.nextInt(200)];
+            random.nextBytes(data);
+            sent.get(port).write(data);
+            devices.get(port).write(data);
+        }
+
+        for(int i=0;i<ports;i++) {
+            Assert.assertTrue(devices.get(i).flush(5000));
+            Assert.assertArrayEquals(sent.get(i).toByteArray(), fakes.get(i).getReceivedData());
+            Assert.assertFalse("No write thread of its own", devices.get(i).writeThread.isAlive());
+        }
+    }
+
+    @Test
+    public void outRequestsOnScheduler() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = createDevice(fake, 4);
+        device.workerThread = device.new WorkerThread(device);
+        device.workerThread.start();
+
+        try {
+            byte[] data = new byte[256 * 1024];
+            new Random(5).nextBytes(data);
+            WriteFuture future = device.writeAsync(data);
+
+            Assert.assertEquals(data.length, (int) future.get(5, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(data, fake.getReceivedData());
+        } finally {
+            device.workerThread.stopThread();
+        }
+    }
+
+    @Test
+    public void commandChannelTimedOnScheduler() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = createDevice(fake, 0);
+        CommandChannel channel = device.getCommandChannel();
+        channel.setMaxRate(20);
+
+        long start = System.nanoTime();
+        channel.send("a", "1".getBytes(StandardCharsets.US_ASCII));
+        channel.send("b", "2".getBytes(StandardCharsets.US_ASCII));
+        channel.send("c", "3".getBytes(StandardCharsets.US_ASCII));
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(2);
+        while(fake.getReceivedData().length < 3)
+        {
+            Assert.assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        Assert.assertEquals("123", new String(fake.getReceivedData(), StandardCharsets.US_ASCII));
+        Assert.assertTrue("Two 50 ms intervals", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void closedPortStopsWriting() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+        UsbSerialDevice device = createDevice(fake, 0);
+
+        device.killWriteThread();
+        device.write(new byte[]{1, 2, 3});
+        Thread.sleep(50);
+
+        Assert.assertEquals(0, fake.getReceivedData().length);
+    }
+
+    private UsbSerialDevice createDevice(FakeUsbDeviceConnection fake, int requests) {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setIoScheduler(scheduler);
+        device.restartWriteThread();
+        device.writeThread.setUsbEndpoint(fake.getOutEndpoint());
+        if(requests > 0)
+            device.writeThread.setUsbRequests(fake.createOutRequests(requests));
+        return device;
+    }
+}
@@ -0,0 +1,171 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SerialOutputStreamTest {
+
+    private final FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(512);
+    private final UsbSerialDevice device = createDevice(fake);
+    private final SerialOutputStream outputStream = new SerialOutputStream(device);
+    private final SerialIoScheduler scheduler = new SerialIoScheduler(1);
+
+    @After
+    public void stop() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void transferPerWrite() throws Exception {
+        outputStream.write('a');
+        outputStream.write("bc".getBytes());
+        outputStream.write("xdex".getBytes(), 1, 2);
+
+        Assert.assertEquals(3, outputStream.getTransferCount());
+        Assert.assertArrayEquals("abcde".getBytes(), fake.getReceivedData());
+    }
+
+    @Test
+    public void coalescedInPackets() throws Exception {
+        outputStream.setBufferSize(100); // One packet of 64 bytes
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for(int i=0;i<20;i++) {
+            byte[] command = ("command " + i + "\n").getBytes();
+            outputStream.write(command);
+            sent.write(command, 0, command.length);
+        }
+        outputStream.write('!');
+        sent.write('!');
+        long transfers = outputStream.getTransferCount();
+        Assert.assertTrue("Transfers " + transfers, transfers <= sent.size() / 64);
+
+        outputStream.flush();
+        Assert.assertEquals(transfers + 1, outputStream.getTransferCount());
+        Assert.assertArrayEquals(sent.toByteArray(), fake.getReceivedData());
+    }
+
+    @Test
+    public void largeWriteAfterBuffered() throws Exception {
+        outputStream.setBufferSize(64);
+        byte[] large = new byte[1000];
+        large[0] = 1;
+        outputStream.write(2);
+        outputStream.write(large);
+
+        Assert.assertEquals(2, outputStream.getTransferCount());
+        byte[] received = fake.getReceivedData();
+        Assert.assertEquals(1001, received.length);
+        Assert.assertEquals(2, received[0]);
+        Assert.assertEquals(1, received[1]);
+    }
+
+    @Test
+    public void lingerFlushes() throws Exception {
+        outputStream.setBufferSize(512);
+        outputStream.setLinger(5);
+        outputStream.write("setmotor 10 10\n".getBytes());
+        outputStream.write("setmotor 20 20\n".getBytes());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(outputStream.getTransferCount() == 0) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(1, outputStream.getTransferCount());
+        Assert.assertArrayEquals("setmotor 10 10\nsetmotor 20 20\n".getBytes(), fake.getReceivedData());
+    }
+
+    @Test
+    public void gatheringWrite() throws Exception {
+        outputStream.write("setmotor".getBytes(), " 10 10".getBytes(), new byte[0], "*5A\n".getBytes());
+
+        Assert.assertEquals(1, outputStream.getTransferCount());
+        Assert.assertArrayEquals("setmotor 10 10*5A\n".getBytes(), fake.getReceivedData());
+    }
+
+    @Test
+    public void failedWriteThrows() throws Exception {
+        fake.setFailWrites(true);
+        try {
+            outputStream.write("setmotor 10 10\n".getBytes());
+            Assert.fail("Failed write not reported");
+        } catch(IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, outputStream.getTransferCount());
+    }
+
+    @Test
+    public void failedLingerFlushReportedByNextWrite() throws Exception {
+        device.setIoScheduler(scheduler);
+        outputStream.setBufferSize(512);
+        outputStream.setLinger(1);
+        fake.setFailWrites(true);
+        outputStream.write("setmotor 10 10\n".getBytes());
+        awaitScheduledAfter(2); // The linger flush has run before
+
+        fake.setFailWrites(false);
+        try {
+            outputStream.write('!'); // Buffered, it transfers nothing itself
+            Assert.fail("Failed linger flush not reported");
+        } catch(IOException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, outputStream.getTransferCount());
+
+        outputStream.write('!');
+        outputStream.flush();
+        Assert.assertEquals(1, outputStream.getTransferCount());
+        Assert.assertArrayEquals("!".getBytes(), fake.getReceivedData());
+    }
+
+    @Test
+    public void lingerFlushDoesNotWaitForWrite() throws Exception {
+        device.setIoScheduler(scheduler);
+        outputStream.setBufferSize(512);
+        outputStream.setLinger(1);
+        outputStream.write("setmotor 10 10\n".getBytes());
+
+        device.syncWriteLock.lock(); // A sync write stalled on the port
+        try {
+            // Other tasks on the scheduler still run
+            awaitScheduledAfter(10);
+            Assert.assertEquals(0, outputStream.getTransferCount());
+        } finally {
+            device.syncWriteLock.unlock();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(outputStream.getTransferCount() == 0) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        Assert.assertArrayEquals("setmotor 10 10\n".getBytes(), fake.getReceivedData());
+    }
+
+    // Runs a task on the single scheduler thread delay ms from now and waits for it
+    private void awaitScheduledAfter(long delay) throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        scheduler.schedule(ran::countDown, TimeUnit.MILLISECONDS.toNanos(delay));
+        Assert.assertTrue("Scheduler blocked", ran.await(1, TimeUnit.SECONDS));
+    }
+
+    private static UsbSerialDevice createDevice(FakeUsbDeviceConnection fake) {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false; // As left by syncOpen()
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        return device;
+    }
+}
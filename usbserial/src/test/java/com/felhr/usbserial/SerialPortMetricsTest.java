@@ -0,0 +1,179 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SerialPortMetricsTest {
+
+    @Test
+    public void syncTransfersCounted() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_CP210X);
+        simulator.setLoopback(true);
+        UsbSerialDevice device = simulator.createSerialDevice();
+        Assert.assertTrue(device.syncOpen());
+
+        byte[] sent = randomBytes(5000);
+        Assert.assertEquals(sent.length, device.syncWrite(sent, 0));
+        byte[] buffer = new byte[8192];
+        int received = 0;
+        while(received < sent.length) {
+            int n = device.syncRead(buffer, 100);
+            Assert.assertTrue(n > 0);
+            received += n;
+        }
+        // Nothing left, it times out
+        Assert.assertTrue(device.syncRead(buffer, 10) <= 0);
+
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertEquals(sent.length, snapshot.getBytesOut());
+        Assert.assertEquals(1, snapshot.getTransfersOut());
+        Assert.assertEquals(0, snapshot.getFailedTransfersOut());
+        Assert.assertEquals(sent.length, snapshot.getBytesIn());
+        Assert.assertEquals("Transfers of several packets", 0, snapshot.getShortReads());
+        Assert.assertEquals(1, snapshot.getFailedTransfersIn() + snapshot.getZeroLengthReads());
+        Assert.assertEquals(snapshot.getTransfersIn(), sum(snapshot.getReadLatencies()));
+        Assert.assertEquals(1, sum(snapshot.getWriteLatencies()));
+        Assert.assertTrue(snapshot.getWriteLatencyQuantile(1) > 0);
+
+        device.getMetrics().reset();
+        Assert.assertEquals(0, device.getMetrics().snapshot().getBytesIn());
+        Assert.assertEquals(0, sum(device.getMetrics().snapshot().getReadLatencies()));
+    }
+
+    @Test
+    public void ftdiStatusPacketsAreZeroLengthReads() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_FTDI);
+        UsbSerialDevice device = simulator.createSerialDevice();
+        Assert.assertTrue(device.syncOpen());
+        Assert.assertEquals(0, device.syncRead(new byte[100], 50));
+        simulator.feed(new byte[]{1, 2, 3});
+        Assert.assertEquals(3, device.syncRead(new byte[100], 50));
+
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertTrue(snapshot.getZeroLengthReads() >= 2);
+        Assert.assertEquals(3, snapshot.getBytesIn());
+        Assert.assertEquals(1, snapshot.getShortReads());
+    }
+
+    @Test
+    public void asyncReadsShortOnlyBelowAPacket() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(64); // A packet per completed request
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setReadRequestCount(2);
+        UsbSerialDevice.WorkerThread workerThread = device.new WorkerThread(device);
+        workerThread.setUsbRequests(fake.createInRequests(2));
+        workerThread.setCallback(data -> {});
+
+        fake.setDeviceData(randomBytes(3 * 64 + 10));
+        workerThread.queueRequests();
+        while(fake.hasPendingData()) {
+            workerThread.doRun();
+        }
+
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertEquals(4, snapshot.getTransfersIn());
+        Assert.assertEquals(3 * 64 + 10, snapshot.getBytesIn());
+        Assert.assertEquals(1, snapshot.getShortReads());
+    }
+
+    @Test
+    public void failedWritesCounted() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_PL2303);
+        simulator.setFailWrites(true);
+        UsbSerialDevice device = simulator.createSerialDevice();
+        Assert.assertTrue(device.syncOpen());
+        Assert.assertTrue(device.syncWrite(new byte[10], 0) < 0);
+
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertEquals(1, snapshot.getFailedTransfersOut());
+        Assert.assertEquals(0, snapshot.getTransfersOut());
+        Assert.assertEquals(0, snapshot.getBytesOut());
+    }
+
+    @Test
+    public void writeQueueHighWaterMark() throws Exception {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_CDC);
+        UsbSerialDevice device = simulator.openWithRequests(2, 2);
+
+        // Nothing is transferred until the write thread starts
+        device.write(new byte[1000]);
+        device.write(new byte[2000]);
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertEquals(3000, snapshot.getWriteQueueSize());
+        Assert.assertEquals(2, snapshot.getPendingWrites());
+        Assert.assertEquals(3000, snapshot.getWriteQueueHighWaterMark());
+
+        device.workerThread.start();
+        device.writeThread.start();
+        try {
+            Assert.assertTrue(device.flush(5000));
+            snapshot = device.getMetrics().snapshot();
+            Assert.assertEquals(0, snapshot.getWriteQueueSize());
+            Assert.assertEquals(3000, snapshot.getWriteQueueHighWaterMark());
+            Assert.assertEquals(3000, snapshot.getBytesOut());
+            Assert.assertEquals(snapshot.getTransfersOut(), sum(snapshot.getWriteLatencies()));
+        } finally {
+            device.workerThread.stopThread();
+            device.writeThread.stopThread();
+            device.workerThread.join(2000);
+            device.writeThread.join(2000);
+        }
+    }
+
+    @Test
+    public void ftdiLineErrorsCounted() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_FTDI);
+        FTDISerialDevice device = (FTDISerialDevice) simulator.createSerialDevice();
+        device.ftdiUtilities.checkModemStatus(new byte[]{0x01, 0x60}); // The first one only sets the lines
+        device.ftdiUtilities.checkModemStatus(new byte[]{0x01, 0x60 | 0x04});
+        device.ftdiUtilities.checkModemStatus(new byte[]{0x01, 0x60 | 0x08 | 0x02});
+
+        SerialPortMetrics.Snapshot snapshot = device.getMetrics().snapshot();
+        Assert.assertEquals(1, snapshot.getParityErrors());
+        Assert.assertEquals(1, snapshot.getFramingErrors());
+        Assert.assertEquals(1, snapshot.getOverrunErrors());
+    }
+
+    @Test
+    public void latencyBuckets() {
+        Assert.assertEquals(0, SerialPortMetrics.bucketOf(500));
+        Assert.assertEquals(1, SerialPortMetrics.bucketOf(TimeUnit.MICROSECONDS.toNanos(1)));
+        Assert.assertEquals(10, SerialPortMetrics.bucketOf(TimeUnit.MICROSECONDS.toNanos(1000)));
+        Assert.assertEquals(SerialPortMetrics.LATENCY_BUCKETS - 1, SerialPortMetrics.bucketOf(Long.MAX_VALUE));
+        Assert.assertTrue(TimeUnit.MICROSECONDS.toNanos(1000) < TimeUnit.MICROSECONDS.toNanos(SerialPortMetrics.getBucketLimit(10)));
+
+        SerialPortMetrics metrics = new SerialPortMetrics(new SerialBuffer(true));
+        for(int i=0;i<99;i++) {
+            metrics.onRead(64, 64, TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        metrics.onRead(64, 64, TimeUnit.MILLISECONDS.toNanos(20));
+        SerialPortMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(128, snapshot.getReadLatencyQuantile(0.5));
+        Assert.assertEquals(128, snapshot.getReadLatencyQuantile(0.99));
+        Assert.assertEquals(32768, snapshot.getReadLatencyQuantile(1));
+        Assert.assertEquals(0, snapshot.getWriteLatencyQuantile(0.5));
+    }
+
+    private static long sum(long[] histogram) {
+        long total = 0;
+        for(long count : histogram) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,105 @@
+package com.felhr.usbserial;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class SerialTraceRecorderTest {
+
+    @Test
+    public void dumpDecodedAsHexAndText() throws IOException {
+        SerialTraceRecorder recorder = new SerialTraceRecorder(8, 4);
+        recorder.record(SerialTraceRecorder.WRITE_QUEUED, "AT\r\n".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put(new byte[]{0x01, 0x60, 'O', 'K', '\r', '\n'});
+        recorder.record(SerialTraceRecorder.READ, direct, 0, 6);
+
+        String[] hex = decode(recorder, SerialTraceDecoder.HEX);
+        Assert.assertEquals(4, hex.length);
+        Assert.assertTrue(hex[0].startsWith("Dumped "));
+        Assert.assertTrue(hex[1].startsWith("First event "));
+        Assert.assertTrue(hex[2], hex[2].matches(" *\\+0\\.000000 ms WRITE_QUEUED +4 0x41 0x54 0x0D 0x0A"));
+        Assert.assertTrue(hex[3], hex[3].matches(" *\\+\\d+\\.\\d{6} ms READ +6 0x01 0x60 0x4F 0x4B \\.\\.\\."));
+
+        String[] text = decode(recorder, SerialTraceDecoder.TEXT);
+        Assert.assertTrue(text[2], text[2].endsWith("AT.."));
+        Assert.assertTrue(text[3], text[3].endsWith(".`OK ..."));
+    }
+
+    @Test
+    public void oldestEventsOverwritten() throws IOException {
+        SerialTraceRecorder recorder = new SerialTraceRecorder(5, 1);
+        Assert.assertEquals(8, recorder.getCapacity());
+        for(int i=0;i<20;i++) {
+            recorder.record(SerialTraceRecorder.WRITE_TAKEN, new byte[]{(byte) i}, 0, 1);
+        }
+        Assert.assertEquals(20, recorder.getEventCount());
+
+        String[] lines = decode(recorder, SerialTraceDecoder.HEX);
+        Assert.assertEquals(2 + 8, lines.length);
+        for(int i=0;i<8;i++) {
+            Assert.assertTrue(lines[2 + i], lines[2 + i].endsWith(String.format("0x%02X", 12 + i)));
+        }
+
+        recorder.clear();
+        Assert.assertEquals(1, decode(recorder, SerialTraceDecoder.HEX).length); // Header only
+    }
+
+    @Test
+    public void serialBufferTraced() throws IOException {
+        SerialBuffer serialBuffer = new SerialBuffer(true);
+        SerialTraceRecorder recorder = new SerialTraceRecorder();
+        serialBuffer.setTraceRecorder(recorder);
+
+        serialBuffer.putWriteBuffer(new byte[]{1, 2, 3});
+        serialBuffer.putWriteBuffer(ByteBuffer.wrap(new byte[]{4, 5}), null);
+        byte[] dst = new byte[64];
+        Assert.assertEquals(5, serialBuffer.pollWriteBuffer(dst));
+        serialBuffer.getReadBuffer(0).put(new byte[]{6, 7, 8, 9});
+        Assert.assertEquals(4, serialBuffer.getReadView(0).remaining());
+        Assert.assertEquals(4, recorder.getEventCount());
+
+        serialBuffer.setTraceRecorder(null);
+        serialBuffer.putWriteBuffer(new byte[]{1});
+        Assert.assertEquals(4, recorder.getEventCount());
+
+        String[] lines = decode(recorder, SerialTraceDecoder.HEX);
+        Assert.assertTrue(lines[2], lines[2].endsWith("WRITE_QUEUED      3 0x01 0x02 0x03"));
+        Assert.assertTrue(lines[3], lines[3].endsWith("WRITE_QUEUED      2 0x04 0x05"));
+        Assert.assertTrue(lines[4], lines[4].endsWith("WRITE_TAKEN       5 0x01 0x02 0x03 0x04 0x05"));
+        Assert.assertTrue(lines[5], lines[5].endsWith("READ              4 0x06 0x07 0x08 0x09"));
+    }
+
+    @Test(expected = IOException.class)
+    public void notATrace() throws IOException {
+        SerialTraceDecoder.decode(new ByteArrayInputStream(new byte[32]), new StringBuilder(), SerialTraceDecoder.HEX);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTrace() throws IOException {
+        SerialTraceRecorder recorder = new SerialTraceRecorder(4, 8);
+        recorder.record(SerialTraceRecorder.READ, new byte[8], 0, 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.dump(out);
+        byte[] dump = out.toByteArray();
+        SerialTraceDecoder.decode(new ByteArrayInputStream(Arrays.copyOf(dump, dump.length - 3)),
+                new StringBuilder(), SerialTraceDecoder.HEX);
+    }
+
+    private static String[] decode(SerialTraceRecorder recorder, int format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.dump(out);
+        StringBuilder decoded = new StringBuilder();
+        SerialTraceDecoder.decode(new ByteArrayInputStream(out.toByteArray()), decoded, format);
+        return decoded.toString().split("\n");
+    }
+}
@@ -0,0 +1,224 @@
+package com.felhr.usbserial;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class SimulatedDeviceTest {
+
+    private static final int[] CHIPS = {UsbDeviceSimulator.CHIP_CDC, UsbDeviceSimulator.CHIP_FTDI,
+            UsbDeviceSimulator.CHIP_CP210X, UsbDeviceSimulator.CHIP_CH34X, UsbDeviceSimulator.CHIP_PL2303};
+    private static final Class<?>[] DRIVERS = {CDCSerialDevice.class, FTDISerialDevice.class,
+            CP2102SerialDevice.class, CH34xSerialDevice.class, PL2303SerialDevice.class};
+
+    @Test
+    public void driverPickedByIds() {
+        for(int i=0;i<CHIPS.length;i++) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(CHIPS[i]);
+            Assert.assertTrue(UsbSerialDevice.isSupported(simulator.getDevice()));
+            Assert.assertEquals(DRIVERS[i], simulator.createSerialDevice().getClass());
+        }
+    }
+
+    @Test
+    public void baudRateReachesDevice() {
+        for(int chip : CHIPS) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            UsbSerialDevice device = simulator.createSerialDevice();
+            Assert.assertTrue(device.syncOpen());
+            for(int baudRate : new int[]{9600, 115200, 921600}) {
+                device.setBaudRate(baudRate);
+                // Dividers of FTDI and CH34x chips are within 3%
+                Assert.assertEquals("Chip " + chip, baudRate, simulator.getBaudRate(), baudRate * 0.03);
+            }
+            device.syncClose();
+        }
+    }
+
+    @Test
+    public void readAheadStopsWhenPortClosed() throws Exception {
+        for(int chip : CHIPS) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            UsbSerialDevice device = simulator.createSerialDevice();
+            Assert.assertTrue(device.syncOpen());
+            SerialInputStream inputStream = device.getInputStream();
+            inputStream.startReadAhead();
+            Thread.sleep(20); // Reading, FTDI gets status packets only
+
+            device.syncClose();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while(inputStream.isReadingAhead()) {
+                Assert.assertTrue("Chip " + chip + " still reading ahead", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void syncLoopback() {
+        byte[] sent = randomBytes(5000);
+        for(int chip : CHIPS) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            simulator.setLoopback(true);
+            UsbSerialDevice device = simulator.createSerialDevice();
+            Assert.assertTrue(device.syncOpen());
+
+            Assert.assertEquals(sent.length, device.syncWrite(sent, 0));
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            while(received.size() < sent.length) {
+                int n = device.syncRead(buffer, 100);
+                Assert.assertTrue("Chip " + chip + " timed out", n >= 0);
+                received.write(buffer, 0, n);
+            }
+            device.syncClose();
+
+            Assert.assertArrayEquals("Chip " + chip, sent, received.toByteArray());
+            Assert.assertArrayEquals(sent, simulator.getReceivedData());
+        }
+    }
+
+    @Test
+    public void asyncLoopback() throws InterruptedException {
+        byte[] sent = randomBytes(20000);
+        for(int chip : CHIPS) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            simulator.setLoopback(true);
+            UsbSerialDevice device = simulator.createSerialDevice();
+            Assert.assertTrue(simulator.open(device));
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            device.read(data -> {
+                synchronized(received) {
+                    received.write(data, 0, data.length);
+                }
+            });
+            device.write(sent);
+            Assert.assertArrayEquals("Chip " + chip, sent, awaitReceived(received, sent.length));
+            device.close();
+        }
+    }
+
+    @Test
+    public void requestLoopback() throws Exception {
+        byte[] sent = randomBytes(20000);
+        for(int chip : CHIPS) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            simulator.setLoopback(true);
+            UsbSerialDevice device = simulator.openWithRequests(4, 2);
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            device.workerThread.setCallback(data -> {
+                synchronized(received) {
+                    received.write(data, 0, data.length);
+                }
+            });
+            device.workerThread.queueRequests();
+            device.workerThread.start();
+            device.writeThread.start();
+            try {
+                WriteFuture future = device.writeAsync(sent);
+                Assert.assertEquals(sent.length, (int) future.get(5, TimeUnit.SECONDS));
+                Assert.assertArrayEquals("Chip " + chip, sent, awaitReceived(received, sent.length));
+            } finally {
+                device.workerThread.stopThread();
+                device.writeThread.stopThread();
+                device.workerThread.join(2000);
+                device.writeThread.join(2000);
+            }
+        }
+    }
+
+    @Test
+    public void ftdiStatusPacketsCarryNoData() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_FTDI);
+        UsbSerialDevice device = simulator.createSerialDevice();
+        Assert.assertTrue(device.syncOpen());
+
+        // Only status packets until the deadline. It is kept by the millisecond clock, measured
+        // on the same one it cannot end early
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(0, device.syncRead(new byte[100], 50));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+
+        simulator.feed(new byte[]{1, 2, 3});
+        byte[] buffer = new byte[100];
+        Assert.assertEquals(3, device.syncRead(buffer, 50));
+        Assert.assertEquals(3, buffer[2]);
+    }
+
+    @Test
+    public void pacedAtBaudRate() {
+        UsbDeviceSimulator simulator = new UsbDeviceSimulator(UsbDeviceSimulator.CHIP_CP210X);
+        simulator.setPaced(true);
+        simulator.setLoopback(true);
+        simulator.setTxBufferSize(64);
+        UsbSerialDevice device = simulator.createSerialDevice();
+        Assert.assertTrue(device.syncOpen());
+        device.setBaudRate(38400);
+
+        // 384 bytes take 100 ms at 38400 bauds, the last 64 ones are still buffered when the write returns
+        byte[] sent = randomBytes(384);
+        long start = System.nanoTime();
+        Assert.assertEquals(sent.length, device.syncWrite(sent, 0));
+        long written = System.nanoTime() - start;
+        Assert.assertTrue(written >= TimeUnit.MILLISECONDS.toNanos(80));
+
+        byte[] buffer = new byte[sent.length];
+        int received = 0;
+        while(received < sent.length) {
+            int n = device.syncRead(buffer, received, sent.length - received, 500);
+            Assert.assertTrue(n > 0);
+            received += n;
+        }
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void ctsReportedAfterFlowControlReenabled() throws InterruptedException {
+        for(int chip : new int[]{UsbDeviceSimulator.CHIP_CP210X, UsbDeviceSimulator.CHIP_CH34X}) {
+            UsbDeviceSimulator simulator = new UsbDeviceSimulator(chip);
+            UsbSerialDevice device = simulator.createSerialDevice();
+            Assert.assertTrue(device.syncOpen());
+            LinkedBlockingQueue<Boolean> cts = new LinkedBlockingQueue<>();
+            device.getCTS(cts::add);
+            device.setFlowControl(UsbSerialInterface.FLOW_CONTROL_RTS_CTS);
+            Assert.assertEquals(Boolean.TRUE, cts.poll(5, TimeUnit.SECONDS));
+
+            // Nothing to report with flow control off, polls are suspended
+            device.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
+            Thread.sleep(50);
+            device.setFlowControl(UsbSerialInterface.FLOW_CONTROL_RTS_CTS);
+            simulator.setModemLines(false, true);
+            Assert.assertEquals("Chip " + chip, Boolean.FALSE, cts.poll(5, TimeUnit.SECONDS));
+            device.syncClose();
+        }
+    }
+
+    private static byte[] awaitReceived(ByteArrayOutputStream received, int length) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(System.nanoTime() - deadline < 0) {
+            synchronized(received) {
+                if(received.size() >= length)
+                    return received.toByteArray();
+            }
+            Thread.sleep(1);
+        }
+        synchronized(received) {
+            return received.toByteArray();
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
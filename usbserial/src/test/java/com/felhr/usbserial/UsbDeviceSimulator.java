@@ -0,0 +1,774 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+
+/*
+ * Host side simulation of an USB serial chip: fakes UsbDevice, UsbDeviceConnection, UsbEndpoint and
+ * UsbRequest so the drivers run end-to-end, opened with open() or syncOpen(), in unit tests and
+ * benchmarks with no hardware.
+ *
+ * The device answers the control requests of its chip the way the drivers expect and decodes the
+ * baud rate they set. Data fed to the device, or written to it in loopback mode, reaches the IN
+ * endpoint in packets: FTDI ones begin with the two modem status bytes, and an FTDI chip with
+ * nothing to send still answers with a status only packet every latency timer period.
+ *
+ * Timing is optional. With pacing on, bytes take the time of 10 bits at the baud rate to cross the
+ * wire and writes block once the transmit buffer of the chip is full. A latency can be added to
+ * every transfer.
+ *
+ * On the JVM android.os.Build reports API 0, so open() sets up the legacy read thread: open the
+ * drivers with open(UsbSerialDevice). openWithRequests() sets up the request rings of Android 4.3
+ * and later instead, completed by requestWait() in the order they were queued.
+ */
+class UsbDeviceSimulator
+{
+    static final int CHIP_CDC = 0;
+    static final int CHIP_FTDI = 1;
+    static final int CHIP_CP210X = 2;
+    static final int CHIP_CH34X = 3;
+    static final int CHIP_PL2303 = 4;
+
+    static final int DEFAULT_PACKET_SIZE = 64;
+
+    private static final int FTDI_LATENCY_TIMER = 16; // ms, FTDI default
+    private static final int FTDI_SIO_SET_BAUD_RATE = 3;
+    private static final int FTDI_SIO_GET_MODEM_STATUS = 5;
+    private static final int[] FTDI_FRACTIONS = {0, 4, 2, 1, 3, 5, 6, 7}; // Eighths by encoded fraction
+
+    private static final int CP210X_SET_LINE_CTL = 0x03;
+    private static final int CP210X_GET_LINE_CTL = 0x04;
+    private static final int CP210X_GET_MDMSTS = 0x08;
+    private static final int CP210X_GET_COMM_STATUS = 0x10;
+    private static final int CP210X_SET_BAUDRATE = 0x1E;
+
+    private static final int CH341_REQ_READ_REG = 0x95;
+    private static final int CH341_REQ_WRITE_REG = 0x9A;
+
+    private static final int SET_LINE_CODING = 0x20; // CDC and PL2303
+    private static final int GET_LINE_CODING = 0x21;
+
+    private static final long WAIT_SLICE = 100; // ms, requestWait() returns null after it like a spurious wakeup
+    private static final int BITS_PER_BYTE = 10; // Start, 8 data bits and stop
+
+    private final int chip;
+    private final int packetSize;
+    private final UsbEndpoint inEndpoint;
+    private final UsbEndpoint outEndpoint;
+    private final UsbDevice device;
+    private final UsbDeviceConnection connection;
+
+    // Guarded by this
+    private final ArrayDeque<Chunk> toHost = new ArrayDeque<>();
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final ArrayDeque<Request> queuedIn = new ArrayDeque<>();
+    private final ArrayDeque<Request> queuedOut = new ArrayDeque<>();
+    private boolean loopback;
+    private boolean discardReceived;
+    private boolean failWrites;
+    private boolean released;
+    private boolean paced;
+    private long latencyNanos;
+    private int txBufferSize = 512;
+    private long txFree; // nanoTime the host to device wire is idle again
+    private long rxFree;
+    private int baudRate = 9600;
+    private byte[] lineCoding = {(byte) 0x80, 0x25, 0, 0, 0x00, 0x00, 0x08}; // 9600 8N1
+    private int lineCtl = 0x0800;
+    private boolean cts = true;
+    private boolean dsr = true;
+    private long controlTransfers;
+    private long outTransfers;
+    private long inTransfers;
+
+    UsbDeviceSimulator(int chip)
+    {
+        this(chip, DEFAULT_PACKET_SIZE);
+    }
+
+    UsbDeviceSimulator(int chip, int packetSize)
+    {
+        this.chip = chip;
+        this.packetSize = packetSize;
+        this.inEndpoint = createEndpoint(UsbConstants.USB_ENDPOINT_XFER_BULK, UsbConstants.USB_DIR_IN, packetSize, 0x81);
+        this.outEndpoint = createEndpoint(UsbConstants.USB_ENDPOINT_XFER_BULK, UsbConstants.USB_DIR_OUT, packetSize, 0x02);
+        this.device = createDevice();
+        this.connection = createConnection();
+    }
+
+    UsbDevice getDevice()
+    {
+        return device;
+    }
+
+    UsbDeviceConnection getConnection()
+    {
+        return connection;
+    }
+
+    UsbEndpoint getInEndpoint()
+    {
+        return inEndpoint;
+    }
+
+    UsbEndpoint getOutEndpoint()
+    {
+        return outEndpoint;
+    }
+
+    // The driver picked by the library for this device, as an app gets it
+    UsbSerialDevice createSerialDevice()
+    {
+        return UsbSerialDevice.createUsbSerialDevice(device, connection);
+    }
+
+    /*
+     * device.open() as on the JVM: the legacy read thread gets its endpoint from a stub UsbRequest,
+     * which has none, it is given the IN endpoint here
+     */
+    boolean open(UsbSerialDevice device)
+    {
+        if(!device.open())
+            return false;
+        if(device.readThread != null)
+            device.readThread.setUsbEndpoint(inEndpoint);
+        return true;
+    }
+
+    /*
+     * What open() sets up on Android 4.3 and later: the init sequence of the chip, then rings of
+     * IN requests read by WorkerThread and, if outRequests > 0, OUT requests. The threads are not
+     * started.
+     */
+    UsbSerialDevice openWithRequests(int inRequests, int outRequests)
+    {
+        UsbSerialDevice device = createSerialDevice();
+        if(!device.syncOpen())
+            return null;
+        device.asyncMode = true;
+        device.setReadRequestCount(inRequests);
+        device.workerThread = device.new WorkerThread(device);
+        device.workerThread.setUsbRequests(createInRequests(inRequests));
+        device.writeThread = device.new WriteThread();
+        device.writeThread.setUsbEndpoint(outEndpoint);
+        if(outRequests > 0)
+            device.writeThread.setUsbRequests(createOutRequests(outRequests));
+        return device;
+    }
+
+    // Data received from now on is sent back by the device
+    synchronized void setLoopback(boolean loopback)
+    {
+        this.loopback = loopback;
+    }
+
+    // Data received from now on is not kept, for long runs
+    synchronized void setDiscardReceived(boolean discardReceived)
+    {
+        this.discardReceived = discardReceived;
+    }
+
+    // Every OUT transfer from now on fails
+    synchronized void setFailWrites(boolean failWrites)
+    {
+        this.failWrites = failWrites;
+    }
+
+    /**
+     * Bytes take the time of 10 bits at the baud rate to cross the wire, and OUT transfers block
+     * while more than the transmit buffer of the chip is waiting for the wire
+     */
+    synchronized void setPaced(boolean paced)
+    {
+        this.paced = paced;
+    }
+
+    synchronized void setTxBufferSize(int txBufferSize)
+    {
+        this.txBufferSize = txBufferSize;
+    }
+
+    // Added to every bulk, control and request transfer, USB frame scheduling included
+    synchronized void setLatency(long latency, TimeUnit unit)
+    {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    // Baud rate of the line, as set by the driver
+    synchronized int getBaudRate()
+    {
+        return baudRate;
+    }
+
+    synchronized void setBaudRate(int baudRate)
+    {
+        this.baudRate = baudRate;
+    }
+
+    synchronized void setModemLines(boolean cts, boolean dsr)
+    {
+        this.cts = cts;
+        this.dsr = dsr;
+    }
+
+    // Data sent by the device to the host, over the wire
+    synchronized void feed(byte[] data)
+    {
+        rxFree = transmit(data, 0, data.length, later(rxFree, System.nanoTime()));
+    }
+
+    synchronized byte[] getReceivedData()
+    {
+        return received.toByteArray();
+    }
+
+    // Bytes sent to the host and not read yet
+    synchronized int getPendingLength()
+    {
+        int pending = 0;
+        for(Chunk chunk : toHost)
+        {
+            pending += chunk.data.length - chunk.offset;
+        }
+        return pending;
+    }
+
+    synchronized long getControlTransferCount()
+    {
+        return controlTransfers;
+    }
+
+    // Bulk transfers and requests completed on each endpoint
+    synchronized long getOutTransferCount()
+    {
+        return outTransfers;
+    }
+
+    synchronized long getInTransferCount()
+    {
+        return inTransfers;
+    }
+
+    UsbRequest[] createInRequests(int count)
+    {
+        return createRequests(inEndpoint, count);
+    }
+
+    UsbRequest[] createOutRequests(int count)
+    {
+        return createRequests(outEndpoint, count);
+    }
+
+    private UsbDevice createDevice()
+    {
+        UsbDevice device = Mockito.mock(UsbDevice.class, Mockito.withSettings().stubOnly());
+        UsbInterface[] interfaces;
+        int vid, pid;
+        switch(chip)
+        {
+            case CHIP_FTDI:
+                vid = 0x0403;
+                pid = 0x6001;
+                interfaces = new UsbInterface[]{createInterface(0, 0xff, inEndpoint, outEndpoint)};
+                break;
+            case CHIP_CP210X:
+                vid = 0x10c4;
+                pid = 0xea60;
+                interfaces = new UsbInterface[]{createInterface(0, 0xff, inEndpoint, outEndpoint)};
+                break;
+            case CHIP_CH34X:
+                vid = 0x1a86;
+                pid = 0x7523;
+                interfaces = new UsbInterface[]{createInterface(0, 0xff, inEndpoint, outEndpoint, createInterruptEndpoint())};
+                break;
+            case CHIP_PL2303:
+                vid = 0x067b;
+                pid = 0x2303;
+                interfaces = new UsbInterface[]{createInterface(0, 0xff, createInterruptEndpoint(), outEndpoint, inEndpoint)};
+                break;
+            case CHIP_CDC:
+                vid = 0x2341; // Arduino Uno, not known to other drivers
+                pid = 0x0043;
+                interfaces = new UsbInterface[]{
+                        createInterface(0, UsbConstants.USB_CLASS_COMM, createInterruptEndpoint()),
+                        createInterface(1, UsbConstants.USB_CLASS_CDC_DATA, outEndpoint, inEndpoint)};
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown chip " + chip);
+        }
+
+        Mockito.when(device.getVendorId()).thenReturn(vid);
+        Mockito.when(device.getProductId()).thenReturn(pid);
+        Mockito.when(device.getDeviceName()).thenReturn("/dev/bus/usb/001/002");
+        Mockito.when(device.getInterfaceCount()).thenReturn(interfaces.length);
+        Mockito.when(device.getInterface(anyInt())).thenAnswer(invocation -> interfaces[(int) invocation.getArgument(0)]);
+        return device;
+    }
+
+    private UsbDeviceConnection createConnection()
+    {
+        UsbDeviceConnection connection = Mockito.mock(UsbDeviceConnection.class, Mockito.withSettings().stubOnly());
+        Mockito.when(connection.claimInterface(any(), anyBoolean())).thenAnswer(invocation -> {
+            setReleased(false); // Opened again after a close
+            return true;
+        });
+        Mockito.when(connection.releaseInterface(any())).thenAnswer(invocation -> {
+            setReleased(true);
+            return true;
+        });
+        Mockito.doAnswer(invocation -> {
+            setReleased(true);
+            return null;
+        }).when(connection).close();
+        byte[] descriptor = createDeviceDescriptor();
+        Mockito.when(connection.getRawDescriptors()).thenReturn(descriptor);
+
+        Mockito.when(connection.bulkTransfer(any(), any(byte[].class), anyInt(), anyInt()))
+                .thenAnswer(bulkTransfer(false));
+        Mockito.when(connection.bulkTransfer(any(), any(byte[].class), anyInt(), anyInt(), anyInt()))
+                .thenAnswer(bulkTransfer(true));
+        Mockito.when(connection.controlTransfer(anyInt(), anyInt(), anyInt(), anyInt(), any(), anyInt(), anyInt()))
+                .thenAnswer(invocation -> controlTransfer(invocation.getArgument(0), invocation.getArgument(1),
+                        invocation.getArgument(2), invocation.getArgument(3), invocation.getArgument(4),
+                        invocation.getArgument(5)));
+        Mockito.when(connection.requestWait()).thenAnswer(invocation -> requestWait());
+        return connection;
+    }
+
+    private Answer<Integer> bulkTransfer(boolean withOffset)
+    {
+        return invocation -> {
+            UsbEndpoint endpoint = invocation.getArgument(0);
+            byte[] buffer = invocation.getArgument(1);
+            int offset = withOffset ? invocation.getArgument(2) : 0;
+            int length = invocation.getArgument(withOffset ? 3 : 2);
+            int timeout = invocation.getArgument(withOffset ? 4 : 3);
+            delay();
+            if(endpoint == outEndpoint)
+                return transferOut(buffer, offset, length);
+            if(endpoint == inEndpoint)
+                return transferIn(buffer, offset, length, timeout);
+            return -1;
+        };
+    }
+
+    /*
+     * Host to device. Returns once the chip has room for the data.
+     */
+    private int transferOut(byte[] buffer, int offset, int length)
+    {
+        long waitUntil;
+        synchronized(this)
+        {
+            if(failWrites || released)
+                return -1;
+
+            outTransfers++;
+            if(!discardReceived)
+                received.write(buffer, offset, length);
+
+            long now = System.nanoTime();
+            txFree = later(txFree, now);
+            if(loopback)
+            {
+                txFree = transmit(buffer, offset, length, txFree);
+            }else if(paced)
+            {
+                txFree += length * byteTime();
+            }
+            waitUntil = paced ? txFree - txBufferSize * byteTime() : now;
+        }
+
+        long wait = waitUntil - System.nanoTime();
+        if(wait > 0)
+            LockSupport.parkNanos(wait);
+        return length;
+    }
+
+    /*
+     * Device to host. Waits for data up to timeout, 0 waits until the port is closed. FTDI chips
+     * answer in their latency timer period with the status bytes only.
+     */
+    private synchronized int transferIn(byte[] buffer, int offset, int length, int timeout)
+    {
+        long wait = timeout > 0 ? TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        if(chip == CHIP_FTDI)
+            wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(FTDI_LATENCY_TIMER));
+        long deadline = System.nanoTime() + (wait == Long.MAX_VALUE ? 0 : wait);
+
+        while(!released && availableNanos() > 0)
+        {
+            long left = availableNanos();
+            if(wait != Long.MAX_VALUE)
+                left = Math.min(left, deadline - System.nanoTime());
+            if(left <= 0)
+                break;
+            try
+            {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        if(released)
+            return -1;
+
+        int transferred = chip == CHIP_FTDI ? readFtdiPackets(buffer, offset, length) : read(buffer, offset, length);
+        if(transferred == 0 && chip != CHIP_FTDI)
+            return -1; // Timed out
+        inTransfers++;
+        return transferred;
+    }
+
+    // Nanoseconds until the next data reaches the host, 0 if some is there, Long.MAX_VALUE if none is coming
+    private long availableNanos()
+    {
+        Chunk chunk = toHost.peek();
+        if(chunk == null)
+            return Long.MAX_VALUE;
+        return Math.max(0, chunk.availableAt - System.nanoTime());
+    }
+
+    private int read(byte[] buffer, int offset, int length)
+    {
+        long now = System.nanoTime();
+        int transferred = 0;
+        while(transferred < length)
+        {
+            Chunk chunk = toHost.peek();
+            if(chunk == null || chunk.availableAt - now > 0)
+                break;
+            int n = Math.min(length - transferred, chunk.data.length - chunk.offset);
+            System.arraycopy(chunk.data, chunk.offset, buffer, offset + transferred, n);
+            chunk.offset += n;
+            transferred += n;
+            if(chunk.offset == chunk.data.length)
+                toHost.poll();
+        }
+        return transferred;
+    }
+
+    // Packets of two status bytes and up to packetSize - 2 data bytes, at least the status
+    private int readFtdiPackets(byte[] buffer, int offset, int length)
+    {
+        if(length < 2)
+            return 0;
+
+        int transferred = 0;
+        do
+        {
+            buffer[offset + transferred] = (byte) (0x01 | (cts ? 0x10 : 0) | (dsr ? 0x20 : 0));
+            buffer[offset + transferred + 1] = 0x60; // Transmitter empty
+            int n = read(buffer, offset + transferred + 2, Math.min(packetSize, length - transferred) - 2);
+            transferred += 2 + n;
+            if(n < packetSize - 2)
+                break; // Short packet, the transfer ends
+        }while(length - transferred > 2);
+        return transferred;
+    }
+
+    /*
+     * Queue data for the host, in packets arriving one after the other from start. Returns when
+     * the last one arrives.
+     */
+    private long transmit(byte[] data, int offset, int length, long start)
+    {
+        long arrival = start;
+        for(int i=offset;i<offset+length;i+=packetSize)
+        {
+            int n = Math.min(packetSize, offset + length - i);
+            if(paced)
+                arrival += n * byteTime();
+            toHost.add(new Chunk(Arrays.copyOfRange(data, i, i + n), arrival));
+        }
+        notifyAll();
+        return arrival;
+    }
+
+    // nanoTime values only compare by difference
+    private static long later(long a, long b)
+    {
+        return a - b > 0 ? a : b;
+    }
+
+    private long byteTime()
+    {
+        return TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / baudRate;
+    }
+
+    private int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length)
+    {
+        delay();
+        synchronized(this)
+        {
+            if(released)
+                return -1;
+            controlTransfers++;
+
+            boolean in = (requestType & UsbConstants.USB_DIR_IN) != 0;
+            byte[] response = null;
+            switch(chip)
+            {
+                case CHIP_FTDI:
+                    if(request == FTDI_SIO_SET_BAUD_RATE)
+                        baudRate = decodeFtdiBaudRate(value);
+                    else if(request == FTDI_SIO_GET_MODEM_STATUS)
+                        response = new byte[]{(byte) (0x01 | (cts ? 0x10 : 0) | (dsr ? 0x20 : 0)), 0x60};
+                    break;
+                case CHIP_CP210X:
+                    if(request == CP210X_SET_BAUDRATE && buffer != null && length >= 4)
+                        baudRate = littleEndianInt(buffer, 0);
+                    else if(request == CP210X_SET_LINE_CTL)
+                        lineCtl = value;
+                    else if(request == CP210X_GET_LINE_CTL)
+                        response = new byte[]{(byte) lineCtl, (byte) (lineCtl >> 8)};
+                    else if(request == CP210X_GET_MDMSTS)
+                        response = new byte[]{(byte) ((cts ? 0x10 : 0) | (dsr ? 0x20 : 0))};
+                    else if(request == CP210X_GET_COMM_STATUS)
+                        response = new byte[19];
+                    break;
+                case CHIP_CH34X:
+                    if(request == CH341_REQ_WRITE_REG && value == 0x1312)
+                        baudRate = decodeCh34xBaudRate(index);
+                    else if(request == CH341_REQ_READ_REG)
+                        response = new byte[]{(byte) (0x9c | (cts ? 0 : 0x01) | (dsr ? 0 : 0x02)), (byte) 0xee}; // Lines active low
+                    break;
+                case CHIP_PL2303:
+                case CHIP_CDC:
+                    if(request == SET_LINE_CODING && !in && buffer != null && length >= 7)
+                    {
+                        lineCoding = Arrays.copyOf(buffer, 7);
+                        baudRate = littleEndianInt(lineCoding, 0);
+                    }else if(request == GET_LINE_CODING && in)
+                    {
+                        response = lineCoding.clone();
+                    }
+                    break;
+            }
+
+            if(!in)
+                return buffer != null ? length : 0;
+            if(response == null)
+                response = new byte[length]; // Vendor reads the drivers do not look into
+            int n = Math.min(length, response.length);
+            if(buffer != null)
+                System.arraycopy(response, 0, buffer, 0, n);
+            return n;
+        }
+    }
+
+    // Legacy 16 bits divisors of 3 MHz, with the fraction in eighths
+    private static int decodeFtdiBaudRate(int value)
+    {
+        int divisor = value & 0x3fff;
+        int eighths = FTDI_FRACTIONS[(value >> 14) & 0x03];
+        if(divisor == 0 && eighths == 0)
+            return 3000000;
+        if(divisor == 1 && eighths == 0)
+            return 2000000;
+        return (int) (3000000L * 8 / (divisor * 8 + eighths));
+    }
+
+    // Prescaler and divisor of a 48 MHz clock, as written to registers 0x1312
+    private static int decodeCh34xBaudRate(int index)
+    {
+        int prescaler = index & 0x03;
+        int fact = (index >> 2) & 0x01;
+        int divisor = 256 - ((index >> 8) & 0xff);
+        return 48000000 / ((1 << (12 - 3 * prescaler - fact)) * divisor);
+    }
+
+    private static int littleEndianInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private synchronized void setReleased(boolean released)
+    {
+        this.released = released;
+        notifyAll();
+    }
+
+    private void delay()
+    {
+        long latency;
+        synchronized(this)
+        {
+            latency = latencyNanos;
+        }
+        if(latency > 0)
+            LockSupport.parkNanos(latency);
+    }
+
+    private UsbRequest[] createRequests(UsbEndpoint endpoint, int count)
+    {
+        UsbRequest[] requests = new UsbRequest[count];
+        for(int i=0;i<=count-1;i++)
+        {
+            UsbRequest request = Mockito.mock(UsbRequest.class, Mockito.withSettings().stubOnly());
+            Request pending = new Request(request);
+            Mockito.when(request.getEndpoint()).thenReturn(endpoint);
+            Mockito.when(request.initialize(any(), any())).thenReturn(true);
+            Mockito.when(request.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation ->
+                    queue(pending, invocation.getArgument(0), invocation.getArgument(1)));
+            Mockito.when(request.queue(any(ByteBuffer.class))).thenAnswer(invocation -> {
+                ByteBuffer buffer = invocation.getArgument(0);
+                return queue(pending, buffer, buffer.remaining());
+            });
+            requests[i] = request;
+        }
+        return requests;
+    }
+
+    private synchronized boolean queue(Request pending, ByteBuffer buffer, int length)
+    {
+        if(released)
+            return false;
+        pending.buffer = buffer;
+        pending.length = length;
+        if(pending.request.getEndpoint() == outEndpoint)
+            queuedOut.add(pending);
+        else
+            queuedIn.add(pending);
+        notifyAll();
+        return true;
+    }
+
+    /*
+     * OUT requests complete right away, IN ones once there is data for them
+     */
+    private UsbRequest requestWait()
+    {
+        Request out;
+        synchronized(this)
+        {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE);
+            while(queuedOut.isEmpty())
+            {
+                if(!queuedIn.isEmpty() && availableNanos() == 0)
+                {
+                    Request in = queuedIn.poll();
+                    ByteBuffer buffer = in.buffer;
+                    byte[] data = new byte[Math.min(in.length, buffer.remaining())];
+                    int n = chip == CHIP_FTDI ? readFtdiPackets(data, 0, data.length) : read(data, 0, data.length);
+                    buffer.put(data, 0, n);
+                    inTransfers++;
+                    return in.request;
+                }
+
+                long left = Math.min(deadline - System.nanoTime(), queuedIn.isEmpty() ? Long.MAX_VALUE : availableNanos());
+                if(released || left <= 0)
+                    return null;
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            out = queuedOut.poll();
+        }
+
+        // Like UsbRequest does, data is taken from the start of the buffer and position is left at the bytes transferred
+        delay();
+        ByteBuffer source = out.buffer.duplicate();
+        source.clear();
+        byte[] data = new byte[Math.min(out.length, source.remaining())];
+        source.get(data);
+        int ret = transferOut(data, 0, data.length);
+        out.buffer.position(Math.max(ret, 0));
+        return out.request;
+    }
+
+    private byte[] createDeviceDescriptor()
+    {
+        byte[] descriptor = new byte[18];
+        descriptor[0] = 18;
+        descriptor[1] = 1; // Device
+        descriptor[4] = (byte) (chip == CHIP_CDC ? UsbConstants.USB_CLASS_COMM : 0);
+        descriptor[7] = (byte) packetSize; // Control endpoint, same size
+        descriptor[8] = (byte) device.getVendorId();
+        descriptor[9] = (byte) (device.getVendorId() >> 8);
+        descriptor[10] = (byte) device.getProductId();
+        descriptor[11] = (byte) (device.getProductId() >> 8);
+        descriptor[13] = 0x06; // bcdDevice 6.00, FT232R for the FTDI driver
+        descriptor[16] = 3; // iSerialNumber
+        descriptor[17] = 1;
+        return descriptor;
+    }
+
+    private static UsbInterface createInterface(int id, int interfaceClass, UsbEndpoint... endpoints)
+    {
+        UsbInterface usbInterface = Mockito.mock(UsbInterface.class, Mockito.withSettings().stubOnly());
+        Mockito.when(usbInterface.getId()).thenReturn(id);
+        Mockito.when(usbInterface.getInterfaceClass()).thenReturn(interfaceClass);
+        Mockito.when(usbInterface.getInterfaceSubclass()).thenReturn(interfaceClass == 0xff ? 0xff : 0);
+        Mockito.when(usbInterface.getEndpointCount()).thenReturn(endpoints.length);
+        Mockito.when(usbInterface.getEndpoint(anyInt())).thenAnswer(invocation -> endpoints[(int) invocation.getArgument(0)]);
+        return usbInterface;
+    }
+
+    private static UsbEndpoint createInterruptEndpoint()
+    {
+        return createEndpoint(UsbConstants.USB_ENDPOINT_XFER_INT, UsbConstants.USB_DIR_IN, 16, 0x83);
+    }
+
+    private static UsbEndpoint createEndpoint(int type, int direction, int packetSize, int address)
+    {
+        UsbEndpoint endpoint = Mockito.mock(UsbEndpoint.class, Mockito.withSettings().stubOnly());
+        Mockito.when(endpoint.getType()).thenReturn(type);
+        Mockito.when(endpoint.getDirection()).thenReturn(direction);
+        Mockito.when(endpoint.getMaxPacketSize()).thenReturn(packetSize);
+        Mockito.when(endpoint.getAddress()).thenReturn(address);
+        Mockito.when(endpoint.getEndpointNumber()).thenReturn(address & 0x0f);
+        return endpoint;
+    }
+
+    private static class Chunk
+    {
+        final byte[] data;
+        final long availableAt;
+        int offset;
+
+        Chunk(byte[] data, long availableAt)
+        {
+            this.data = data;
+            this.availableAt = availableAt;
+        }
+    }
+
+    private static class Request
+    {
+        final UsbRequest request;
+        ByteBuffer buffer;
+        int length;
+
+        Request(UsbRequest request)
+        {
+            this.request = request;
+        }
+    }
+}
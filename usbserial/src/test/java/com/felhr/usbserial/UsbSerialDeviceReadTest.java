@@ -0,0 +1,241 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import com.felhr.utils.ProtocolBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class UsbSerialDeviceReadTest {
+
+    private static final int PACKET_SIZE = 512;
+
+    @Test
+    public void singleRequest() {
+        byte[] received = readThrough(1, 64 * 1024);
+        Assert.assertEquals(64 * 1024, received.length);
+    }
+
+    @Test
+    public void ringKeepsEveryRequestInFlight() {
+        int requests = 4;
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, requests);
+
+        int[] inFlightAtCallback = new int[]{Integer.MAX_VALUE};
+        workerThread.setCallback(data ->
+                inFlightAtCallback[0] = Math.min(inFlightAtCallback[0], fake.getInFlight()));
+
+        fake.setDeviceData(randomBytes(32 * 1024));
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        Assert.assertEquals(requests, fake.getMaxInFlight());
+        Assert.assertEquals("Only the request being dispatched may be out of the ring",
+                requests - 1, inFlightAtCallback[0]);
+    }
+
+    @Test
+    public void completionsDispatchedInOrder() {
+        byte[] sent = randomBytes(256 * 1024 + 17);
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, 8);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        workerThread.setCallback(data -> received.write(data, 0, data.length));
+
+        fake.setDeviceData(sent);
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        Assert.assertArrayEquals(sent, received.toByteArray());
+    }
+
+    @Test
+    public void queueRequestsOnlyOnce() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, 4);
+
+        workerThread.queueRequests();
+        workerThread.queueRequests();
+
+        Assert.assertEquals(4, fake.getInFlight());
+    }
+
+    @Test
+    public void bufferCallbackIsReadOnlyView() {
+        byte[] sent = randomBytes(64 * 1024);
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, 4);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        workerThread.setBufferCallback(data -> {
+            Assert.assertTrue(data.isReadOnly());
+            while(data.hasRemaining())
+                received.write(data.get());
+        });
+
+        fake.setDeviceData(sent);
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        Assert.assertArrayEquals(sent, received.toByteArray());
+    }
+
+    @Test
+    public void ftdiHeadersRemovedInPlace() {
+        byte[] payload = randomBytes(62 * 100 + 30);
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = new FTDISerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setReadRequestCount(4);
+        UsbSerialDevice.WorkerThread workerThread = device.new WorkerThread(device);
+        workerThread.setUsbRequests(fake.createInRequests(4));
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        workerThread.setCallback(data -> received.write(data, 0, data.length));
+
+        fake.setDeviceData(withFtdiHeaders(payload));
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        Assert.assertArrayEquals(payload, received.toByteArray());
+    }
+
+    @Test
+    public void protocolBufferFramesOnCompletion() {
+        StringBuilder lines = new StringBuilder();
+        for(int i=0;i<2000;i++) {
+            lines.append("line ").append(i).append('\n');
+        }
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, 4);
+
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT);
+        protocolBuffer.setDelimiter("\n");
+        List<String> frames = new ArrayList<>();
+        protocolBuffer.setTextFrameListener(frames::add, null);
+        workerThread.setBufferCallback(protocolBuffer);
+
+        fake.setDeviceData(lines.toString().getBytes());
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        Assert.assertEquals(2000, frames.size());
+        Assert.assertEquals("line 0\n", frames.get(0));
+        Assert.assertEquals("line 1999\n", frames.get(1999));
+    }
+
+    @Test
+    public void syncReadLoopback() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        fake.setLoopback(true);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false; // As left by syncOpen()
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+
+        byte[] sent = randomBytes(10000);
+        Assert.assertEquals(sent.length, device.syncWrite(sent, 0));
+        Assert.assertEquals(0, fake.getReceivedData().length);
+
+        SerialInputStream inputStream = new SerialInputStream(device);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while((length = inputStream.read(buffer, 0, buffer.length)) > 0)
+            received.write(buffer, 0, length);
+
+        Assert.assertArrayEquals(sent, received.toByteArray());
+    }
+
+    @Test
+    public void syncReadByteBuffers() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false; // As left by syncOpen()
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+        byte[] sent = randomBytes(3000);
+        fake.setDeviceData(sent);
+
+        ByteBuffer heap = ByteBuffer.allocate(100);
+        heap.position(10).limit(60);
+        Assert.assertEquals(50, device.syncRead(heap, 0));
+        Assert.assertEquals(60, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(4000);
+        while(device.syncRead(direct, 0) > 0) {
+            // Up to a packet at a time
+        }
+        direct.flip();
+        byte[] rest = new byte[direct.remaining()];
+        direct.get(rest);
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(sent, 0, 50), Arrays.copyOfRange(heap.array(), 10, 60));
+        Assert.assertArrayEquals(Arrays.copyOfRange(sent, 50, sent.length), rest);
+    }
+
+    @Test
+    public void largeReadWithEveryRingSize() {
+        // Throughput is measured by ReadRequestBenchmark
+        int total = 2 * 1024 * 1024;
+        for(int requests : new int[]{1, 4, 8}) {
+            Assert.assertArrayEquals(randomBytes(total), readThrough(requests, total));
+        }
+    }
+
+    private static byte[] readThrough(int requests, int size) {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice.WorkerThread workerThread = createWorkerThread(fake, requests);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream(size);
+        workerThread.setCallback(data -> received.write(data, 0, data.length));
+
+        fake.setDeviceData(randomBytes(size));
+        workerThread.queueRequests();
+        while(fake.hasPendingData())
+            workerThread.doRun();
+
+        return received.toByteArray();
+    }
+
+    private static UsbSerialDevice.WorkerThread createWorkerThread(FakeUsbDeviceConnection fake, int requests) {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.setReadRequestCount(requests);
+
+        UsbSerialDevice.WorkerThread workerThread = device.new WorkerThread(device);
+        workerThread.setUsbRequests(fake.createInRequests(requests));
+        return workerThread;
+    }
+
+    private static byte[] withFtdiHeaders(byte[] payload) {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for(int i=0;i<payload.length;i+=62) {
+            wire.write(0x01);
+            wire.write(0x60);
+            wire.write(payload, i, Math.min(62, payload.length - i));
+        }
+        return wire.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,314 @@
+package com.felhr.usbserial;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class UsbSerialDeviceWriteTest {
+
+    private static final int PACKET_SIZE = 512;
+
+    @Test
+    public void syncWriteByteBuffers() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false; // As left by syncOpen()
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+
+        ByteBuffer heap = ByteBuffer.wrap("xxheapxx".getBytes(), 1, 6).slice();
+        heap.position(1).limit(5);
+        Assert.assertEquals(4, device.syncWrite(heap, 0));
+        Assert.assertEquals(5, heap.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(20000);
+        direct.put(randomBytes(20000)).flip();
+        direct.position(2);
+        int written = 0;
+        while(direct.hasRemaining())
+            written += device.syncWrite(direct, 0);
+
+        byte[] expected = new byte[4 + 19998];
+        System.arraycopy("heap".getBytes(), 0, expected, 0, 4);
+        System.arraycopy(randomBytes(20000), 2, expected, 4, 19998);
+        Assert.assertEquals(19998, written);
+        Assert.assertArrayEquals(expected, fake.getReceivedData());
+    }
+
+    @Test
+    public void syncWriteGathersBuffers() {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.asyncMode = false;
+        device.setSyncParams(fake.getInEndpoint(), fake.getOutEndpoint());
+
+        byte[] payload = randomBytes(20000);
+        ByteBuffer header = ByteBuffer.wrap(new byte[]{1, 2, 3});
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer body = ByteBuffer.allocateDirect(payload.length);
+        body.put(payload).flip();
+        ByteBuffer trailer = ByteBuffer.wrap(new byte[]{4, 5});
+
+        Assert.assertEquals(3 + payload.length + 2, device.syncWrite(new ByteBuffer[]{header, empty, body, trailer}, 0));
+        Assert.assertFalse(header.hasRemaining() || body.hasRemaining() || trailer.hasRemaining());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(1);
+        expected.write(2);
+        expected.write(3);
+        expected.write(payload, 0, payload.length);
+        expected.write(4);
+        expected.write(5);
+        Assert.assertArrayEquals(expected.toByteArray(), fake.getReceivedData());
+        // Whole packets up to the last transfer
+        Assert.assertEquals(2, fake.getOutTransferCount());
+    }
+
+    @Test
+    public void writeAsyncGathersBuffers() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 2);
+
+        byte[] payload = randomBytes(3000);
+        ByteBuffer body = ByteBuffer.allocateDirect(payload.length);
+        body.put(payload).flip();
+        WriteFuture future = device.writeAsync(ByteBuffer.wrap(new byte[]{9}), body);
+        Assert.assertFalse(body.hasRemaining());
+
+        device.writeThread.doRun();
+        device.workerThread.doRun();
+
+        Assert.assertEquals(payload.length + 1, (int) future.get(0, TimeUnit.SECONDS));
+        byte[] received = fake.getReceivedData();
+        Assert.assertEquals(9, received[0]);
+        Assert.assertArrayEquals(payload, java.util.Arrays.copyOfRange(received, 1, received.length));
+    }
+
+    @Test
+    public void outRequestsKeptInFlight() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 4);
+
+        byte[] sent = randomBytes(4 * SerialBuffer.MAX_BULK_BUFFER);
+        WriteFuture future = device.writeAsync(sent);
+        for(int i=0;i<4;i++)
+            device.writeThread.doRun();
+
+        Assert.assertEquals(4, fake.getInFlight());
+        Assert.assertFalse(future.isDone());
+
+        for(int i=0;i<4;i++)
+            device.workerThread.doRun();
+
+        Assert.assertEquals(sent.length, (int) future.get(0, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(sent, fake.getReceivedData());
+    }
+
+    @Test
+    public void futuresCompleteWhenTheirBytesAreTransferred() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 2);
+
+        WriteFuture first = device.writeAsync(randomBytes(SerialBuffer.MAX_BULK_BUFFER - 10));
+        WriteFuture second = device.writeAsync(randomBytes(20));
+        device.writeThread.doRun();
+        device.writeThread.doRun();
+
+        device.workerThread.doRun();
+        Assert.assertTrue(first.isDone());
+        Assert.assertFalse("Last 10 bytes still in flight", second.isDone());
+
+        device.workerThread.doRun();
+        Assert.assertTrue(second.isDone());
+    }
+
+    @Test
+    public void asyncWritesReachDeviceInOrder() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 4);
+        startThreads(device);
+
+        try {
+            Random random = new Random(7);
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            List<WriteFuture> futures = new ArrayList<>();
+            for(int i=0;i<500;i++) {
+                byte[] data = randomBytes(1 + random.nextInt(3000));
+                sent.write(data);
+                futures.add(device.writeAsync(data));
+            }
+
+            for(WriteFuture future : futures)
+                Assert.assertEquals(future.getLength(), (int) future.get(5, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(sent.toByteArray(), fake.getReceivedData());
+        } finally {
+            stopThreads(device);
+        }
+    }
+
+    @Test
+    public void failedTransferFailsFuture() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 2);
+        fake.setFailWrites(true);
+
+        WriteFuture future = device.writeAsync(randomBytes(100));
+        device.writeThread.doRun();
+        device.workerThread.doRun();
+
+        try {
+            future.get(0, TimeUnit.SECONDS);
+            Assert.fail("Write should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void blockingTransfersCompleteFutures() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 0);
+
+        byte[] sent = randomBytes(1000);
+        WriteFuture future = device.writeAsync(sent);
+        device.writeThread.doRun();
+
+        Assert.assertEquals(sent.length, (int) future.get(0, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(sent, fake.getReceivedData());
+    }
+
+    @Test
+    public void writeAsyncTakesRemainingBytes() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 2);
+
+        byte[] sent = randomBytes(3000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4000);
+        buffer.put(sent).flip();
+        WriteFuture future = device.writeAsync(buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+
+        device.writeThread.doRun();
+        device.workerThread.doRun();
+
+        Assert.assertEquals(sent.length, (int) future.get(0, TimeUnit.SECONDS));
+        Assert.assertArrayEquals(sent, fake.getReceivedData());
+    }
+
+    @Test
+    public void futureRecordsLatency() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 1);
+
+        WriteFuture future = device.writeAsync(randomBytes(10));
+        Assert.assertEquals(-1, future.getLatency(TimeUnit.NANOSECONDS));
+        Assert.assertEquals(0, future.getCompleteTime());
+
+        Thread.sleep(5);
+        device.writeThread.doRun();
+        device.workerThread.doRun();
+
+        Assert.assertTrue(future.getCompleteTime() - future.getSubmitTime() >= TimeUnit.MILLISECONDS.toNanos(5));
+        Assert.assertTrue(future.getLatency(TimeUnit.MILLISECONDS) >= 5);
+    }
+
+    @Test
+    public void flushWaitsForTransfers() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 4);
+        startThreads(device);
+
+        try {
+            byte[] chunk = randomBytes(1500);
+            for(int i=0;i<1000;i++)
+                device.write(chunk);
+
+            Assert.assertTrue(device.flush(5000));
+            Assert.assertEquals(1000 * chunk.length, fake.getReceivedData().length);
+        } finally {
+            stopThreads(device);
+        }
+    }
+
+    @Test
+    public void flushTimesOutWhileInFlight() throws Exception {
+        FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+        UsbSerialDevice device = createDevice(fake, 2);
+
+        device.write(randomBytes(100));
+        Assert.assertFalse("Still in the write buffer", device.flush(10));
+
+        device.writeThread.doRun();
+        Assert.assertFalse("Queued but not completed", device.flush(10));
+
+        device.workerThread.doRun();
+        Assert.assertTrue(device.flush(0));
+    }
+
+    @Test
+    public void largeWriteWithEveryRequestCount() throws Exception {
+        // Throughput is measured by WriteRequestBenchmark
+        int total = 8 * 1024 * 1024;
+        byte[] chunk = randomBytes(4096);
+        for(int requests : new int[]{0, 1, 4, 8}) {
+            FakeUsbDeviceConnection fake = new FakeUsbDeviceConnection(PACKET_SIZE);
+            UsbSerialDevice device = createDevice(fake, requests);
+            startThreads(device);
+
+            try {
+                WriteFuture last = null;
+                for(int i=0;i<total/chunk.length;i++)
+                    last = device.writeAsync(chunk);
+                Assert.assertEquals(chunk.length, (int) last.get(10, TimeUnit.SECONDS));
+
+                byte[] received = fake.getReceivedData();
+                Assert.assertEquals(total, received.length);
+                Assert.assertArrayEquals(chunk, Arrays.copyOfRange(received, total - chunk.length, total));
+            } finally {
+                stopThreads(device);
+            }
+        }
+    }
+
+    private static UsbSerialDevice createDevice(FakeUsbDeviceConnection fake, int requests) {
+        UsbSerialDevice device = new CDCSerialDevice(Mockito.mock(UsbDevice.class), fake.getConnection());
+        device.workerThread = device.new WorkerThread(device);
+        device.writeThread = device.new WriteThread();
+        device.writeThread.setUsbEndpoint(fake.getOutEndpoint());
+        if(requests > 0)
+            device.writeThread.setUsbRequests(fake.createOutRequests(requests));
+        return device;
+    }
+
+    private static void startThreads(UsbSerialDevice device) {
+        device.workerThread.start();
+        device.writeThread.start();
+    }
+
+    private static void stopThreads(UsbSerialDevice device) throws InterruptedException {
+        device.workerThread.stopThread();
+        device.writeThread.stopThread();
+        device.workerThread.join(2000);
+        device.writeThread.join(2000);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
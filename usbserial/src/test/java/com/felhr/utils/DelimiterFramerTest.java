@@ -0,0 +1,295 @@
+package com.felhr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class DelimiterFramerTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final DelimiterFramer.FrameHandler handler =
+            (buffer, offset, length) -> frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+
+    @Test
+    public void delimiterSplitBetweenAppends() {
+        DelimiterFramer framer = new DelimiterFramer("\r\n".getBytes());
+        framer.append("$GPAAM,A\r".getBytes(), handler);
+        Assert.assertTrue(frames.isEmpty());
+        framer.append("\n$GP".getBytes(), handler);
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals("$GPAAM,A\r\n".getBytes(), frames.get(0));
+        Assert.assertEquals(3, framer.getPendingLength());
+    }
+
+    @Test
+    public void selfOverlappingDelimiter() {
+        // A failed partial match must not skip the start of the real delimiter
+        DelimiterFramer framer = new DelimiterFramer("abac".getBytes());
+        for(byte value : "xxabababacyyabac".getBytes()) {
+            framer.append(new byte[]{value}, handler);
+        }
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals("xxabababac".getBytes(), frames.get(0));
+        Assert.assertArrayEquals("yyabac".getBytes(), frames.get(1));
+    }
+
+    @Test
+    public void framesLongerThanBuffer() {
+        DelimiterFramer framer = new DelimiterFramer("\n".getBytes(), 4);
+        byte[] line = new byte[100];
+        Arrays.fill(line, (byte) 'a');
+        line[99] = '\n';
+        framer.append(line, 0, 50, handler);
+        framer.append(line, 50, 50, handler);
+        framer.append(line, handler);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals(line, frames.get(0));
+        Assert.assertArrayEquals(line, frames.get(1));
+    }
+
+    @Test
+    public void newDelimiterRescansPendingData() {
+        DelimiterFramer framer = new DelimiterFramer("\r\n".getBytes());
+        framer.append("one;two".getBytes(), handler);
+        framer.setDelimiter(";".getBytes());
+        framer.append(";".getBytes(), handler);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals("one;".getBytes(), frames.get(0));
+        Assert.assertArrayEquals("two;".getBytes(), frames.get(1));
+    }
+
+    @Test
+    public void randomChunks() {
+        Random random = new Random(11);
+        byte[] delimiter = {0x7e, 0x7e, 0x7f};
+        for(int round=0;round<50;round++) {
+            // Stream of frames made of a small alphabet, to have many partial delimiter matches
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            List<byte[]> expected = new ArrayList<>();
+            for(int i=0;i<20;i++) {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                int length = random.nextInt(40);
+                for(int j=0;j<length;j++) {
+                    frame.write(random.nextBoolean() ? 0x7e : 0x7f);
+                    if(frame.size() >= 3 && Arrays.equals(delimiter, Arrays.copyOfRange(frame.toByteArray(), frame.size() - 3, frame.size()))) {
+                        frame.reset();
+                    }
+                }
+                frame.write(delimiter, 0, delimiter.length);
+                expected.add(frame.toByteArray());
+                stream.write(frame.toByteArray(), 0, frame.size());
+            }
+
+            frames.clear();
+            DelimiterFramer framer = new DelimiterFramer(delimiter, 8);
+            byte[] data = stream.toByteArray();
+            int offset = 0;
+            while(offset < data.length) {
+                int length = Math.min(1 + random.nextInt(16), data.length - offset);
+                framer.append(data, offset, length, handler);
+                offset += length;
+            }
+
+            Assert.assertEquals(expected.size(), frames.size());
+            for(int i=0;i<expected.size();i++) {
+                Assert.assertArrayEquals("Round " + round + " frame " + i, expected.get(i), frames.get(i));
+            }
+            Assert.assertEquals(0, framer.getPendingLength());
+        }
+    }
+
+    @Test
+    public void textCharacterSplitBetweenAppends() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT);
+        protocolBuffer.setDelimiter("\r\n");
+        byte[] command = "velocidad 10 m/s ñ\r\n".getBytes(StandardCharsets.UTF_8);
+        int split = command.length - 3; // In the middle of the two bytes of ñ
+        protocolBuffer.appendData(Arrays.copyOfRange(command, 0, split));
+        Assert.assertFalse(protocolBuffer.hasMoreCommands());
+        protocolBuffer.appendData(Arrays.copyOfRange(command, split, command.length));
+
+        Assert.assertEquals("velocidad 10 m/s ñ\r\n", protocolBuffer.nextTextCommand());
+        Assert.assertNull(protocolBuffer.nextTextCommand());
+    }
+
+    @Test
+    public void flushUnfinishedFrame() {
+        DelimiterFramer framer = new DelimiterFramer("\n".getBytes());
+        framer.append("one\ntw".getBytes(), handler);
+        framer.flush(handler);
+        framer.flush(handler);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals("tw".getBytes(), frames.get(1));
+        Assert.assertEquals(0, framer.getPendingLength());
+    }
+
+    @Test
+    public void dropOversizedFrame() {
+        DelimiterFramer framer = new DelimiterFramer("\n".getBytes(), 4);
+        framer.setOverflowPolicy(DelimiterFramer.OVERFLOW_DROP, 5);
+        framer.append("ok\ntoo long\nfine\n".getBytes(), handler);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals("ok\n".getBytes(), frames.get(0));
+        Assert.assertArrayEquals("fine\n".getBytes(), frames.get(1));
+        Assert.assertEquals(1, framer.getOverflowCount());
+        Assert.assertEquals("too long\n".length(), framer.getDroppedBytes());
+    }
+
+    @Test
+    public void resyncKeepsTail() {
+        DelimiterFramer framer = new DelimiterFramer("\r\n".getBytes());
+        framer.setOverflowPolicy(DelimiterFramer.OVERFLOW_RESYNC, 4);
+        framer.append("abcdef\r\n".getBytes(), handler);
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals("ef\r\n".getBytes(), frames.get(0));
+        Assert.assertEquals(4, framer.getDroppedBytes());
+    }
+
+    @Test
+    public void boundedBufferNeverGrows() {
+        DelimiterFramer framer = new DelimiterFramer(new byte[]{0}, 16);
+        framer.setOverflowPolicy(DelimiterFramer.OVERFLOW_DROP, 16);
+        byte[] noise = new byte[100000];
+        Arrays.fill(noise, (byte) 1);
+        framer.append(noise, handler);
+        framer.append(new byte[]{2, 0}, handler);
+        framer.append(new byte[]{3, 0}, handler);
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals(new byte[]{3, 0}, frames.get(0));
+        Assert.assertTrue(framer.getPendingLength() < 16);
+    }
+
+    @Test
+    public void randomChunkBoundaries() {
+        // Property: the frames do not depend on how the stream is split, and match a naive model
+        Random random = new Random(12);
+        int[] policies = {DelimiterFramer.OVERFLOW_GROW, DelimiterFramer.OVERFLOW_DROP, DelimiterFramer.OVERFLOW_RESYNC};
+        for(int round=0;round<500;round++) {
+            byte[] delimiter = new byte[1 + random.nextInt(4)];
+            for(int i=0;i<delimiter.length;i++) {
+                delimiter[i] = (byte) random.nextInt(3);
+            }
+            byte[] data = new byte[random.nextInt(400)];
+            for(int i=0;i<data.length;i++) {
+                data[i] = (byte) random.nextInt(3);
+            }
+            int policy = policies[random.nextInt(policies.length)];
+            int maxFrameSize = delimiter.length + random.nextInt(20);
+
+            Model model = new Model(delimiter, policy, maxFrameSize);
+            for(byte value : data) {
+                model.append(value);
+            }
+
+            frames.clear();
+            DelimiterFramer framer = new DelimiterFramer(delimiter, 1 + random.nextInt(32));
+            framer.setOverflowPolicy(policy, maxFrameSize);
+            int offset = 0;
+            while(offset < data.length) {
+                int length = Math.min(random.nextInt(40), data.length - offset);
+                framer.append(data, offset, length, handler);
+                offset += length;
+            }
+
+            String description = "Round " + round + " policy " + policy;
+            Assert.assertEquals(description, model.frames.size(), frames.size());
+            for(int i=0;i<frames.size();i++) {
+                Assert.assertArrayEquals(description, model.frames.get(i), frames.get(i));
+                if(policy != DelimiterFramer.OVERFLOW_GROW) {
+                    Assert.assertTrue(description, frames.get(i).length <= maxFrameSize);
+                }
+            }
+            Assert.assertEquals(description, model.overflows, framer.getOverflowCount());
+            Assert.assertEquals(description, model.droppedBytes, framer.getDroppedBytes());
+            Assert.assertEquals(description, model.frame.size(), framer.getPendingLength());
+        }
+    }
+
+    /*
+     * Byte at a time framing with naive delimiter matching
+     */
+    private static class Model {
+        final byte[] delimiter;
+        final int policy;
+        final int maxFrameSize;
+        final List<byte[]> frames = new ArrayList<>();
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        final ByteArrayOutputStream sinceLastFrame = new ByteArrayOutputStream(); // Dropped bytes included
+        boolean dropping;
+        long overflows;
+        long droppedBytes;
+
+        Model(byte[] delimiter, int policy, int maxFrameSize) {
+            this.delimiter = delimiter;
+            this.policy = policy;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        void append(byte value) {
+            frame.write(value);
+            sinceLastFrame.write(value);
+            byte[] seen = sinceLastFrame.toByteArray();
+            if(endsWith(seen, delimiter, delimiter.length)) {
+                if(dropping) {
+                    droppedBytes += frame.size();
+                    dropping = false;
+                } else {
+                    frames.add(frame.toByteArray());
+                }
+                frame.reset();
+                sinceLastFrame.reset();
+            } else if(dropping) {
+                droppedBytes += frame.size();
+                frame.reset();
+            } else if(policy != DelimiterFramer.OVERFLOW_GROW && frame.size() >= maxFrameSize) {
+                overflows++;
+                int keep = 0;
+                if(policy == DelimiterFramer.OVERFLOW_RESYNC) {
+                    // Longest delimiter prefix at the end
+                    for(int length=delimiter.length-1;length>0;length--) {
+                        if(endsWith(seen, delimiter, length)) {
+                            keep = length;
+                            break;
+                        }
+                    }
+                } else {
+                    dropping = true;
+                }
+                byte[] current = frame.toByteArray();
+                droppedBytes += current.length - keep;
+                frame.reset();
+                frame.write(current, current.length - keep, keep);
+            }
+        }
+
+        // data ends with the first length bytes of delimiter
+        private static boolean endsWith(byte[] data, byte[] delimiter, int length) {
+            if(data.length < length) {
+                return false;
+            }
+            for(int i=0;i<length;i++) {
+                if(data[data.length - length + i] != delimiter[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
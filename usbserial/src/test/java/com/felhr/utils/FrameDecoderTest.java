@@ -0,0 +1,163 @@
+package com.felhr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class FrameDecoderTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final FrameDecoder.FrameHandler handler =
+            (buffer, offset, length) -> frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+
+    @Test
+    public void lengthPrefixRandomChunks() {
+        for(int lengthSize=1;lengthSize<=4;lengthSize++) {
+            for(ByteOrder byteOrder : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                int size = lengthSize;
+                checkRandomChunks(() -> new LengthPrefixDecoder(size, byteOrder, 1024),
+                        payload -> FrameEncoders.lengthPrefix(payload, size, byteOrder), true, size == 1 ? 255 : 1024);
+            }
+        }
+    }
+
+    @Test
+    public void cobsRandomChunks() {
+        checkRandomChunks(CobsDecoder::new, FrameEncoders::cobs, true, 1024);
+    }
+
+    @Test
+    public void slipRandomChunks() {
+        checkRandomChunks(SlipDecoder::new, FrameEncoders::slip, false, 1024);
+    }
+
+    @Test
+    public void lengthPrefixSkipsOversizedFrame() {
+        LengthPrefixDecoder decoder = new LengthPrefixDecoder(2, ByteOrder.BIG_ENDIAN, 4);
+        byte[] stream = concat(FrameEncoders.lengthPrefix(new byte[]{1, 2}, 2, ByteOrder.BIG_ENDIAN),
+                FrameEncoders.lengthPrefix(new byte[300], 2, ByteOrder.BIG_ENDIAN),
+                FrameEncoders.lengthPrefix(new byte[]{3}, 2, ByteOrder.BIG_ENDIAN));
+        decoder.append(stream, 0, stream.length, handler);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertArrayEquals(new byte[]{1, 2}, frames.get(0));
+        Assert.assertArrayEquals(new byte[]{3}, frames.get(1));
+        Assert.assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void cobsDropsMalformedFrame() {
+        CobsDecoder decoder = new CobsDecoder();
+        // The first frame ends in the middle of a block
+        byte[] stream = concat(new byte[]{0x05, 1, 2, 0}, FrameEncoders.cobs(new byte[]{0, 7, 0}));
+        decoder.append(stream, 0, stream.length, handler);
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals(new byte[]{0, 7, 0}, frames.get(0));
+        Assert.assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void cobsLongRuns() {
+        CobsDecoder decoder = new CobsDecoder();
+        for(int length : new int[]{253, 254, 255, 508, 1000}) {
+            byte[] payload = new byte[length];
+            Arrays.fill(payload, (byte) 0x11);
+            byte[] encoded = FrameEncoders.cobs(payload);
+            decoder.append(encoded, 0, encoded.length, handler);
+            Assert.assertArrayEquals("Length " + length, payload, frames.remove(0));
+        }
+    }
+
+    @Test
+    public void decodersDropOversizedFrames() {
+        FrameDecoder[] decoders = {new CobsDecoder(8), new SlipDecoder(8)};
+        for(FrameDecoder decoder : decoders) {
+            boolean cobs = decoder instanceof CobsDecoder;
+            byte[] stream = concat(encode(cobs, new byte[20]), encode(cobs, new byte[]{1, 2, 3}));
+            decoder.append(stream, 0, stream.length, handler);
+            Assert.assertEquals(1, frames.size());
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, frames.remove(0));
+        }
+    }
+
+    @Test
+    public void protocolBufferWithDecoder() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(new CobsDecoder());
+        byte[] stream = concat(FrameEncoders.cobs(new byte[]{1, 0, 2}), FrameEncoders.cobs(new byte[]{0}));
+        protocolBuffer.appendData(Arrays.copyOfRange(stream, 0, 3));
+        Assert.assertFalse(protocolBuffer.hasMoreCommands());
+        protocolBuffer.appendData(Arrays.copyOfRange(stream, 3, stream.length));
+
+        Assert.assertArrayEquals(new byte[]{1, 0, 2}, protocolBuffer.nextBinaryCommand());
+        Assert.assertArrayEquals(new byte[]{0}, protocolBuffer.nextBinaryCommand());
+        Assert.assertNull(protocolBuffer.nextBinaryCommand());
+    }
+
+    private interface DecoderFactory {
+        FrameDecoder create();
+    }
+
+    private interface Encoder {
+        byte[] encode(byte[] payload);
+    }
+
+    // Property: random payloads come out the same whatever the chunk boundaries
+    private void checkRandomChunks(DecoderFactory factory, Encoder encoder, boolean emptyFrames, int maxLength) {
+        Random random = new Random(13);
+        for(int round=0;round<100;round++) {
+            List<byte[]> payloads = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for(int i=0;i<20;i++) {
+                byte[] payload = new byte[(emptyFrames ? 0 : 1) + random.nextInt(random.nextBoolean() ? 10 : 600)];
+                for(int j=0;j<payload.length;j++) {
+                    // Plenty of the bytes the encodings escape
+                    int kind = random.nextInt(4);
+                    payload[j] = kind == 0 ? 0 : kind == 1 ? SlipDecoder.END : kind == 2 ? SlipDecoder.ESC : (byte) random.nextInt();
+                }
+                if(payload.length > maxLength) {
+                    payload = Arrays.copyOf(payload, maxLength);
+                }
+                payloads.add(payload);
+                byte[] encoded = encoder.encode(payload);
+                stream.write(encoded, 0, encoded.length);
+            }
+
+            frames.clear();
+            FrameDecoder decoder = factory.create();
+            byte[] data = stream.toByteArray();
+            int offset = 0;
+            while(offset < data.length) {
+                int length = Math.min(random.nextInt(random.nextBoolean() ? 4 : 700), data.length - offset);
+                decoder.append(data, offset, length, handler);
+                offset += length;
+            }
+
+            Assert.assertEquals("Round " + round, payloads.size(), frames.size());
+            for(int i=0;i<payloads.size();i++) {
+                Assert.assertArrayEquals("Round " + round + " frame " + i, payloads.get(i), frames.get(i));
+            }
+        }
+    }
+
+    private static byte[] encode(boolean cobs, byte[] payload) {
+        return cobs ? FrameEncoders.cobs(payload) : FrameEncoders.slip(payload);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+package com.felhr.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteOrder;
+
+/*
+ * Encoders of the frames read by the decoders, to build test streams
+ */
+final class FrameEncoders {
+
+    private FrameEncoders() {
+    }
+
+    static byte[] lengthPrefix(byte[] payload, int lengthSize, ByteOrder byteOrder) {
+        byte[] frame = new byte[lengthSize + payload.length];
+        for(int i=0;i<lengthSize;i++) {
+            int shift = byteOrder == ByteOrder.BIG_ENDIAN ? 8 * (lengthSize - 1 - i) : 8 * i;
+            frame[i] = (byte) (payload.length >>> shift);
+        }
+        System.arraycopy(payload, 0, frame, lengthSize, payload.length);
+        return frame;
+    }
+
+    static byte[] cobs(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for(byte value : payload) {
+            if(value == 0) {
+                writeBlock(out, block);
+            } else {
+                block.write(value);
+                if(block.size() == 254) {
+                    writeBlock(out, block); // Full block, no zero after it
+                }
+            }
+        }
+        writeBlock(out, block);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, ByteArrayOutputStream block) {
+        out.write(block.size() + 1);
+        out.write(block.toByteArray(), 0, block.size());
+        block.reset();
+    }
+
+    static byte[] slip(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(SlipDecoder.END);
+        for(byte value : payload) {
+            if(value == SlipDecoder.END) {
+                out.write(SlipDecoder.ESC);
+                out.write(SlipDecoder.ESC_END);
+            } else if(value == SlipDecoder.ESC) {
+                out.write(SlipDecoder.ESC);
+                out.write(SlipDecoder.ESC_ESC);
+            } else {
+                out.write(value);
+            }
+        }
+        out.write(SlipDecoder.END);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+package com.felhr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(JUnit4.class)
+public class FrameQueueTest {
+
+    @Test
+    public void dropsWhenFull() {
+        FrameQueue<Integer> queue = new FrameQueue<>(3);
+        Assert.assertEquals(4, queue.getCapacity());
+        for(int i=0;i<6;i++) {
+            Assert.assertEquals(i < 4, queue.offer(i));
+        }
+        Assert.assertEquals(2, queue.getDroppedFrames());
+        Assert.assertEquals(4, queue.size());
+
+        Assert.assertEquals(Integer.valueOf(0), queue.poll());
+        Assert.assertTrue(queue.offer(6));
+        List<Integer> drained = new ArrayList<>();
+        Assert.assertEquals(2, queue.drainTo(drained, 2));
+        Assert.assertEquals(2, queue.drainTo(drained, 10));
+        Assert.assertEquals("[1, 2, 3, 6]", drained.toString());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void takeTimesOut() throws Exception {
+        FrameQueue<String> queue = new FrameQueue<>(4);
+        long start = System.nanoTime();
+        Assert.assertNull(queue.take(20, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void takeWakesUpOnOffer() throws Exception {
+        FrameQueue<String> queue = new FrameQueue<>(4);
+        AtomicReference<String> taken = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                taken.set(queue.take(5, TimeUnit.SECONDS));
+            } catch(InterruptedException e) {
+                // Fails below
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        long offered = System.nanoTime();
+        queue.offer("frame");
+        consumer.join(5000);
+
+        Assert.assertEquals("frame", taken.get());
+        Assert.assertTrue("Took too long", System.nanoTime() - offered < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void takeIsInterruptible() throws Exception {
+        Thread.currentThread().interrupt();
+        new FrameQueue<String>(4).take(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws Exception {
+        FrameQueue<Integer> queue = new FrameQueue<>(64);
+        int frames = 200000;
+        Thread producer = new Thread(() -> {
+            for(int i=0;i<frames;i++) {
+                while(!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        // Every frame in order, each one taken exactly once
+        List<Integer> batch = new ArrayList<>();
+        int next = 0;
+        while(next < frames) {
+            if(queue.drainTo(batch, 16) == 0) {
+                Integer frame = queue.take(5, TimeUnit.SECONDS);
+                Assert.assertNotNull("Consumer starved at " + next, frame);
+                batch.add(frame);
+            }
+            for(Integer frame : batch) {
+                Assert.assertEquals(next++, frame.intValue());
+            }
+            batch.clear();
+        }
+        producer.join();
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void protocolBufferBurst() throws Exception {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT, 1024, 1 << 16);
+        protocolBuffer.setDelimiter("\n");
+        StringBuilder burst = new StringBuilder();
+        for(int i=0;i<50000;i++) {
+            burst.append(i).append('\n');
+        }
+        protocolBuffer.appendData(burst.toString().getBytes());
+
+        List<String> commands = new ArrayList<>();
+        while(protocolBuffer.drainTextCommands(commands, 1000) > 0) {
+            // Drain in batches
+        }
+        Assert.assertEquals(50000, commands.size());
+        Assert.assertEquals("49999\n", commands.get(49999));
+        Assert.assertNull(protocolBuffer.takeTextCommand(1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, protocolBuffer.getDroppedCommands());
+    }
+}
@@ -0,0 +1,135 @@
+package com.felhr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class HexDataTest {
+
+    @Test
+    public void prefixedMatchesPreviousFormat() {
+        byte[] data = new byte[256];
+        for(int i=0;i<data.length;i++) {
+            data[i] = (byte) i;
+        }
+        StringBuilder expected = new StringBuilder();
+        for(byte value : data) {
+            expected.append("0x").append(String.format("%02X", value & 0xFF)).append(' ');
+        }
+        Assert.assertEquals(expected.toString(), HexData.hexToString(data));
+        Assert.assertEquals("", HexData.hexToString(new byte[0]));
+        Assert.assertNull(HexData.hexToString(null));
+    }
+
+    @Test
+    public void stringToBytesSkipsPrefixesAndWhitespace() {
+        Assert.assertArrayEquals(new byte[]{1, (byte) 0xAB, (byte) 0xFF}, HexData.stringTobytes(" 0x01 0xAB\t0xff\n"));
+        Assert.assertArrayEquals(new byte[]{1, (byte) 0xAB, (byte) 0xFF}, HexData.stringTobytes("01abFF"));
+        Assert.assertArrayEquals(new byte[]{0x0A, 0x0B}, HexData.stringTobytes("0x0A0X0B"));
+        Assert.assertArrayEquals(new byte[0], HexData.stringTobytes(""));
+
+        byte[] data = randomBytes(1000);
+        Assert.assertArrayEquals(data, HexData.stringTobytes(HexData.hexToString(data)));
+    }
+
+    @Test
+    public void invalidHexRejected() {
+        for(String invalid : new String[]{"0x1", "0xG1", "12 3", "0x12,0x13", "١٢"}) {
+            try {
+                HexData.stringTobytes(invalid);
+                Assert.fail(invalid);
+            } catch(NumberFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void escapedKeepsPrintableBytes() {
+        byte[] data = "M 10,-5\r\n".getBytes(StandardCharsets.US_ASCII);
+        Assert.assertEquals("M 10,-5\r\n", HexData.hexToString(data, HexData.ESCAPED));
+        Assert.assertEquals("a_5f__7f__80__ff_", HexData.hexToString(new byte[]{'a', '_', 0x7F, (byte) 0x80, (byte) 0xFF}, HexData.ESCAPED));
+    }
+
+    @Test
+    public void escapedRoundTrip() {
+        byte[] data = randomBytes(5000);
+        String encoded = HexData.hexToString(data, HexData.ESCAPED);
+        Assert.assertEquals(encoded.length(), HexData.encodedLength(data, 0, data.length, HexData.ESCAPED));
+        byte[] decoded = new byte[data.length];
+        Assert.assertEquals(data.length, HexData.decode(encoded, 0, encoded.length(), decoded, 0, HexData.ESCAPED));
+        Assert.assertArrayEquals(data, decoded);
+
+        for(String invalid : new String[]{"_4", "_4g_", "_41", "é"}) {
+            try {
+                HexData.decode(invalid, 0, invalid.length(), null, 0, HexData.ESCAPED);
+                Assert.fail(invalid);
+            } catch(NumberFormatException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void everyOutputMatches() throws IOException {
+        byte[] data = randomBytes(300);
+        for(int format : new int[]{HexData.PREFIXED, HexData.ESCAPED}) {
+            String expected = HexData.hexToString(data, format).substring(0, HexData.encodedLength(data, 0, 100, format));
+
+            char[] chars = new char[expected.length() + 2];
+            Assert.assertEquals(expected.length(), HexData.encode(data, 0, 100, chars, 2, format));
+            Assert.assertEquals(expected, new String(chars, 2, expected.length()));
+
+            StringBuilder builder = new StringBuilder();
+            HexData.encode(data, 0, 100, builder, format);
+            Assert.assertEquals(expected, builder.toString());
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length());
+            Assert.assertEquals(expected.length(), HexData.encode(data, 0, 100, buffer, format));
+            buffer.flip();
+            byte[] ascii = new byte[buffer.remaining()];
+            buffer.get(ascii);
+            Assert.assertEquals(expected, new String(ascii, StandardCharsets.US_ASCII));
+
+            ByteBuffer decoded = ByteBuffer.allocateDirect(100);
+            Assert.assertEquals(100, HexData.decode(expected, decoded, format));
+            decoded.flip();
+            for(int i=0;i<100;i++) {
+                Assert.assertEquals(data[i], decoded.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void bufferTooSmallWritesNothing() {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        try {
+            HexData.encode(new byte[2], 0, 2, buffer, HexData.PREFIXED);
+            Assert.fail();
+        } catch(BufferOverflowException e) {
+            Assert.assertEquals(0, buffer.position());
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(1);
+        try {
+            HexData.decode("0x01 0x02", small, HexData.PREFIXED);
+            Assert.fail();
+        } catch(BufferOverflowException e) {
+            Assert.assertEquals(0, small.position());
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
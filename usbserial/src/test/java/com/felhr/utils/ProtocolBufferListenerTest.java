@@ -0,0 +1,116 @@
+package com.felhr.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class ProtocolBufferListenerTest {
+
+    @Test
+    public void listenerCalledOnAppendingThread() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT);
+        protocolBuffer.setDelimiter("\n");
+        List<String> frames = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        protocolBuffer.setTextFrameListener(frame -> {
+            frames.add(frame);
+            threads.add(Thread.currentThread());
+        }, null);
+
+        protocolBuffer.onReceivedData("one\ntw".getBytes());
+        protocolBuffer.onReceivedData("o\n".getBytes());
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertEquals("one\n", frames.get(0));
+        Assert.assertEquals("two\n", frames.get(1));
+        Assert.assertSame(Thread.currentThread(), threads.get(0));
+        // Nothing left in the queue
+        Assert.assertFalse(protocolBuffer.hasMoreCommands());
+    }
+
+    @Test
+    public void listenerOnExecutor() throws Exception {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.BINARY);
+        protocolBuffer.setDelimiter(new byte[]{0x00});
+        LinkedBlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<Thread> threads = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            protocolBuffer.setBinaryFrameListener(frame -> {
+                frames.add(frame);
+                threads.add(Thread.currentThread());
+            }, executor);
+
+            protocolBuffer.onReceivedData(new byte[]{1, 2, 0, 3, 0});
+
+            Assert.assertArrayEquals(new byte[]{1, 2, 0}, frames.poll(5, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(new byte[]{3, 0}, frames.poll(5, TimeUnit.SECONDS));
+            Assert.assertNotSame(Thread.currentThread(), threads.poll(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void queuedAgainWithoutListener() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT);
+        protocolBuffer.setDelimiter("\n");
+        List<String> frames = new ArrayList<>();
+        protocolBuffer.setTextFrameListener(frames::add, null);
+        protocolBuffer.appendData("pushed\n".getBytes());
+        protocolBuffer.setTextFrameListener(null, null);
+        protocolBuffer.appendData("queued\n".getBytes());
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertEquals("queued\n", protocolBuffer.nextTextCommand());
+    }
+
+    @Test
+    public void decoderFramesPushed() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(new SlipDecoder());
+        List<byte[]> frames = new ArrayList<>();
+        protocolBuffer.setBinaryFrameListener(frames::add, null);
+        protocolBuffer.onReceivedData(new byte[]{SlipDecoder.END, 5, 6, SlipDecoder.END});
+
+        Assert.assertEquals(1, frames.size());
+        Assert.assertArrayEquals(new byte[]{5, 6}, frames.get(0));
+    }
+
+    @Test
+    public void directBufferLongerThanChunk() {
+        ProtocolBuffer protocolBuffer = new ProtocolBuffer(ProtocolBuffer.TEXT);
+        protocolBuffer.setDelimiter("\r\n");
+        List<String> frames = new ArrayList<>();
+        protocolBuffer.setTextFrameListener(frames::add, null);
+
+        StringBuilder expected = new StringBuilder();
+        for(int i=0;i<5000;i++) {
+            expected.append("$GPGGA,").append(i).append("\r\n");
+        }
+        byte[] data = expected.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        protocolBuffer.onReceivedData(direct.asReadOnlyBuffer());
+
+        Assert.assertEquals(5000, frames.size());
+        Assert.assertEquals("$GPGGA,4999\r\n", frames.get(4999));
+        // The position of the buffer is left alone
+        Assert.assertEquals(0, direct.position());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void textListenerOnBinaryProtocol() {
+        new ProtocolBuffer(ProtocolBuffer.BINARY).setTextFrameListener(frame -> { }, null);
+    }
+}